@@ -0,0 +1,205 @@
+package photoeditor.benchmarks;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Calls into the editor, whose classes are in the default package.
+
+ Code in a named package cannot refer to classes in the default package, and JMH does not accept
+ benchmarks in the default package, so the editor's entry points are bound here as method handles
+ and its own types are passed around as Object. The handles are static final, so the JIT compiles
+ the calls like direct ones.
+ */
+final class Editor {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    static final Class<?> KERNEL = find("Kernel");
+    static final Class<?> EDGE_MODE = find("EdgeMode");
+    static final Class<?> COLOR_OP = find("ColorOp");
+    static final Class<?> COLOR_OPS = find("ColorOps");
+    static final Class<?> IMAGE_UTILS = find("ImageUtils");
+    static final Class<?> TILE_HISTORY = find("TileHistory");
+    static final Class<?> LAYER_STACK = find("LayerStack");
+
+    private static final MethodHandle NEW_KERNEL = constructor(KERNEL, double[][].class, double.class);
+    private static final MethodHandle APPLY_FILTER = staticMethod(KERNEL, "applyFilter", BufferedImage.class, BufferedImage.class, KERNEL, EDGE_MODE);
+    private static final MethodHandle TRANSFORM_COLORS = staticMethod(IMAGE_UTILS, "transformColors", BufferedImage.class, BufferedImage.class, COLOR_OP);
+    private static final MethodHandle COPY_IMAGE = staticMethod(IMAGE_UTILS, "copyImage", BufferedImage.class, BufferedImage.class);
+    private static final MethodHandle FILL_REGION = staticMethod(IMAGE_UTILS, "fillRegion", BufferedImage.class, BufferedImage.class, Point.class, Color.class);
+    private static final MethodHandle NEW_HISTORY = constructor(TILE_HISTORY, long.class);
+    private static final MethodHandle RESET = method(TILE_HISTORY, "reset", void.class, LAYER_STACK);
+    private static final MethodHandle COMMIT = method(TILE_HISTORY, "commit", void.class, LAYER_STACK);
+    private static final MethodHandle UNDO = method(TILE_HISTORY, "undo", Rectangle.class, LAYER_STACK);
+    private static final MethodHandle REDO = method(TILE_HISTORY, "redo", Rectangle.class, LAYER_STACK);
+    private static final MethodHandle NEW_LAYER_STACK = constructor(LAYER_STACK);
+    private static final MethodHandle RESET_LAYERS = method(LAYER_STACK, "reset", void.class, BufferedImage.class);
+    private static final MethodHandle MARK_CHANGED = method(LAYER_STACK, "markChanged", void.class, Rectangle.class);
+
+    private Editor() {}
+
+    static Object kernel(double[][] matrix, double multiplier) {
+        try {
+            return NEW_KERNEL.invokeExact(matrix, multiplier);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object edgeMode(String name) {
+        return constant(EDGE_MODE, name);
+    }
+
+    // One of the predefined operations in ColorOps, such as INVERT or GRAYSCALE
+    static Object colorOp(String name) {
+        return constant(COLOR_OPS, name);
+    }
+
+    static BufferedImage applyFilter(BufferedImage image, Object kernel, Object edgeMode) {
+        try {
+            return (BufferedImage) APPLY_FILTER.invokeExact(image, kernel, edgeMode);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static BufferedImage transformColors(BufferedImage image, Object op) {
+        try {
+            return (BufferedImage) TRANSFORM_COLORS.invokeExact(image, op);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static BufferedImage copyImage(BufferedImage image) {
+        try {
+            return (BufferedImage) COPY_IMAGE.invokeExact(image);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static BufferedImage fillRegion(BufferedImage image, Point start, Color color) {
+        try {
+            return (BufferedImage) FILL_REGION.invokeExact(image, start, color);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object history(long budget) {
+        try {
+            return NEW_HISTORY.invokeExact(budget);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // A LayerStack with the image as its only layer
+    static Object layers(BufferedImage image) {
+        try {
+            Object layers = NEW_LAYER_STACK.invokeExact();
+            RESET_LAYERS.invokeExact(layers, image);
+            return layers;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void reset(Object history, Object layers) {
+        try {
+            RESET.invokeExact(history, layers);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    // Marks the active layer as changed inside dirty, or everywhere for null, and commits it
+    static void commit(Object history, Object layers, Rectangle dirty) {
+        try {
+            MARK_CHANGED.invokeExact(layers, dirty);
+            COMMIT.invokeExact(history, layers);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Rectangle undo(Object history, Object layers) {
+        try {
+            return (Rectangle) UNDO.invokeExact(history, layers);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Rectangle redo(Object history, Object layers) {
+        try {
+            return (Rectangle) REDO.invokeExact(history, layers);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    private static Class<?> find(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException ex) {
+            throw new IllegalStateException("Editor class " + name + " is not on the class path.", ex);
+        }
+    }
+
+    private static Object constant(Class<?> owner, String name) {
+        try {
+            return owner.getField(name).get(null);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalArgumentException("No constant " + owner.getSimpleName() + "." + name + ".", ex);
+        }
+    }
+
+    // Editor types, the ones in the default package, are widened to Object
+    private static MethodType erased(MethodType type) {
+        MethodType result = type;
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (!type.parameterType(i).isPrimitive() && type.parameterType(i).getPackageName().isEmpty()) {
+                result = result.changeParameterType(i, Object.class);
+            }
+        }
+        return result;
+    }
+
+    private static MethodHandle constructor(Class<?> owner, Class<?>... parameters) {
+        try {
+            MethodHandle handle = LOOKUP.findConstructor(owner, MethodType.methodType(void.class, parameters));
+            return handle.asType(erased(handle.type()).changeReturnType(Object.class));
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static MethodHandle staticMethod(Class<?> owner, String name, Class<?> returnType, Class<?>... parameters) {
+        try {
+            MethodHandle handle = LOOKUP.findStatic(owner, name, MethodType.methodType(returnType, parameters));
+            return handle.asType(erased(handle.type()));
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static MethodHandle method(Class<?> owner, String name, Class<?> returnType, Class<?>... parameters) {
+        try {
+            MethodHandle handle = LOOKUP.findVirtual(owner, name, MethodType.methodType(returnType, parameters));
+            return handle.asType(erased(handle.type()));
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException runtime) return runtime;
+        if (t instanceof Error error) throw error;
+        return new IllegalStateException(t);
+    }
+}
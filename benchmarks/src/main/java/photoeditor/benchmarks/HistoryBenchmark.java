@@ -0,0 +1,67 @@
+package photoeditor.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The undo path behind PhotoEditor.undo and redo: TileHistory commits, undoes and redoes a single-layer LayerStack.
+
+ stroke changes a brush-sized square, commits it with its dirty rectangle, then undoes and redoes it.
+ wholeImage changes every pixel, as a filter does, and commits without a dirty rectangle, so every
+ tile is compared and replaced. Both include writing the change itself, a plain loop over the pixels.
+ The history only holds TYPE_INT rasters, so those are the only types measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector", "-Xmx6g"})
+@State(Scope.Benchmark)
+public class HistoryBenchmark {
+    private static final int STROKE_SIZE = 200;
+
+    @Param({"1", "12", "50"})
+    public int megapixels;
+
+    @Param({"TYPE_INT_RGB", "TYPE_INT_ARGB"})
+    public String type;
+
+    private BufferedImage image;
+    private int[] pixels;
+    private Object layers;
+    private Object history;
+    private int color;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        image = Images.photo(megapixels, type);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        layers = Editor.layers(image);
+        history = Editor.history(1L << 30);
+        Editor.reset(history, layers);
+    }
+
+    @Benchmark
+    public Rectangle stroke() {
+        Rectangle dirty = new Rectangle(image.getWidth() / 2, image.getHeight() / 2, STROKE_SIZE, STROKE_SIZE);
+        color ^= 0xFFFFFF;
+        for (int y = dirty.y; y < dirty.y + dirty.height; y++) {
+            for (int x = dirty.x; x < dirty.x + dirty.width; x++) {
+                pixels[y * image.getWidth() + x] = 0xFF000000 | color;
+            }
+        }
+        Editor.commit(history, layers, dirty);
+        Editor.undo(history, layers);
+        return Editor.redo(history, layers);
+    }
+
+    @Benchmark
+    public void wholeImage() {
+        for (int i = 0; i < pixels.length; i++) pixels[i] ^= 0xFFFFFF;
+        Editor.commit(history, layers, null);
+    }
+}
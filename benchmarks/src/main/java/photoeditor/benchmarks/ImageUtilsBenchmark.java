@@ -0,0 +1,59 @@
+package photoeditor.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ImageUtils.transformColors, copyImage and fillRegion across image sizes and raster types.
+
+ fillRegion starts on a blank image, so the fill covers every pixel, which is its worst case.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector", "-Xmx6g"})
+@State(Scope.Benchmark)
+public class ImageUtilsBenchmark {
+    @Param({"1", "12", "50"})
+    public int megapixels;
+
+    @Param({"TYPE_INT_RGB", "TYPE_3BYTE_BGR", "TYPE_INT_ARGB"})
+    public String type;
+
+    private BufferedImage photo;
+    private BufferedImage blank;
+    private Object invert;
+    private Object grayscale;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        photo = Images.photo(megapixels, type);
+        blank = Images.blank(megapixels, type);
+        invert = Editor.colorOp("INVERT");
+        grayscale = Editor.colorOp("GRAYSCALE");
+    }
+
+    @Benchmark
+    public BufferedImage invert() {
+        return Editor.transformColors(photo, invert);
+    }
+
+    @Benchmark
+    public BufferedImage grayscale() {
+        return Editor.transformColors(photo, grayscale);
+    }
+
+    @Benchmark
+    public BufferedImage copyImage() {
+        return Editor.copyImage(photo);
+    }
+
+    @Benchmark
+    public BufferedImage fillRegion() {
+        return Editor.fillRegion(blank, new Point(blank.getWidth() / 2, blank.getHeight() / 2), Color.RED);
+    }
+}
@@ -0,0 +1,57 @@
+package photoeditor.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Test images for the benchmarks, sized in megapixels at a 4:3 aspect ratio.
+ */
+final class Images {
+    private Images() {}
+
+    static int type(String name) {
+        return switch (name) {
+            case "TYPE_INT_RGB" -> BufferedImage.TYPE_INT_RGB;
+            case "TYPE_INT_ARGB" -> BufferedImage.TYPE_INT_ARGB;
+            case "TYPE_3BYTE_BGR" -> BufferedImage.TYPE_3BYTE_BGR;
+            default -> throw new IllegalArgumentException("Unknown image type " + name + ".");
+        };
+    }
+
+    static int width(int megapixels) {
+        return (int) Math.round(Math.sqrt(megapixels * 1e6 * 4 / 3));
+    }
+
+    static int height(int megapixels) {
+        return (int) Math.round(megapixels * 1e6 / width(megapixels));
+    }
+
+    // Smooth gradients with noise on top, so that neither flat areas nor pure noise dominate
+    static BufferedImage photo(int megapixels, String type) {
+        int width = width(megapixels);
+        int height = height(megapixels);
+        BufferedImage image = new BufferedImage(width, height, type(type));
+        SplittableRandom random = new SplittableRandom(42);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int red = (x * 255 / width + random.nextInt(16)) & 0xFF;
+                int green = (y * 255 / height + random.nextInt(16)) & 0xFF;
+                int blue = ((x + y) * 127 / (width + height) + random.nextInt(16)) & 0xFF;
+                int alpha = 255 - random.nextInt(32);
+                row[x] = alpha << 24 | red << 16 | green << 8 | blue;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    static BufferedImage blank(int megapixels, String type) {
+        BufferedImage image = new BufferedImage(width(megapixels), height(megapixels), type(type));
+        int[] row = new int[image.getWidth()];
+        Arrays.fill(row, 0xFFFFFFFF);
+        for (int y = 0; y < image.getHeight(); y++) image.setRGB(0, y, row.length, 1, row, 0, row.length);
+        return image;
+    }
+}
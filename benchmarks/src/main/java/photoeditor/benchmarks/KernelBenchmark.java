@@ -0,0 +1,90 @@
+package photoeditor.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kernel.applyFilter across image sizes, raster types and kernels.
+
+ The kernels take the different paths through applyFilter: sharpen3x3 is a small dense kernel,
+ gaussian5x5 and box15x15 are separable, and dense9x9 is large enough to be considered for the FFT.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector", "-Xmx6g"})
+@State(Scope.Benchmark)
+public class KernelBenchmark {
+    @Param({"1", "12", "50"})
+    public int megapixels;
+
+    @Param({"TYPE_INT_RGB", "TYPE_3BYTE_BGR", "TYPE_INT_ARGB"})
+    public String type;
+
+    @Param({"sharpen3x3", "gaussian5x5", "dense9x9", "box15x15"})
+    public String kernel;
+
+    private BufferedImage image;
+    private Object filter;
+    private Object edgeMode;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        image = Images.photo(megapixels, type);
+        filter = kernel(kernel);
+        edgeMode = Editor.edgeMode("CLAMP");
+    }
+
+    @Benchmark
+    public BufferedImage applyFilter() {
+        return Editor.applyFilter(image, filter, edgeMode);
+    }
+
+    static Object kernel(String name) {
+        return switch (name) {
+            case "sharpen3x3" -> Editor.kernel(new double[][] {{0, -1, 0}, {-1, 5, -1}, {0, -1, 0}}, 1);
+            case "gaussian5x5" -> binomial(5);
+            case "dense9x9" -> dense(9);
+            case "box15x15" -> box(15);
+            default -> throw new IllegalArgumentException("Unknown kernel " + name + ".");
+        };
+    }
+
+    private static Object binomial(int size) {
+        double[] row = new double[size];
+        row[0] = 1;
+        for (int i = 1; i < size; i++) row[i] = row[i - 1] * (size - i) / i;
+        double[][] matrix = new double[size][size];
+        double total = 0;
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                matrix[i][j] = row[i] * row[j];
+                total += matrix[i][j];
+            }
+        }
+        return Editor.kernel(matrix, 1 / total);
+    }
+
+    private static Object box(int size) {
+        double[][] matrix = new double[size][size];
+        for (double[] row : matrix) Arrays.fill(row, 1);
+        return Editor.kernel(matrix, 1.0 / (size * size));
+    }
+
+    // Not separable: a cone of weights
+    private static Object dense(int size) {
+        double[][] matrix = new double[size][size];
+        double total = 0;
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                matrix[i][j] = size - Math.max(Math.abs(i - size / 2), Math.abs(j - size / 2));
+                total += matrix[i][j];
+            }
+        }
+        return Editor.kernel(matrix, 1 / total);
+    }
+}
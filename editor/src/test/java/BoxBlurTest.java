@@ -0,0 +1,81 @@
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks the running-sum box blur against summing each window directly.
+
+ The reference takes the same two rounded passes, rows then columns, but adds up every pixel of
+ each window, so any drift in the running sums or the band priming shows up as a mismatch. Radii
+ go from zero to larger than the image, in every edge mode.
+ */
+public class BoxBlurTest {
+    private static final int[][] SIZES = {{61, 47}, {1, 80}, {90, 3}};
+
+    @Test
+    public void blurMatchesDirectWindowSums() {
+        for (int type : new int[] {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB}) {
+            for (int[] size : SIZES) {
+                BufferedImage image = KernelTest.randomImage(size[0], size[1], type, new Random(size[0] + type));
+                for (EdgeMode mode : EdgeMode.values()) {
+                    for (int radius : new int[] {0, 1, 4, 100}) {
+                        BufferedImage expected = reference(image, radius, mode);
+                        BufferedImage actual = BoxBlur.blur(image, radius, mode);
+                        for (int y = 0; y < image.getHeight(); y++) {
+                            for (int x = 0; x < image.getWidth(); x++) {
+                                if (actual.getRGB(x, y) != expected.getRGB(x, y)) {
+                                    assertEquals(Integer.toHexString(expected.getRGB(x, y)), Integer.toHexString(actual.getRGB(x, y)),
+                                            mode + " radius " + radius + " on type " + type + " " + size[0] + "x" + size[1] + " at " + x + "," + y);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static BufferedImage reference(BufferedImage image, int radius, EdgeMode mode) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        int[] rows = new int[pixels.length];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int[] sums = new int[3];
+                for (int k = -radius; k <= radius; k++) {
+                    int column = mode.index(x + k, width);
+                    add(sums, column < 0 ? 0xFF000000 : pixels[y * width + column]);
+                }
+                rows[y * width + x] = average(pixels[y * width + x], sums, radius);
+            }
+        }
+        BufferedImage result = new BufferedImage(width, height, image.getType());
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int[] sums = new int[3];
+                for (int k = -radius; k <= radius; k++) {
+                    int row = mode.index(y + k, height);
+                    add(sums, row < 0 ? 0xFF000000 : rows[row * width + x]);
+                }
+                result.setRGB(x, y, average(rows[y * width + x], sums, radius));
+            }
+        }
+        return result;
+    }
+
+    private static void add(int[] sums, int pixel) {
+        sums[0] += (pixel >> 16) & 0xFF;
+        sums[1] += (pixel >> 8) & 0xFF;
+        sums[2] += pixel & 0xFF;
+    }
+
+    // Rounds the way BoxBlur does, in float, and keeps the center pixel's alpha
+    private static int average(int center, int[] sums, int radius) {
+        float scale = 1f / (2 * radius + 1);
+        return center & 0xFF000000 | (int) (sums[0] * scale + 0.5f) << 16 | (int) (sums[1] * scale + 0.5f) << 8 | (int) (sums[2] * scale + 0.5f);
+    }
+}
@@ -0,0 +1,66 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the compiled color operations against applying them one at a time in floating point.
+ */
+public class ColorOpsTest {
+    @Test
+    public void grayscaleRoundsToNearest() {
+        int[] pixels = new int[1 << 24];
+        for (int i = 0; i < pixels.length; i++) pixels[i] = 0xFF000000 | i;
+        int[] gray = new int[pixels.length];
+        ColorOps.GRAYSCALE.applyAll(pixels, gray, 0, pixels.length, 0);
+        for (int i = 0; i < pixels.length; i++) {
+            double exact = 0.299 * ((i >> 16) & 0xFF) + 0.587 * ((i >> 8) & 0xFF) + 0.114 * (i & 0xFF);
+            int value = gray[i] & 0xFF;
+            // Truncating would be off by up to a whole level; the fixed-point weights stay well inside half a level
+            if (Math.abs(value - exact) > 0.6) assertEquals(Math.round(exact), value, "for " + Integer.toHexString(i));
+            assertEquals(value * 0x010101 | 0xFF000000, gray[i]);
+            assertEquals(gray[i], ColorOps.GRAYSCALE.apply(pixels[i]));
+        }
+    }
+
+    @Test
+    public void compiledChainsMatchStageByStage() {
+        ColorOp[] ops = {ColorOps.INVERT, ColorOps.GRAYSCALE, ColorOps.SHIFT_COLORS, ColorOps.RED_ONLY, ColorOps.REMOVE_BLUE,
+                ColorOps.channels(v -> v * 2), ColorOps.matrix(new double[][] {{1, 0, 0, 10}, {0, 0.5, 0, 0}, {0, 0, 1, -20}})};
+        Random random = new Random(9);
+        for (int chain = 0; chain < 200; chain++) {
+            ColorOp[] stages = new ColorOp[1 + random.nextInt(5)];
+            for (int i = 0; i < stages.length; i++) stages[i] = ops[random.nextInt(ops.length)];
+            ColorOp compiled = ColorOps.compile(stages);
+            int[] pixels = new int[1000];
+            for (int i = 0; i < pixels.length; i++) pixels[i] = random.nextInt();
+            int[] bulk = new int[pixels.length];
+            compiled.applyAll(pixels, bulk, 0, pixels.length, 0);
+            for (int i = 0; i < pixels.length; i++) {
+                int expected = pixels[i];
+                for (ColorOp stage : stages) expected = stage.apply(expected);
+                int actual = compiled.apply(pixels[i]);
+                assertEquals(expected >>> 24, actual >>> 24, "alpha passes through");
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    // Fused matrices round once instead of once per stage
+                    assertTrue(Math.abs(((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF)) <= stages.length - 1,
+                            "chain " + chain + " on " + Integer.toHexString(pixels[i]));
+                }
+                assertEquals(actual, bulk[i]);
+            }
+        }
+    }
+
+    @Test
+    public void tablesAreExact() {
+        for (int i = 0; i < 1 << 24; i += 97) {
+            int pixel = 0x80000000 | i;
+            assertEquals(0x80000000 | (~i & 0xFFFFFF), ColorOps.INVERT.apply(pixel));
+            assertEquals(0x80000000 | (i & 0xFF0000), ColorOps.RED_ONLY.apply(pixel));
+            assertEquals(0x80000000 | (i & 0x00FFFF), ColorOps.REMOVE_RED.apply(pixel));
+            assertEquals(pixel, ColorOps.compile(ColorOps.INVERT, ColorOps.INVERT).apply(pixel));
+        }
+    }
+}
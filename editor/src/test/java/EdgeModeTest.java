@@ -0,0 +1,40 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks where each EdgeMode maps coordinates outside the image.
+ */
+public class EdgeModeTest {
+    @Test
+    public void insideCoordinatesMapToThemselves() {
+        for (EdgeMode mode : EdgeMode.values()) {
+            for (int i = 0; i < 5; i++) assertEquals(i, mode.index(i, 5), mode.name);
+        }
+    }
+
+    @Test
+    public void outsideCoordinates() {
+        assertIndices(EdgeMode.WRAP, 5, new int[] {-6, -5, -1, 5, 9, 10}, new int[] {4, 0, 4, 0, 4, 0});
+        assertIndices(EdgeMode.CLAMP, 5, new int[] {-100, -1, 5, 100}, new int[] {0, 0, 4, 4});
+        // Mirrored about the edge pixels, which are not repeated
+        assertIndices(EdgeMode.MIRROR, 5, new int[] {-1, -4, -5, -8, 5, 8, 9, 12}, new int[] {1, 4, 3, 0, 3, 0, 1, 4});
+        assertIndices(EdgeMode.MIRROR, 1, new int[] {-3, 2}, new int[] {0, 0});
+        assertIndices(EdgeMode.CONSTANT, 5, new int[] {-1, 5, 50}, new int[] {-1, -1, -1});
+    }
+
+    @Test
+    public void sampleReadsTheConstantOutside() {
+        int[] pixels = {1, 2, 3, 4, 5, 6};
+        assertEquals(6, EdgeMode.CLAMP.sample(pixels, 3, 2, 7, 9, 99));
+        assertEquals(4, EdgeMode.WRAP.sample(pixels, 3, 2, -3, 1, 99));
+        assertEquals(99, EdgeMode.CONSTANT.sample(pixels, 3, 2, 1, -1, 99));
+        assertEquals(2, EdgeMode.CONSTANT.sample(pixels, 3, 2, 1, 0, 99));
+    }
+
+    private static void assertIndices(EdgeMode mode, int length, int[] coordinates, int[] expected) {
+        for (int i = 0; i < coordinates.length; i++) {
+            assertEquals(expected[i], mode.index(coordinates[i], length), mode.name + " at " + coordinates[i]);
+        }
+    }
+}
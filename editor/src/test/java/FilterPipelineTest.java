@@ -0,0 +1,80 @@
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.function.UnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that FilterPipeline gives exactly what running its stages one after the other does.
+
+ Each chain mixes point operations before, between and after neighborhood filters, and runs on
+ images smaller than one tile, a few tiles wide, and one pixel thin, in every edge mode.
+ */
+public class FilterPipelineTest {
+    private static final int[][] SIZES = {{40, 30}, {600, 290}, {1, 300}, {513, 1}};
+    private static final int[] TYPES = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB};
+
+    @Test
+    public void kernelChainMatchesStageByStage() {
+        for (EdgeMode mode : EdgeMode.values()) {
+            FilterPipeline pipeline = new FilterPipeline()
+                    .then(ColorOps.GRAYSCALE)
+                    .then(Kernel.GAUSSIAN_BLUR, mode, 0xFF204060)
+                    .then(ColorOps.INVERT)
+                    .then(ColorOps.SHIFT_COLORS)
+                    .then(Kernel.SHARPEN, mode, 0xFF204060);
+            check(pipeline, image -> {
+                BufferedImage current = ImageUtils.transformColors(image, ColorOps.GRAYSCALE);
+                current = Kernel.applyFilter(current, Kernel.GAUSSIAN_BLUR, mode, 0xFF204060);
+                current = ImageUtils.transformColors(current, ColorOps.INVERT);
+                current = ImageUtils.transformColors(current, ColorOps.SHIFT_COLORS);
+                return Kernel.applyFilter(current, Kernel.SHARPEN, mode, 0xFF204060);
+            }, mode);
+        }
+    }
+
+    @Test
+    public void boxBlurChainMatchesStageByStage() {
+        for (EdgeMode mode : EdgeMode.values()) {
+            FilterPipeline pipeline = new FilterPipeline()
+                    .then(image -> BoxBlur.blur(image, 6, mode), 6, mode)
+                    .then(ColorOps.REMOVE_GREEN)
+                    .then(Kernel.LAPLACIAN, mode)
+                    .then(image -> BoxBlur.gaussianBlur(image, 3, mode), BoxBlur.gaussianReach(3), mode);
+            check(pipeline, image -> {
+                BufferedImage current = BoxBlur.blur(image, 6, mode);
+                current = ImageUtils.transformColors(current, ColorOps.REMOVE_GREEN);
+                current = Kernel.applyFilter(current, Kernel.LAPLACIAN, mode, 0xFF000000);
+                return BoxBlur.gaussianBlur(current, 3, mode);
+            }, mode);
+        }
+    }
+
+    @Test
+    public void pointOperationsAloneMatchStageByStage() {
+        FilterPipeline pipeline = new FilterPipeline().then(ColorOps.INVERT).then(ColorOps.BLUE_ONLY);
+        check(pipeline, image -> ImageUtils.transformColors(ImageUtils.transformColors(image, ColorOps.INVERT), ColorOps.BLUE_ONLY), null);
+    }
+
+    private static void check(FilterPipeline pipeline, UnaryOperator<BufferedImage> stageByStage, EdgeMode mode) {
+        for (int type : TYPES) {
+            for (int[] size : SIZES) {
+                BufferedImage image = KernelTest.randomImage(size[0], size[1], type, new Random(size[0] + 7L * type));
+                BufferedImage expected = stageByStage.apply(image);
+                BufferedImage actual = pipeline.apply(image);
+                assertEquals(expected.getWidth(), actual.getWidth());
+                assertEquals(expected.getHeight(), actual.getHeight());
+                for (int y = 0; y < image.getHeight(); y++) {
+                    for (int x = 0; x < image.getWidth(); x++) {
+                        if (actual.getRGB(x, y) != expected.getRGB(x, y)) {
+                            assertEquals(Integer.toHexString(expected.getRGB(x, y)), Integer.toHexString(actual.getRGB(x, y)),
+                                    mode + " on type " + type + " " + size[0] + "x" + size[1] + " at " + x + "," + y);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
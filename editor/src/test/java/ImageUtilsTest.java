@@ -0,0 +1,110 @@
+import org.junit.jupiter.api.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks the span flood fill against a pixel by pixel breadth-first search.
+
+ The images use a few close colors in blobs so regions are large and ragged, and the fill color is
+ one of those colors, so the fill has to stop on its own visited pixels rather than on their color.
+ */
+public class ImageUtilsTest {
+    private static final int[] PALETTE = {0xFF102030, 0xFF122232, 0xFF183038, 0xFFE0E0E0};
+
+    @Test
+    public void floodFillMatchesBreadthFirstSearch() {
+        Random random = new Random(5);
+        for (int type : new int[] {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR}) {
+            for (int[] size : new int[][] {{64, 48}, {1, 70}, {90, 1}, {129, 65}}) {
+                BufferedImage image = blobs(size[0], size[1], type, random);
+                for (int tolerance : new int[] {0, 3, 20}) {
+                    for (boolean eightConnected : new boolean[] {false, true}) {
+                        for (int i = 0; i < 5; i++) {
+                            Point start = new Point(random.nextInt(size[0]), random.nextInt(size[1]));
+                            String what = "type " + type + " " + size[0] + "x" + size[1] + " tolerance " + tolerance
+                                    + (eightConnected ? " 8-connected" : " 4-connected") + " from " + start.x + "," + start.y;
+                            check(image, start, tolerance, eightConnected, what);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void check(BufferedImage image, Point start, int tolerance, boolean eightConnected, String what) {
+        Color fill = new Color(PALETTE[0]);
+        boolean[][] region = breadthFirst(image, start, tolerance, eightConnected);
+        BufferedImage filled = ImageUtils.copyImage(image);
+        Rectangle bounds = ImageUtils.floodFill(filled, start, fill, tolerance, eightConnected);
+        Rectangle expectedBounds = null;
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int expected = region[y][x] ? fill.getRGB() : image.getRGB(x, y);
+                if (filled.getRGB(x, y) != expected) {
+                    assertEquals(Integer.toHexString(expected), Integer.toHexString(filled.getRGB(x, y)), what + " at " + x + "," + y);
+                }
+                if (region[y][x]) {
+                    Rectangle pixel = new Rectangle(x, y, 1, 1);
+                    expectedBounds = expectedBounds == null ? pixel : expectedBounds.union(pixel);
+                }
+            }
+        }
+        assertEquals(expectedBounds, bounds, what);
+    }
+
+    private static boolean[][] breadthFirst(BufferedImage image, Point start, int tolerance, boolean eightConnected) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int seed = image.getRGB(start.x, start.y);
+        boolean[][] region = new boolean[height][width];
+        Deque<Point> queue = new ArrayDeque<>();
+        region[start.y][start.x] = true;
+        queue.add(start);
+        while (!queue.isEmpty()) {
+            Point point = queue.poll();
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dx = -1; dx <= 1; dx++) {
+                    if ((dx == 0 && dy == 0) || (!eightConnected && dx != 0 && dy != 0)) continue;
+                    int x = point.x + dx;
+                    int y = point.y + dy;
+                    if (x < 0 || x >= width || y < 0 || y >= height || region[y][x]) continue;
+                    if (distanceSquared(image.getRGB(x, y), seed) <= tolerance * tolerance) {
+                        region[y][x] = true;
+                        queue.add(new Point(x, y));
+                    }
+                }
+            }
+        }
+        return region;
+    }
+
+    private static int distanceSquared(int first, int second) {
+        int sum = 0;
+        for (int shift = 0; shift <= 16; shift += 8) {
+            int difference = ((first >> shift) & 0xFF) - ((second >> shift) & 0xFF);
+            sum += difference * difference;
+        }
+        return sum;
+    }
+
+    // Random pixels from the palette, with each pixel copied from its left or upper neighbor most of the time
+    private static BufferedImage blobs(int width, int height, int type, Random random) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int color = PALETTE[random.nextInt(PALETTE.length)];
+                int choice = random.nextInt(10);
+                if (choice < 4 && x > 0) color = image.getRGB(x - 1, y);
+                else if (choice < 8 && y > 0) color = image.getRGB(x, y - 1);
+                image.setRGB(x, y, color);
+            }
+        }
+        return image;
+    }
+}
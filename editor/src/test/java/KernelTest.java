@@ -0,0 +1,213 @@
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the convolution paths of Kernel.applyFilter against a naive per-tap reference.
+
+ Exact kernels must match the integer reference bit for bit in every edge mode and raster type,
+ whichever path their shape and size select. Kernels without an exact integer form are allowed one
+ level of rounding difference.
+ */
+public class KernelTest {
+    private static final int[] TYPES = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR};
+    private static final int EDGE_COLOR = 0xFF336699;
+
+    @Test
+    public void separableKernelsMatchReference() {
+        checkExact(Kernel.BLUR, filled(5, 5, 1), 25);
+        checkExact(Kernel.GAUSSIAN_BLUR, binomial(), 256);
+    }
+
+    @Test
+    public void gaussianBlurIsTheBinomialKernel() {
+        assertTrue(Kernel.GAUSSIAN_BLUR.isSeparable());
+        int[][] binomial = binomial();
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j < 5; j++) {
+                assertEquals(binomial[i][j] / 256.0, Kernel.GAUSSIAN_BLUR.getPixel(i, j), 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void directKernelMatchesReference() {
+        // Not separable and not over a power of two, so neither the separable nor the Vector API path applies
+        int[][] matrix = randomMatrix(new Random(1), 5, 5);
+        checkExact(kernel(matrix, 25), matrix, 25);
+        checkExact(kernel(new int[][] {{1, 1, 1}}, 3), new int[][] {{1, 1, 1}}, 3);
+    }
+
+    @Test
+    public void halvesRoundUp() {
+        BufferedImage image = new BufferedImage(2, 1, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, 0x000000);
+        image.setRGB(1, 0, 0x010203);
+        // The second pixel averages itself with the first: 0.5, 1 and 1.5
+        BufferedImage result = Kernel.applyFilter(image, kernel(new int[][] {{1, 1}}, 2), EdgeMode.CLAMP);
+        assertEquals(0xFF010102, result.getRGB(1, 0));
+    }
+
+    @Test
+    public void powerOfTwoKernelsMatchReference() {
+        // Not separable and over a power of two, so these take the Vector API path where it is available
+        checkExact(Kernel.SHARPEN, new int[][] {{0, -1, 0}, {-1, 5, -1}, {0, -1, 0}}, 1);
+        checkExact(Kernel.LAPLACIAN, new int[][] {{-1, -1, -1}, {-1, 8, -1}, {-1, -1, -1}}, 1);
+        int[][] matrix = randomMatrix(new Random(2), 3, 5);
+        checkExact(kernel(matrix, 16), matrix, 16);
+    }
+
+    @Test
+    public void largeKernelMatchesReference() {
+        // Enough taps, on a large enough image, for the FFT path
+        int[][] matrix = randomMatrix(new Random(3), 13, 15);
+        checkExact(kernel(matrix, 195), matrix, 195, new int[][] {{200, 190}});
+    }
+
+    @Test
+    public void defaultEdgeModeIsClamp() {
+        BufferedImage image = randomImage(23, 17, BufferedImage.TYPE_INT_RGB, new Random(5));
+        BufferedImage clamped = Kernel.applyFilter(image, Kernel.SHARPEN, EdgeMode.CLAMP);
+        BufferedImage result = Kernel.applyFilter(image, Kernel.SHARPEN);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals(clamped.getRGB(x, y), result.getRGB(x, y), "at " + x + "," + y);
+            }
+        }
+    }
+
+    @Test
+    public void kernelsWiderThanTheImageMatchReference() {
+        // Every pixel is a border pixel, and the kernel reaches past the far edge too
+        int[][] sizes = {{1, 1}, {2, 2}, {1, 4}, {4, 1}};
+        checkExact(Kernel.BLUR, filled(5, 5, 1), 25, sizes);
+        checkExact(Kernel.LAPLACIAN, new int[][] {{-1, -1, -1}, {-1, 8, -1}, {-1, -1, -1}}, 1, sizes);
+    }
+
+    @Test
+    public void inexactKernelsAreWithinRounding() {
+        checkInexact(new Kernel(new double[][] {{0.1, 0.2, 0.1}, {0.2, 0.3, 0.05}, {0.0, 0.05, 0.0}}));
+        checkInexact(new Kernel(new double[] {0.2, 0.5, 0.3}, new double[] {0.25, 0.35, 0.15, 0.25}));
+    }
+
+    private static void checkExact(Kernel kernel, int[][] matrix, int divisor) {
+        checkExact(kernel, matrix, divisor, new int[][] {{67, 41}, {3, 90}, {120, 2}});
+    }
+
+    private static void checkExact(Kernel kernel, int[][] matrix, int divisor, int[][] sizes) {
+        assertTrue(kernel.isExact());
+        for (int type : TYPES) {
+            for (int[] size : sizes) {
+                BufferedImage image = randomImage(size[0], size[1], type, new Random(size[0] * 31 + type));
+                for (EdgeMode mode : EdgeMode.values()) {
+                    BufferedImage result = Kernel.applyFilter(image, kernel, mode, EDGE_COLOR);
+                    for (int y = 0; y < image.getHeight(); y++) {
+                        for (int x = 0; x < image.getWidth(); x++) {
+                            int expected = reference(image, x, y, matrix, divisor, mode);
+                            if (result.getRGB(x, y) != expected) {
+                                assertEquals(Integer.toHexString(expected), Integer.toHexString(result.getRGB(x, y)),
+                                        mode + " on type " + type + " " + size[0] + "x" + size[1] + " at " + x + "," + y);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void checkInexact(Kernel kernel) {
+        BufferedImage image = randomImage(53, 37, BufferedImage.TYPE_INT_RGB, new Random(4));
+        for (EdgeMode mode : EdgeMode.values()) {
+            BufferedImage result = Kernel.applyFilter(image, kernel, mode, EDGE_COLOR);
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    int actual = result.getRGB(x, y);
+                    for (int shift = 0; shift <= 16; shift += 8) {
+                        double sum = 0;
+                        for (int i = 0; i < kernel.getHeight(); i++) {
+                            for (int j = 0; j < kernel.getWidth(); j++) {
+                                sum += kernel.getPixel(i, j) * ((sample(image, x + j - kernel.getWidth() / 2, y + i - kernel.getHeight() / 2, mode) >> shift) & 0xFF);
+                            }
+                        }
+                        double expected = Math.max(0, Math.min(255, sum));
+                        assertTrue(Math.abs(((actual >> shift) & 0xFF) - expected) <= 1, mode + " at " + x + "," + y);
+                    }
+                }
+            }
+        }
+    }
+
+    // The kernel's sum for one pixel, rounded once with halves up, over the divisor; alpha is kept from the pixel
+    private static int reference(BufferedImage image, int x, int y, int[][] matrix, int divisor, EdgeMode mode) {
+        int kernelHeight = matrix.length;
+        int kernelWidth = matrix[0].length;
+        int red = 0;
+        int green = 0;
+        int blue = 0;
+        for (int i = 0; i < kernelHeight; i++) {
+            for (int j = 0; j < kernelWidth; j++) {
+                int pixel = sample(image, x + j - kernelWidth / 2, y + i - kernelHeight / 2, mode);
+                red += ((pixel >> 16) & 0xFF) * matrix[i][j];
+                green += ((pixel >> 8) & 0xFF) * matrix[i][j];
+                blue += (pixel & 0xFF) * matrix[i][j];
+            }
+        }
+        return image.getRGB(x, y) & 0xFF000000 | round(red, divisor) << 16 | round(green, divisor) << 8 | round(blue, divisor);
+    }
+
+    private static int round(int sum, int divisor) {
+        return Math.max(0, Math.min(255, Math.floorDiv(sum + divisor / 2, divisor)));
+    }
+
+    private static int sample(BufferedImage image, int x, int y, EdgeMode mode) {
+        int column = mode.index(x, image.getWidth());
+        int row = mode.index(y, image.getHeight());
+        return column < 0 || row < 0 ? EDGE_COLOR : image.getRGB(column, row);
+    }
+
+    private static int[][] binomial() {
+        int[] row = {1, 4, 6, 4, 1};
+        int[][] matrix = new int[5][5];
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j < 5; j++) matrix[i][j] = row[i] * row[j];
+        }
+        return matrix;
+    }
+
+    private static Kernel kernel(int[][] matrix, int divisor) {
+        double[][] values = new double[matrix.length][matrix[0].length];
+        for (int i = 0; i < matrix.length; i++) {
+            for (int j = 0; j < matrix[0].length; j++) {
+                values[i][j] = matrix[i][j];
+            }
+        }
+        return new Kernel(values, 1.0 / divisor);
+    }
+
+    private static int[][] filled(int height, int width, int value) {
+        int[][] matrix = new int[height][width];
+        for (int[] row : matrix) Arrays.fill(row, value);
+        return matrix;
+    }
+
+    private static int[][] randomMatrix(Random random, int height, int width) {
+        int[][] matrix = new int[height][width];
+        for (int[] row : matrix) {
+            for (int j = 0; j < width; j++) row[j] = random.nextInt(9) - 2;
+        }
+        return matrix;
+    }
+
+    static BufferedImage randomImage(int width, int height, int type, Random random) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) image.setRGB(x, y, random.nextInt());
+        }
+        return image;
+    }
+}
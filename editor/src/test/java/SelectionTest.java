@@ -0,0 +1,57 @@
+import org.junit.jupiter.api.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that filtering a selection matches filtering the whole image, inside the selection only.
+
+ Selection.filter() runs the filter on the bounding box plus the filter's reach, so the selected
+ pixels must come out exactly as the whole-image filter gives them in every edge mode, including
+ selections that touch the image's edges, and copyInto() must leave every other pixel alone.
+ */
+public class SelectionTest {
+    private static final int WIDTH = 400;
+    private static final int HEIGHT = 300;
+
+    @Test
+    public void filteredSelectionMatchesWholeImage() {
+        Selection[] selections = {
+                Selection.rectangle(new Rectangle(150, 100, 40, 30), WIDTH, HEIGHT),
+                Selection.rectangle(new Rectangle(-10, 280, 60, 50), WIDTH, HEIGHT),
+                Selection.polygon(new Polygon(new int[] {0, 60, 20}, new int[] {2, 40, 299}, 3), WIDTH, HEIGHT),
+                Selection.polygon(new Polygon(new int[] {210, 390, 300, 399, 230}, new int[] {10, 40, 150, 290, 200}, 5), WIDTH, HEIGHT)
+        };
+        for (int type : new int[] {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB}) {
+            BufferedImage image = KernelTest.randomImage(WIDTH, HEIGHT, type, new Random(8));
+            for (EdgeMode mode : EdgeMode.values()) {
+                check(image, new FilterPreview((source, scale) -> BoxBlur.blur(source, (int) Math.round(7 * scale), mode),
+                        scale -> (int) Math.round(7 * scale) + 1, mode), selections, "box blur " + mode);
+                check(image, new FilterPreview((source, scale) -> Kernel.applyFilter(source, Kernel.GAUSSIAN_BLUR, mode, 0xFF000000),
+                        scale -> 2, mode), selections, "Gaussian kernel " + mode);
+            }
+            check(image, new FilterPreview((source, scale) -> ImageUtils.transformColors(source, ColorOps.INVERT), scale -> 0),
+                    selections, "invert");
+        }
+    }
+
+    private static void check(BufferedImage image, FilterPreview filter, Selection[] selections, String what) {
+        BufferedImage whole = filter.apply(image);
+        for (Selection selection : selections) {
+            BufferedImage target = ImageUtils.copyImage(image);
+            selection.copyInto(filter.apply(target, selection), target);
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    int expected = selection.contains(x, y) ? whole.getRGB(x, y) : image.getRGB(x, y);
+                    if (target.getRGB(x, y) != expected) {
+                        assertEquals(Integer.toHexString(expected), Integer.toHexString(target.getRGB(x, y)),
+                                what + " in " + selection.getBounds() + " at " + x + "," + y);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+import org.junit.jupiter.api.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that undoing and redoing through TileHistory brings back every committed state of a LayerStack.
+
+ A random run of paints, filters and layer operations is committed step by step, and the layers,
+ their properties and pixels, and the flattened image are recorded after each commit. Undoing all
+ the way back and redoing all the way forward must then pass through exactly those states.
+ */
+public class TileHistoryTest {
+    private static final int WIDTH = 300;
+    private static final int HEIGHT = 200;
+
+    // One committed state of the stack, bottom layer first
+    private record State(List<LayerStack.Layer> layers, List<String> properties, List<int[]> pixels, int[] flattened) {
+        static State of(LayerStack stack) {
+            List<String> properties = new ArrayList<>();
+            List<int[]> pixels = new ArrayList<>();
+            for (LayerStack.Layer layer : stack.getLayers()) {
+                properties.add(layer.getName() + " " + layer.getOpacity() + " " + layer.getBlendMode() + " " + layer.isVisible());
+                pixels.add(PixelBuffer.of(layer.getImage()).getPixels().clone());
+            }
+            BufferedImage flattened = stack.update(new Rectangle(WIDTH, HEIGHT));
+            return new State(List.copyOf(stack.getLayers()), properties, pixels,
+                    flattened.getRGB(0, 0, WIDTH, HEIGHT, null, 0, WIDTH));
+        }
+
+        void check(LayerStack stack, String what) {
+            State actual = of(stack);
+            assertEquals(layers, actual.layers, what);
+            assertEquals(properties, actual.properties, what);
+            for (int i = 0; i < pixels.size(); i++) {
+                assertArrayEquals(pixels.get(i), actual.pixels.get(i), what + ", layer " + i);
+            }
+            assertArrayEquals(flattened, actual.flattened, what + ", flattened");
+        }
+    }
+
+    @Test
+    public void undoAndRedoRoundTrip() {
+        Random random = new Random(6);
+        LayerStack stack = new LayerStack();
+        stack.reset(KernelTest.randomImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB, random));
+        TileHistory history = new TileHistory(Long.MAX_VALUE);
+        history.reset(stack);
+        assertFalse(history.canUndo());
+
+        List<State> states = new ArrayList<>();
+        states.add(State.of(stack));
+        for (int step = 0; step < 60; step++) {
+            edit(stack, random);
+            history.commit(stack);
+            State state = State.of(stack);
+            // Edits that change nothing, such as moving the top layer up, leave no entry
+            if (!same(state, states.get(states.size() - 1))) states.add(state);
+        }
+
+        for (int i = states.size() - 2; i >= 0; i--) {
+            assertTrue(history.canUndo());
+            Rectangle changed = history.undo(stack);
+            assertTrue(changed != null);
+            // As the editor does, so the flattened image shows whether the returned area covers every change
+            stack.invalidate(changed);
+            states.get(i).check(stack, "undo to state " + i);
+        }
+        assertFalse(history.canUndo());
+        assertNull(history.undo(stack));
+
+        for (int i = 1; i < states.size(); i++) {
+            assertTrue(history.canRedo());
+            Rectangle changed = history.redo(stack);
+            assertTrue(changed != null);
+            stack.invalidate(changed);
+            states.get(i).check(stack, "redo to state " + i);
+        }
+        assertFalse(history.canRedo());
+        assertNull(history.redo(stack));
+    }
+
+    @Test
+    public void commitAfterUndoDropsRedo() {
+        Random random = new Random(7);
+        LayerStack stack = new LayerStack();
+        stack.reset(KernelTest.randomImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB, random));
+        TileHistory history = new TileHistory(Long.MAX_VALUE);
+        history.reset(stack);
+        State original = State.of(stack);
+        paint(stack, random);
+        history.commit(stack);
+        history.undo(stack);
+        assertTrue(history.canRedo());
+        stack.setOpacity(stack.getActive(), 0.5f);
+        history.commit(stack);
+        State faded = State.of(stack);
+        assertFalse(history.canRedo());
+        stack.invalidate(history.undo(stack));
+        original.check(stack, "undo of the new commit");
+        assertFalse(history.canUndo());
+        stack.invalidate(history.redo(stack));
+        faded.check(stack, "redo of the new commit");
+        assertFalse(history.canRedo());
+    }
+
+    @Test
+    public void newestEntryOutlivesTheBudget() {
+        Random random = new Random(8);
+        LayerStack stack = new LayerStack();
+        stack.reset(KernelTest.randomImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB, random));
+        TileHistory history = new TileHistory(0);
+        history.reset(stack);
+        paint(stack, random);
+        history.commit(stack);
+        assertTrue(history.canUndo());
+        State painted = State.of(stack);
+        paint(stack, random);
+        history.commit(stack);
+        // Only the second paint can still be undone
+        stack.invalidate(history.undo(stack));
+        painted.check(stack, "undo of the newest entry");
+        assertFalse(history.canUndo());
+    }
+
+    private static void edit(LayerStack stack, Random random) {
+        switch (random.nextInt(10)) {
+            case 0 -> stack.addLayer();
+            case 1 -> stack.duplicateLayer();
+            case 2 -> stack.removeLayer();
+            case 3 -> stack.moveLayer(random.nextBoolean() ? 1 : -1);
+            case 4 -> stack.mergeDown();
+            case 5 -> stack.setOpacity(stack.getActive(), random.nextInt(5) / 4f);
+            case 6 -> {
+                LayerStack.Layer layer = stack.getLayers().get(random.nextInt(stack.getLayers().size()));
+                if (random.nextBoolean()) stack.setVisible(layer, !layer.isVisible());
+                else stack.setBlendMode(layer, BlendMode.values()[random.nextInt(BlendMode.values().length)]);
+            }
+            case 7 -> stack.setImage(Kernel.applyFilter(stack.getActive().getImage(), Kernel.BLUR, EdgeMode.CLAMP, 0));
+            default -> paint(stack, random);
+        }
+        if (random.nextInt(4) == 0) {
+            stack.setActive(stack.getLayers().get(random.nextInt(stack.getLayers().size())));
+        }
+    }
+
+    // Fills a random rectangle, which may cross tile edges or stay inside one tile, with a random color
+    private static void paint(LayerStack stack, Random random) {
+        int x = random.nextInt(WIDTH);
+        int y = random.nextInt(HEIGHT);
+        Rectangle area = new Rectangle(x, y, 1 + random.nextInt(WIDTH - x), 1 + random.nextInt(HEIGHT - y));
+        int color = random.nextInt();
+        int[] pixels = PixelBuffer.of(stack.getActive().getImage()).getPixels();
+        for (int row = area.y; row < area.y + area.height; row++) {
+            Arrays.fill(pixels, row * WIDTH + area.x, row * WIDTH + area.x + area.width, color);
+        }
+        stack.markChanged(area);
+    }
+
+    private static boolean same(State first, State second) {
+        if (!first.layers.equals(second.layers) || !first.properties.equals(second.properties)) return false;
+        for (int i = 0; i < first.pixels.size(); i++) {
+            if (!Arrays.equals(first.pixels.get(i), second.pixels.get(i))) return false;
+        }
+        return true;
+    }
+}
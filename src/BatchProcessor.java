@@ -0,0 +1,512 @@
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Applies a filter chain to many image files without the GUI.
+
+ Files go through three stages, decode, filter and encode, each on its own thread pool and connected
+ by bounded queues, so a slow stage holds back the ones before it instead of letting images pile up.
+ On top of that, each image reserves its estimated heap use from a shared budget before it is
+ decoded and gives it back once it is written, which bounds memory by bytes rather than by count.
+ Images that fit run through one FilterPipeline, so only the source and the result exist at full size;
+ images too large for the budget are processed out of core through TiledImage, one at a time.
+
+ Outputs keep each input's path relative to the input directory or the glob's base, so a recursive
+ glob recreates its subdirectories, and a run in which two inputs would share an output file is
+ refused before anything is written.
+
+ A file that fails at any stage is reported and counted, and the run goes on with the others. That
+ includes Errors such as running out of heap on one image: a stage thread that died instead would
+ leave the stages before it blocked on a full queue.
+
+ Each image is filtered on one thread, so the ParallelExecutor is set to a parallelism of 1 and the
+ cores are used by working on several images at once.
+
+ Usage: java PhotoEditor --batch <input directory or glob> <output directory> <filters> [options]
+ */
+public class BatchProcessor {
+    private static final String USAGE = """
+            Usage: java PhotoEditor --batch <input directory or glob> <output directory> <filters> [options]
+              <filters>          comma-separated chain, e.g. grayscale,gaussian,sharpen or smooth-blur:10
+                                 available: %s
+              --format <name>    output format (default: the input file's format)
+              --edges <mode>     wrap, clamp, mirror or constant (default: clamp)
+              --decoders <n>     decoding threads
+              --workers <n>      filtering threads
+              --encoders <n>     encoding threads
+              --queue <n>        images waiting between two stages
+              --memory <MB>      heap budget for images in flight
+            """;
+
+    private static final Map<String, ColorOp> COLOR_FILTERS = new LinkedHashMap<>();
+    private static final Map<String, Kernel> KERNEL_FILTERS = new LinkedHashMap<>();
+    static {
+        COLOR_FILTERS.put("grayscale", ColorOps.GRAYSCALE);
+        COLOR_FILTERS.put("invert", ColorOps.INVERT);
+        COLOR_FILTERS.put("shift-colors", ColorOps.SHIFT_COLORS);
+        COLOR_FILTERS.put("red", ColorOps.RED_ONLY);
+        COLOR_FILTERS.put("green", ColorOps.GREEN_ONLY);
+        COLOR_FILTERS.put("blue", ColorOps.BLUE_ONLY);
+        COLOR_FILTERS.put("remove-red", ColorOps.REMOVE_RED);
+        COLOR_FILTERS.put("remove-green", ColorOps.REMOVE_GREEN);
+        COLOR_FILTERS.put("remove-blue", ColorOps.REMOVE_BLUE);
+        KERNEL_FILTERS.put("blur", Kernel.BLUR);
+        KERNEL_FILTERS.put("sharpen", Kernel.SHARPEN);
+        KERNEL_FILTERS.put("gaussian", Kernel.GAUSSIAN_BLUR);
+        KERNEL_FILTERS.put("laplacian", Kernel.LAPLACIAN);
+    }
+
+    private final List<Step> steps;
+    private final FilterPipeline pipeline = new FilterPipeline();
+    private final Path outputDirectory;
+    private final String format;
+    private final int decoders;
+    private final int workers;
+    private final int encoders;
+    private final int queueSize;
+    private final long memoryBudget;
+    // Heap reserved by images in flight, counted in KB so that the budget fits a semaphore
+    private final Semaphore memory;
+
+    private final AtomicInteger processed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    public BatchProcessor(List<Step> steps, Path outputDirectory, String format, int decoders, int workers, int encoders,
+                          int queueSize, long memoryBudget) {
+        if (decoders < 1 || workers < 1 || encoders < 1 || queueSize < 1) throw new IllegalArgumentException("Thread and queue counts must be at least 1.");
+        this.steps = steps;
+        for (Step step : steps) step.appendTo(pipeline);
+        this.outputDirectory = outputDirectory;
+        this.format = format;
+        this.decoders = decoders;
+        this.workers = workers;
+        this.encoders = encoders;
+        this.queueSize = queueSize;
+        this.memoryBudget = memoryBudget;
+        // Fair, so that an out-of-core image waiting for the whole budget is not starved by small ones
+        memory = new Semaphore((int) Math.min(Integer.MAX_VALUE, memoryBudget >> 10), true);
+    }
+
+    /**
+     * One filter in the chain, applicable both to an image on the heap and to a TiledImage.
+     */
+    public interface Step {
+        BufferedImage apply(BufferedImage image);
+
+        void appendTo(FilterPipeline pipeline);
+
+        // May work in place and return its argument, or return a new image and leave closing the old one to the caller
+        TiledImage apply(TiledImage image) throws IOException;
+    }
+
+    private static class ColorStep implements Step {
+        final ColorOp op;
+
+        ColorStep(ColorOp op) {
+            this.op = op;
+        }
+
+        @Override
+        public BufferedImage apply(BufferedImage image) {
+            return ImageUtils.transformColors(image, op);
+        }
+
+        @Override
+        public void appendTo(FilterPipeline pipeline) {
+            pipeline.then(op);
+        }
+
+        @Override
+        public TiledImage apply(TiledImage image) {
+            image.transformColors(op);
+            return image;
+        }
+    }
+
+    private static class KernelStep implements Step {
+        final Kernel kernel;
+        final EdgeMode edgeMode;
+
+        KernelStep(Kernel kernel, EdgeMode edgeMode) {
+            this.kernel = kernel;
+            this.edgeMode = edgeMode;
+        }
+
+        @Override
+        public BufferedImage apply(BufferedImage image) {
+            return Kernel.applyFilter(image, kernel, edgeMode);
+        }
+
+        @Override
+        public void appendTo(FilterPipeline pipeline) {
+            pipeline.then(kernel, edgeMode);
+        }
+
+        @Override
+        public TiledImage apply(TiledImage image) throws IOException {
+            return image.applyFilter(kernel, edgeMode, 0xFF000000);
+        }
+    }
+
+    private static class BlurStep implements Step {
+        final int radius;
+        final boolean gaussian;
+        final EdgeMode edgeMode;
+
+        BlurStep(int radius, boolean gaussian, EdgeMode edgeMode) {
+            this.radius = radius;
+            this.gaussian = gaussian;
+            this.edgeMode = edgeMode;
+        }
+
+        @Override
+        public BufferedImage apply(BufferedImage image) {
+            return gaussian ? BoxBlur.gaussianBlur(image, radius, edgeMode) : BoxBlur.blur(image, radius, edgeMode);
+        }
+
+        @Override
+        public void appendTo(FilterPipeline pipeline) {
+            pipeline.then(this::apply, reach(), edgeMode);
+        }
+
+        @Override
+        public TiledImage apply(TiledImage image) throws IOException {
+            return image.filter(this::apply, reach(), edgeMode, 0xFF000000);
+        }
+
+        private int reach() {
+            return gaussian ? BoxBlur.gaussianReach(radius) : radius;
+        }
+    }
+
+    // Parses a chain such as "grayscale,gaussian,smooth-blur:10"; consecutive color filters are fused into one pass
+    public static List<Step> parseFilters(String chain, EdgeMode edgeMode) {
+        List<Step> steps = new ArrayList<>();
+        for (String token : chain.split(",")) {
+            String name = token.trim().toLowerCase(Locale.ROOT);
+            if (name.isEmpty()) continue;
+            ColorOp color = COLOR_FILTERS.get(name);
+            Kernel kernel = KERNEL_FILTERS.get(name);
+            if (color != null) {
+                if (!steps.isEmpty() && steps.get(steps.size() - 1) instanceof ColorStep previous) {
+                    steps.set(steps.size() - 1, new ColorStep(previous.op.andThen(color)));
+                } else {
+                    steps.add(new ColorStep(color));
+                }
+            } else if (kernel != null) {
+                steps.add(new KernelStep(kernel, edgeMode));
+            } else if (name.startsWith("box-blur:") || name.startsWith("smooth-blur:")) {
+                int radius;
+                try {
+                    radius = Integer.parseInt(name.substring(name.indexOf(':') + 1));
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Bad blur radius in " + token.trim() + ".");
+                }
+                if (radius < 0) throw new IllegalArgumentException("Blur radius cannot be negative.");
+                steps.add(new BlurStep(radius, name.startsWith("smooth"), edgeMode));
+            } else {
+                throw new IllegalArgumentException("Unknown filter: " + token.trim() + ".");
+            }
+        }
+        if (steps.isEmpty()) throw new IllegalArgumentException("Filter chain cannot be empty.");
+        return steps;
+    }
+
+    private static String filterNames() {
+        List<String> names = new ArrayList<>(COLOR_FILTERS.keySet());
+        names.addAll(KERNEL_FILTERS.keySet());
+        names.add("box-blur:<radius>");
+        names.add("smooth-blur:<radius>");
+        return String.join(", ", names);
+    }
+
+    /**
+     * An input file and its path relative to the directory or glob base it was found under.
+     */
+    public static class Input {
+        final Path source;
+        final Path relative;
+
+        Input(Path source, Path relative) {
+            this.source = source;
+            this.relative = relative;
+        }
+    }
+
+    // Lists the files of a directory, or the files matching a glob such as photos/**/*.jpg
+    public static List<Input> findInputs(String input) throws IOException {
+        Path directory = Paths.get(input);
+        if (Files.isDirectory(directory)) {
+            Set<String> suffixes = new HashSet<>();
+            for (String suffix : ImageIO.getReaderFileSuffixes()) suffixes.add(suffix.toLowerCase(Locale.ROOT));
+            try (Stream<Path> files = Files.list(directory)) {
+                return files.filter(Files::isRegularFile).filter(file -> suffixes.contains(extension(file))).sorted()
+                        .map(file -> new Input(file, file.getFileName())).toList();
+            }
+        }
+        // The glob is matched against paths under the longest leading part without wildcards
+        String normalized = input.replace('\\', '/');
+        int wildcard = normalized.length();
+        for (char c : "*?[{".toCharArray()) {
+            int index = normalized.indexOf(c);
+            if (index >= 0) wildcard = Math.min(wildcard, index);
+        }
+        int slash = normalized.lastIndexOf('/', wildcard);
+        Path base = Paths.get(slash < 0 ? "." : normalized.substring(0, slash + 1));
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + (slash < 0 ? normalized : normalized.substring(slash + 1)));
+        if (!Files.isDirectory(base)) throw new IOException("No such directory: " + base);
+        try (Stream<Path> files = Files.walk(base)) {
+            return files.filter(Files::isRegularFile).filter(file -> matcher.matches(base.relativize(file))).sorted()
+                    .map(file -> new Input(file, base.relativize(file))).toList();
+        }
+    }
+
+    private static String extension(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private static class Job {
+        final Path source;
+        final Path target;
+        BufferedImage image;
+        TiledImage tiled;
+        int reservedKB;
+
+        Job(Path source, Path target) {
+            this.source = source;
+            this.target = target;
+        }
+    }
+
+    private static final Job END = new Job(null, null);
+
+    // Where an input is written: its path under the output directory, with the output format's extension
+    private Path target(Input input) {
+        String outputFormat = format != null ? format : extension(input.source);
+        return outputDirectory.resolve(input.relative).resolveSibling(baseName(input.source) + "." + outputFormat);
+    }
+
+    // Runs the pipeline over the inputs and returns the number of files that failed
+    public int process(List<Input> inputs) throws InterruptedException {
+        // Two inputs with one target would be encoded in parallel over each other, so that is refused up front
+        Map<Path, Path> sources = new HashMap<>();
+        List<Job> jobs = new ArrayList<>();
+        for (Input input : inputs) {
+            Path target = target(input);
+            Path other = sources.putIfAbsent(target, input.source);
+            if (other != null) throw new IllegalArgumentException("Both " + other + " and " + input.source + " would be written to " + target + ".");
+            jobs.add(new Job(input.source, target));
+        }
+        ConcurrentLinkedQueue<Job> pending = new ConcurrentLinkedQueue<>(jobs);
+        BlockingQueue<Job> decoded = new ArrayBlockingQueue<>(queueSize);
+        BlockingQueue<Job> filtered = new ArrayBlockingQueue<>(queueSize);
+        ExecutorService decodePool = Executors.newFixedThreadPool(decoders);
+        ExecutorService filterPool = Executors.newFixedThreadPool(workers);
+        ExecutorService encodePool = Executors.newFixedThreadPool(encoders);
+        try {
+            List<Future<?>> decoding = new ArrayList<>();
+            for (int i = 0; i < decoders; i++) decoding.add(decodePool.submit(() -> decodeAll(pending, decoded)));
+            List<Future<?>> filtering = new ArrayList<>();
+            for (int i = 0; i < workers; i++) filtering.add(filterPool.submit(() -> filterAll(decoded, filtered)));
+            List<Future<?>> encoding = new ArrayList<>();
+            for (int i = 0; i < encoders; i++) encoding.add(encodePool.submit(() -> encodeAll(filtered)));
+
+            await(decoding);
+            for (int i = 0; i < workers; i++) decoded.put(END);
+            await(filtering);
+            for (int i = 0; i < encoders; i++) filtered.put(END);
+            await(encoding);
+        } finally {
+            decodePool.shutdownNow();
+            filterPool.shutdownNow();
+            encodePool.shutdownNow();
+        }
+        return failed.get();
+    }
+
+    private static void await(List<Future<?>> futures) throws InterruptedException {
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException ex) {
+                throw new IllegalStateException("Batch stage failed.", ex.getCause());
+            }
+        }
+    }
+
+    private Void decodeAll(Queue<Job> pending, BlockingQueue<Job> decoded) throws InterruptedException {
+        Job job;
+        while ((job = pending.poll()) != null) {
+            Path source = job.source;
+            try {
+                Dimension size = ImageLoader.readSize(source.toFile());
+                // The pipeline keeps only the source and the result at full size
+                long bytes = 2L * size.width * size.height * 4;
+                boolean inHeap = bytes <= memoryBudget && ImageLoader.fitsInHeap(size.width, size.height);
+                // Out-of-core images take the whole budget, so that they never compete with each other for the tile caches
+                int reservedKB = inHeap ? (int) Math.max(1, bytes >> 10) : (int) Math.min(Integer.MAX_VALUE, memoryBudget >> 10);
+                memory.acquire(reservedKB);
+                job.reservedKB = reservedKB;
+                if (inHeap) {
+                    job.image = ImageLoader.load(source.toFile());
+                } else {
+                    job.tiled = TiledImage.read(source.toFile());
+                }
+                decoded.put(job);
+            } catch (InterruptedException ex) {
+                release(job);
+                throw ex;
+            } catch (Throwable ex) {
+                fail(job, ex);
+            }
+        }
+        return null;
+    }
+
+    private Void filterAll(BlockingQueue<Job> decoded, BlockingQueue<Job> filtered) throws InterruptedException {
+        Job job;
+        while ((job = decoded.take()) != END) {
+            try {
+                if (job.image != null) {
+                    job.image = pipeline.apply(job.image);
+                } else {
+                    for (Step step : steps) {
+                        TiledImage previous = job.tiled;
+                        job.tiled = step.apply(previous);
+                        if (job.tiled != previous) previous.close();
+                    }
+                }
+                filtered.put(job);
+            } catch (InterruptedException ex) {
+                release(job);
+                throw ex;
+            } catch (Throwable ex) {
+                fail(job, ex);
+            }
+        }
+        return null;
+    }
+
+    private Void encodeAll(BlockingQueue<Job> filtered) throws InterruptedException {
+        Job job;
+        while ((job = filtered.take()) != END) {
+            try {
+                String outputFormat = format != null ? format : extension(job.source);
+                Path target = job.target;
+                Files.createDirectories(target.getParent());
+                if (job.image != null) {
+                    BufferedImage output = job.image;
+                    if (output.getColorModel().hasAlpha() && !ImageSaver.supportsAlpha(outputFormat)) output = withoutAlpha(output);
+                    ImageSaver.save(output, target.toFile(), outputFormat);
+                } else {
+                    job.tiled.write(target.toFile(), outputFormat);
+                }
+                processed.incrementAndGet();
+                release(job);
+            } catch (Throwable ex) {
+                fail(job, ex);
+            }
+        }
+        return null;
+    }
+
+    private static BufferedImage withoutAlpha(BufferedImage image) {
+        BufferedImage opaque = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = opaque.createGraphics();
+        g.drawImage(image, 0, 0, Color.WHITE, null);
+        g.dispose();
+        return opaque;
+    }
+
+    private static String baseName(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+
+    private void fail(Job job, Throwable ex) {
+        failed.incrementAndGet();
+        System.err.println("Failed " + job.source + ": " + (ex.getMessage() != null ? ex.getMessage() : ex));
+        release(job);
+    }
+
+    private void release(Job job) {
+        job.image = null;
+        if (job.tiled != null) {
+            try {
+                job.tiled.close();
+            } catch (IOException ignored) {
+                // The tile file is deleted on close either way
+            }
+            job.tiled = null;
+        }
+        memory.release(job.reservedKB);
+        job.reservedKB = 0;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.printf(USAGE, filterNames());
+            System.exit(2);
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        String format = null;
+        EdgeMode edgeMode = EdgeMode.CLAMP;
+        int decoders = Math.max(1, cores / 2);
+        int workers = cores;
+        int encoders = Math.max(1, cores / 2);
+        int queueSize = 2 * cores;
+        long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+        List<Step> steps;
+        try {
+            for (int i = 3; i < args.length; i++) {
+                String option = args[i];
+                if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + option + ".");
+                String value = args[++i];
+                switch (option) {
+                    case "--format" -> format = value.toLowerCase(Locale.ROOT);
+                    case "--edges" -> edgeMode = EdgeMode.valueOf(value.toUpperCase(Locale.ROOT));
+                    case "--decoders" -> decoders = Integer.parseInt(value);
+                    case "--workers" -> workers = Integer.parseInt(value);
+                    case "--encoders" -> encoders = Integer.parseInt(value);
+                    case "--queue" -> queueSize = Integer.parseInt(value);
+                    case "--memory" -> memoryBudget = Long.parseLong(value) << 20;
+                    default -> throw new IllegalArgumentException("Unknown option: " + option + ".");
+                }
+            }
+            steps = parseFilters(args[2], edgeMode);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.printf(USAGE, filterNames());
+            System.exit(2);
+            return;
+        }
+
+        try {
+            List<Input> inputs = findInputs(args[0]);
+            Path outputDirectory = Files.createDirectories(Paths.get(args[1]));
+            ParallelExecutor.setParallelism(1);
+            BatchProcessor processor = new BatchProcessor(steps, outputDirectory, format, decoders, workers, encoders, queueSize, memoryBudget);
+            long start = System.nanoTime();
+            int failures = processor.process(inputs);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            int done = processor.processed.get();
+            System.out.printf("Processed %d of %d images in %.2f s: %.2f images/s, %.3f images/s per core%n",
+                    done, inputs.size(), seconds, done / seconds, done / seconds / cores);
+            System.exit(failures == 0 ? 0 : 1);
+        } catch (IOException | InterruptedException | IllegalArgumentException ex) {
+            System.err.println("ERROR: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * How a layer's colors combine with the layers below it.
+
+ The modes are the separable blend modes of the W3C compositing spec: the blended color replaces the
+ layer's own color wherever the layers below are opaque, and the result is then drawn over them with
+ the layer's alpha and opacity as NORMAL does. Over transparent pixels every mode behaves like NORMAL.
+ */
+public enum BlendMode {
+    NORMAL("Normal"),
+    MULTIPLY("Multiply"),
+    SCREEN("Screen"),
+    OVERLAY("Overlay"),
+    DARKEN("Darken"),
+    LIGHTEN("Lighten"),
+    DIFFERENCE("Difference");
+
+    private static final byte[][] TABLES = new byte[values().length][];
+
+    public final String name;
+    BlendMode(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    // One channel of the blended color, for backdrop and source channels in [0, 255]
+    public int blend(int backdrop, int source) {
+        return switch (this) {
+            case NORMAL -> source;
+            case MULTIPLY -> (backdrop * source + 127) / 255;
+            case SCREEN -> backdrop + source - (backdrop * source + 127) / 255;
+            case OVERLAY -> backdrop < 128
+                    ? (2 * backdrop * source + 127) / 255
+                    : 255 - (2 * (255 - backdrop) * (255 - source) + 127) / 255;
+            case DARKEN -> Math.min(backdrop, source);
+            case LIGHTEN -> Math.max(backdrop, source);
+            case DIFFERENCE -> Math.abs(backdrop - source);
+        };
+    }
+
+    // blend() for every pair of channels, indexed by backdrop << 8 | source, built on first use
+    private byte[] table() {
+        synchronized (TABLES) {
+            byte[] table = TABLES[ordinal()];
+            if (table == null) {
+                table = new byte[256 * 256];
+                for (int backdrop = 0; backdrop < 256; backdrop++) {
+                    for (int source = 0; source < 256; source++) {
+                        table[backdrop << 8 | source] = (byte) blend(backdrop, source);
+                    }
+                }
+                TABLES[ordinal()] = table;
+            }
+            return table;
+        }
+    }
+
+    // Draws count source pixels over the backdrop pixels in place; alphaMask is or-ed into every source pixel and opacity is in [0, 255]
+    public void composite(int[] source, int sourceOffset, int alphaMask, int[] backdrop, int backdropOffset, int count, int opacity) {
+        byte[] table = table();
+        for (int i = 0; i < count; i++) {
+            int s = source[sourceOffset + i] | alphaMask;
+            int sourceAlpha = ((s >>> 24) * opacity + 127) / 255;
+            if (sourceAlpha == 0) continue;
+            int b = backdrop[backdropOffset + i];
+            int backdropAlpha = b >>> 24;
+            if (backdropAlpha == 0 || (sourceAlpha == 255 && this == NORMAL)) {
+                backdrop[backdropOffset + i] = sourceAlpha << 24 | (s & 0xFFFFFF);
+                continue;
+            }
+            int backdropRed = (b >> 16) & 0xFF;
+            int backdropGreen = (b >> 8) & 0xFF;
+            int backdropBlue = b & 0xFF;
+            int sourceRed = (s >> 16) & 0xFF;
+            int sourceGreen = (s >> 8) & 0xFF;
+            int sourceBlue = s & 0xFF;
+            int blendedRed = table[backdropRed << 8 | sourceRed] & 0xFF;
+            int blendedGreen = table[backdropGreen << 8 | sourceGreen] & 0xFF;
+            int blendedBlue = table[backdropBlue << 8 | sourceBlue] & 0xFF;
+            if (backdropAlpha == 255) {
+                int remaining = 255 - sourceAlpha;
+                int red = (blendedRed * sourceAlpha + backdropRed * remaining + 127) / 255;
+                int green = (blendedGreen * sourceAlpha + backdropGreen * remaining + 127) / 255;
+                int blue = (blendedBlue * sourceAlpha + backdropBlue * remaining + 127) / 255;
+                backdrop[backdropOffset + i] = 0xFF000000 | red << 16 | green << 8 | blue;
+                continue;
+            }
+            // Where the backdrop is partly transparent the layer's own color shows through in proportion, and the
+            // result is the average of that and the backdrop weighted by their coverage, both out of 255 * 255
+            int sourceWeight = sourceAlpha * 255;
+            int backdropWeight = backdropAlpha * (255 - sourceAlpha);
+            int total = sourceWeight + backdropWeight;
+            int red = mix(sourceRed, blendedRed, backdropRed, backdropAlpha, sourceWeight, backdropWeight, total);
+            int green = mix(sourceGreen, blendedGreen, backdropGreen, backdropAlpha, sourceWeight, backdropWeight, total);
+            int blue = mix(sourceBlue, blendedBlue, backdropBlue, backdropAlpha, sourceWeight, backdropWeight, total);
+            backdrop[backdropOffset + i] = (total + 127) / 255 << 24 | red << 16 | green << 8 | blue;
+        }
+    }
+
+    private static int mix(int source, int blended, int backdrop, int backdropAlpha, int sourceWeight, int backdropWeight, int total) {
+        int color = ((255 - backdropAlpha) * source + backdropAlpha * blended + 127) / 255;
+        return (color * sourceWeight + backdrop * backdropWeight + total / 2) / total;
+    }
+}
@@ -0,0 +1,143 @@
+import java.awt.image.BufferedImage;
+
+/**
+ * Box and approximate Gaussian blurs whose cost per pixel does not depend on the radius.
+
+ Each box pass keeps a running sum per channel: horizontally along each row, and vertically in one
+ sum per column that slides down the band. A Gaussian is approximated by three box passes of
+ slightly different sizes. Pixels beyond the edges are read through an EdgeMode, CLAMP by default.
+ */
+public class BoxBlur {
+    private static final int GAUSSIAN_PASSES = 3;
+
+    private BoxBlur() {}
+
+    public static BufferedImage blur(BufferedImage original, int radius) {
+        return blur(original, radius, EdgeMode.CLAMP);
+    }
+
+    public static BufferedImage blur(BufferedImage original, int radius, EdgeMode edgeMode) {
+        return blur(original, new int[] {radius}, edgeMode, 0xFF000000);
+    }
+
+    public static BufferedImage gaussianBlur(BufferedImage original, int radius) {
+        return gaussianBlur(original, radius, EdgeMode.CLAMP);
+    }
+
+    // The radius covers three standard deviations of the approximated Gaussian
+    public static BufferedImage gaussianBlur(BufferedImage original, int radius, EdgeMode edgeMode) {
+        return blur(original, gaussianBoxRadii(radius / 3.0, GAUSSIAN_PASSES), edgeMode, 0xFF000000);
+    }
+
+    // How far gaussianBlur reads from each pixel, the sum of its box radii
+    public static int gaussianReach(int radius) {
+        int reach = 0;
+        for (int boxRadius : gaussianBoxRadii(radius / 3.0, GAUSSIAN_PASSES)) {
+            reach += boxRadius;
+        }
+        return reach;
+    }
+
+    private static BufferedImage blur(BufferedImage original, int[] radii, EdgeMode edgeMode, int edgeColor) {
+        for (int radius : radii) {
+            if (radius < 0) throw new IllegalArgumentException("Blur radius cannot be negative.");
+        }
+        OperationContext.expectPasses(2 * radii.length);
+        PixelBuffer source = PixelBuffer.of(original);
+        PixelBuffer target = PixelBuffer.createCompatible(source);
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int[] src = source.getPixels();
+        int[] temp = new int[src.length];
+        int[] dst = target.getPixels();
+        int alphaMask = source.getAlphaMask();
+        for (int pass = 0; pass < radii.length; pass++) {
+            int radius = radii[pass];
+            int[] input = pass == 0 ? src : dst;
+            int passMask = pass == 0 ? alphaMask : 0;
+            ParallelExecutor.forEachBand(height, ParallelExecutor.minBandHeight(width),
+                    (startRow, endRow) -> blurRows(input, temp, width, startRow, endRow, radius, passMask, edgeMode, edgeColor));
+            // Each band primes its column sums with 2 * radius + 1 rows, so keep bands tall enough to amortise that
+            int columnBandHeight = Math.max(ParallelExecutor.minBandHeight(width), 4 * radius);
+            ParallelExecutor.forEachBand(height, columnBandHeight,
+                    (startRow, endRow) -> blurColumns(temp, dst, width, height, startRow, endRow, radius, edgeMode, edgeColor));
+        }
+        return target.getImage();
+    }
+
+    private static void blurRows(int[] src, int[] dst, int width, int startRow, int endRow, int radius, int alphaMask,
+                                 EdgeMode edgeMode, int edgeColor) {
+        float scale = 1f / (2 * radius + 1);
+        for (int row = startRow; row < endRow; row++) {
+            int offset = row * width;
+            int red = 0;
+            int green = 0;
+            int blue = 0;
+            for (int k = -radius; k <= radius; k++) {
+                int pixel = sample(src, offset, k, width, edgeMode, edgeColor);
+                red += (pixel >> 16) & 0xFF;
+                green += (pixel >> 8) & 0xFF;
+                blue += pixel & 0xFF;
+            }
+            for (int x = 0; x < width; x++) {
+                int alpha = (src[offset + x] | alphaMask) >>> 24;
+                dst[offset + x] = PixelBuffer.pack(alpha, (int) (red * scale + 0.5f), (int) (green * scale + 0.5f), (int) (blue * scale + 0.5f));
+                int added = sample(src, offset, x + radius + 1, width, edgeMode, edgeColor);
+                int removed = sample(src, offset, x - radius, width, edgeMode, edgeColor);
+                red += ((added >> 16) & 0xFF) - ((removed >> 16) & 0xFF);
+                green += ((added >> 8) & 0xFF) - ((removed >> 8) & 0xFF);
+                blue += (added & 0xFF) - (removed & 0xFF);
+            }
+        }
+    }
+
+    private static void blurColumns(int[] src, int[] dst, int width, int height, int startRow, int endRow, int radius,
+                                    EdgeMode edgeMode, int edgeColor) {
+        float scale = 1f / (2 * radius + 1);
+        int[] red = new int[width];
+        int[] green = new int[width];
+        int[] blue = new int[width];
+        for (int k = startRow - radius; k <= startRow + radius; k++) {
+            addRow(src, k, width, height, red, green, blue, 1, edgeMode, edgeColor);
+        }
+        for (int row = startRow; row < endRow; row++) {
+            int offset = row * width;
+            for (int x = 0; x < width; x++) {
+                int alpha = src[offset + x] >>> 24;
+                dst[offset + x] = PixelBuffer.pack(alpha, (int) (red[x] * scale + 0.5f), (int) (green[x] * scale + 0.5f), (int) (blue[x] * scale + 0.5f));
+            }
+            addRow(src, row + radius + 1, width, height, red, green, blue, 1, edgeMode, edgeColor);
+            addRow(src, row - radius, width, height, red, green, blue, -1, edgeMode, edgeColor);
+        }
+    }
+
+    private static void addRow(int[] src, int row, int width, int height, int[] red, int[] green, int[] blue, int sign,
+                               EdgeMode edgeMode, int edgeColor) {
+        int y = edgeMode.index(row, height);
+        for (int x = 0; x < width; x++) {
+            int pixel = y < 0 ? edgeColor : src[y * width + x];
+            red[x] += sign * ((pixel >> 16) & 0xFF);
+            green[x] += sign * ((pixel >> 8) & 0xFF);
+            blue[x] += sign * (pixel & 0xFF);
+        }
+    }
+
+    private static int sample(int[] src, int rowOffset, int x, int width, EdgeMode edgeMode, int edgeColor) {
+        int column = edgeMode.index(x, width);
+        return column < 0 ? edgeColor : src[rowOffset + column];
+    }
+
+    // Box sizes whose repeated application has the variance of a Gaussian with the given sigma
+    private static int[] gaussianBoxRadii(double sigma, int passes) {
+        int lowerSize = (int) Math.floor(Math.sqrt(12 * sigma * sigma / passes + 1));
+        if (lowerSize % 2 == 0) lowerSize--;
+        int upperSize = lowerSize + 2;
+        double idealLower = (12 * sigma * sigma - passes * lowerSize * lowerSize - 4.0 * passes * lowerSize - 3 * passes) / (-4.0 * lowerSize - 4);
+        long lowerCount = Math.round(idealLower);
+        int[] radii = new int[passes];
+        for (int i = 0; i < passes; i++) {
+            radii[i] = ((i < lowerCount ? lowerSize : upperSize) - 1) / 2;
+        }
+        return radii;
+    }
+}
@@ -0,0 +1,235 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Paints brush strokes by stamping antialiased round footprints straight into the image's pixels.
+
+ Each brush size has stamps: the coverage of a disc of that diameter at every pixel it touches, for
+ each quarter-pixel offset of its center, computed when first used and cached. A stroke places
+ stamps along its path close enough that the scallops between them stay under a tenth of a pixel,
+ carrying the leftover distance from one segment to the next so the spacing stays even however the
+ path is sampled.
+
+ Overlapping stamps must not build up at their soft edges, so a stroke keeps the highest coverage
+ each pixel has received and the pixel's value from before the stroke, and sets the pixel to the
+ color composited over that original value at that coverage. Both are kept in tiles that are only
+ created where the stroke goes. The image must be TYPE_INT_RGB or TYPE_INT_ARGB.
+ */
+public class BrushEngine {
+    private static final int PHASES = 4;
+    private static final int SUBSAMPLES = 8;
+    // Larger discs are antialiased from the distance to their edge, which is as exact as sampling at this size
+    private static final double SAMPLED_RADIUS = 4;
+    private static final double MAX_SCALLOP = 0.1;
+    private static final int CACHED_SIZES = 16;
+    private static final int TILE_SIZE = 64;
+
+    private static final Map<Integer, Stamp[]> STAMPS = new LinkedHashMap<>(CACHED_SIZES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Stamp[]> eldest) {
+            return size() > CACHED_SIZES;
+        }
+    };
+
+    private int[] pixels;
+    private int width;
+    private int height;
+    private boolean hasAlpha;
+    private int color;
+    private int diameter;
+    private double spacing;
+    private double lastX;
+    private double lastY;
+    // How far along the path the next stamp goes
+    private double untilNext;
+    private int tilesX;
+    private byte[][] coverageTiles;
+    private int[][] originalTiles;
+
+    // The coverage of a disc, 0 to 255, for the (2 * reach + 1)-pixel square around the pixel its center is in
+    private static class Stamp {
+        final int reach;
+        final int size;
+        final int[] coverage;
+        // The columns [rowStart, rowEnd) of each row that have any coverage
+        final int[] rowStart;
+        final int[] rowEnd;
+
+        // The center is offset from the middle pixel's center by (offsetX, offsetY), each in [-0.5, 0.5)
+        Stamp(int diameter, double offsetX, double offsetY) {
+            double radius = diameter / 2.0;
+            reach = (int) Math.ceil(radius + 1);
+            size = 2 * reach + 1;
+            coverage = new int[size * size];
+            rowStart = new int[size];
+            rowEnd = new int[size];
+            for (int y = 0; y < size; y++) {
+                rowStart[y] = size;
+                for (int x = 0; x < size; x++) {
+                    double dx = x - reach - offsetX;
+                    double dy = y - reach - offsetY;
+                    int value = radius > SAMPLED_RADIUS
+                            ? (int) Math.round(255 * Math.max(0, Math.min(1, radius + 0.5 - Math.sqrt(dx * dx + dy * dy))))
+                            : sample(dx, dy, radius);
+                    coverage[y * size + x] = value;
+                    if (value > 0) {
+                        rowStart[y] = Math.min(rowStart[y], x);
+                        rowEnd[y] = x + 1;
+                    }
+                }
+            }
+        }
+
+        // The coverage of the pixel centered (dx, dy) from the disc's center, by supersampling
+        private static int sample(double dx, double dy, double radius) {
+            int inside = 0;
+            for (int sy = 0; sy < SUBSAMPLES; sy++) {
+                double y = dy - 0.5 + (sy + 0.5) / SUBSAMPLES;
+                for (int sx = 0; sx < SUBSAMPLES; sx++) {
+                    double x = dx - 0.5 + (sx + 0.5) / SUBSAMPLES;
+                    if (x * x + y * y <= radius * radius) inside++;
+                }
+            }
+            return (inside * 255 + SUBSAMPLES * SUBSAMPLES / 2) / (SUBSAMPLES * SUBSAMPLES);
+        }
+    }
+
+    private static Stamp stamp(int diameter, int phaseX, int phaseY) {
+        synchronized (STAMPS) {
+            Stamp[] phases = STAMPS.computeIfAbsent(diameter, d -> new Stamp[PHASES * PHASES]);
+            int index = phaseY * PHASES + phaseX;
+            if (phases[index] == null) {
+                phases[index] = new Stamp(diameter, (double) (phaseX - PHASES / 2) / PHASES, (double) (phaseY - PHASES / 2) / PHASES);
+            }
+            return phases[index];
+        }
+    }
+
+    // Starts a stroke with a dab at start and returns the area it changed
+    public Rectangle begin(BufferedImage image, Point start, int diameter, Color color) {
+        PixelBuffer buffer = PixelBuffer.of(image);
+        if (buffer.getImage() != image) throw new IllegalArgumentException("Brush strokes need a TYPE_INT_RGB or TYPE_INT_ARGB image.");
+        pixels = buffer.getPixels();
+        width = buffer.getWidth();
+        height = buffer.getHeight();
+        hasAlpha = buffer.hasAlpha();
+        this.color = color.getRGB();
+        this.diameter = Math.max(1, diameter);
+        // Two stamps s apart leave a scallop about s * s / (4 * diameter) deep between them
+        spacing = Math.max(1, Math.sqrt(4 * MAX_SCALLOP * this.diameter));
+        tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int tiles = tilesX * ((height + TILE_SIZE - 1) / TILE_SIZE);
+        coverageTiles = new byte[tiles][];
+        originalTiles = new int[tiles][];
+        lastX = start.x;
+        lastY = start.y;
+        untilNext = spacing;
+        return stampAt(start.x, start.y);
+    }
+
+    // Continues the stroke in a straight line and returns the area it changed, or null if no stamp was placed
+    public Rectangle lineTo(Point to) {
+        if (pixels == null) throw new IllegalStateException("No stroke in progress.");
+        double dx = to.x - lastX;
+        double dy = to.y - lastY;
+        double length = Math.sqrt(dx * dx + dy * dy);
+        Rectangle changed = null;
+        double position = untilNext;
+        for (; position <= length; position += spacing) {
+            Rectangle dab = stampAt(lastX + dx * position / length, lastY + dy * position / length);
+            if (dab != null) changed = changed == null ? dab : changed.union(dab);
+        }
+        untilNext = position - length;
+        lastX = to.x;
+        lastY = to.y;
+        return changed;
+    }
+
+    // Finishes the stroke with a dab at its last point, which the spacing may have stopped short of, and returns the area it changed
+    public Rectangle end() {
+        if (pixels == null) return null;
+        Rectangle changed = stampAt(lastX, lastY);
+        pixels = null;
+        coverageTiles = null;
+        originalTiles = null;
+        return changed;
+    }
+
+    // Stamps a disc centered at (pathX, pathY), where integer coordinates are pixel centers, rounded to a quarter pixel
+    private Rectangle stampAt(double pathX, double pathY) {
+        int scaledX = (int) Math.round(pathX * PHASES);
+        int scaledY = (int) Math.round(pathY * PHASES);
+        int centerX = Math.floorDiv(scaledX + PHASES / 2, PHASES);
+        int centerY = Math.floorDiv(scaledY + PHASES / 2, PHASES);
+        Stamp stamp = stamp(diameter, scaledX - centerX * PHASES + PHASES / 2, scaledY - centerY * PHASES + PHASES / 2);
+        Rectangle area = new Rectangle(centerX - stamp.reach, centerY - stamp.reach, stamp.size, stamp.size)
+                .intersection(new Rectangle(0, 0, width, height));
+        if (area.isEmpty()) return null;
+        for (int y = area.y; y < area.y + area.height; y++) {
+            int stampRow = y - centerY + stamp.reach;
+            int left = Math.max(area.x, centerX - stamp.reach + stamp.rowStart[stampRow]);
+            int right = Math.min(area.x + area.width, centerX - stamp.reach + stamp.rowEnd[stampRow]);
+            int tileY = y / TILE_SIZE;
+            for (int x = left; x < right; ) {
+                int tileX = x / TILE_SIZE;
+                int tileIndex = tileY * tilesX + tileX;
+                byte[] coverage = coverageTiles[tileIndex];
+                if (coverage == null) coverage = createTile(tileIndex, tileX, tileY);
+                int[] original = originalTiles[tileIndex];
+                int tileEnd = Math.min(right, (tileX + 1) * TILE_SIZE);
+                int offset = (y - tileY * TILE_SIZE) * TILE_SIZE - tileX * TILE_SIZE;
+                int stampOffset = stampRow * stamp.size - centerX + stamp.reach;
+                for (; x < tileEnd; x++) {
+                    int value = stamp.coverage[stampOffset + x];
+                    if (value > (coverage[offset + x] & 0xFF)) {
+                        coverage[offset + x] = (byte) value;
+                        pixels[y * width + x] = composite(original[offset + x], value);
+                    }
+                }
+            }
+        }
+        return area;
+    }
+
+    private byte[] createTile(int index, int tileX, int tileY) {
+        byte[] coverage = new byte[TILE_SIZE * TILE_SIZE];
+        int[] original = new int[TILE_SIZE * TILE_SIZE];
+        int left = tileX * TILE_SIZE;
+        int top = tileY * TILE_SIZE;
+        int tileWidth = Math.min(TILE_SIZE, width - left);
+        for (int y = top; y < Math.min(top + TILE_SIZE, height); y++) {
+            System.arraycopy(pixels, y * width + left, original, (y - top) * TILE_SIZE, tileWidth);
+        }
+        coverageTiles[index] = coverage;
+        originalTiles[index] = original;
+        return coverage;
+    }
+
+    // The brush color at the given coverage drawn over the original pixel, as Java2D's SrcOver does
+    private int composite(int original, int coverage) {
+        int sourceAlpha = ((color >>> 24) * coverage + 127) / 255;
+        int destinationAlpha = hasAlpha ? original >>> 24 : 255;
+        if (destinationAlpha == 255) {
+            int red = blend((original >> 16) & 0xFF, (color >> 16) & 0xFF, sourceAlpha);
+            int green = blend((original >> 8) & 0xFF, (color >> 8) & 0xFF, sourceAlpha);
+            int blue = blend(original & 0xFF, color & 0xFF, sourceAlpha);
+            return 0xFF000000 | red << 16 | green << 8 | blue;
+        }
+        // Both weights are out of 255 * 255
+        int sourceWeight = sourceAlpha * 255;
+        int destinationWeight = destinationAlpha * (255 - sourceAlpha);
+        int total = sourceWeight + destinationWeight;
+        if (total == 0) return 0;
+        int red = (((color >> 16) & 0xFF) * sourceWeight + ((original >> 16) & 0xFF) * destinationWeight + total / 2) / total;
+        int green = (((color >> 8) & 0xFF) * sourceWeight + ((original >> 8) & 0xFF) * destinationWeight + total / 2) / total;
+        int blue = ((color & 0xFF) * sourceWeight + (original & 0xFF) * destinationWeight + total / 2) / total;
+        int alpha = (total + 127) / 255;
+        return alpha << 24 | red << 16 | green << 8 | blue;
+    }
+
+    private static int blend(int from, int to, int alpha) {
+        return from + ((to - from) * alpha + (to >= from ? 127 : -127)) / 255;
+    }
+}
@@ -0,0 +1,97 @@
+import javax.imageio.stream.ImageOutputStreamImpl;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An ImageOutputStream that writes to a FileChannel through a direct buffer.
+
+ ImageIO's own file stream writes through RandomAccessFile, a few bytes at a time for headers and
+ chunk lengths. Here writes collect in a buffer that goes to the channel in one call when it is full
+ or when the writer seeks elsewhere, and writes larger than the buffer go straight to the channel.
+ The channel is not closed with the stream, so the caller can force it to disk first.
+ */
+public class ChannelImageOutputStream extends ImageOutputStreamImpl {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    // The file position of the first byte in the buffer
+    private long bufferStart;
+
+    public ChannelImageOutputStream(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        flushBits();
+        prepareBuffer(1);
+        buffer.put((byte) b);
+        streamPos++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        flushBits();
+        if (len > BUFFER_SIZE) {
+            flushBuffer();
+            ByteBuffer source = ByteBuffer.wrap(b, off, len);
+            while (source.hasRemaining()) {
+                streamPos += channel.write(source, streamPos);
+            }
+            return;
+        }
+        prepareBuffer(len);
+        buffer.put(b, off, len);
+        streamPos += len;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        flushBuffer();
+        bitOffset = 0;
+        int count = channel.read(ByteBuffer.wrap(b, off, len), streamPos);
+        if (count > 0) streamPos += count;
+        return count;
+    }
+
+    @Override
+    public long length() {
+        try {
+            return Math.max(channel.size(), bufferStart + buffer.position());
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushBuffer();
+        super.close();
+    }
+
+    // Makes the buffer continue at the stream position with room for count bytes
+    private void prepareBuffer(int count) throws IOException {
+        if (streamPos != bufferStart + buffer.position() || buffer.remaining() < count) {
+            flushBuffer();
+            bufferStart = streamPos;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        long position = bufferStart;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        buffer.clear();
+        bufferStart = streamPos;
+    }
+}
@@ -0,0 +1,21 @@
+/**
+ * A point operation on packed ARGB pixels.
+
+ Any lambda can be used as a ColorOp, but the ones built by ColorOps compile to lookup tables or
+ color matrices, and consecutive ones are fused by andThen/ColorOps.compile into a single pass.
+ */
+@FunctionalInterface
+public interface ColorOp {
+    int apply(int argb);
+
+    default ColorOp andThen(ColorOp next) {
+        return ColorOps.compile(this, next);
+    }
+
+    // Applies the op to src[from..to) into dst; alphaMask is or-ed into every source pixel first
+    default void applyAll(int[] src, int[] dst, int from, int to, int alphaMask) {
+        for (int i = from; i < to; i++) {
+            dst[i] = apply(src[i] | alphaMask);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Builds and fuses ColorOps.
+
+ Per-channel operations are stored as three 256-entry lookup tables, and channel-mixing operations as
+ a 3x4 color matrix in fixed point. compile() merges consecutive tables into one table and consecutive
+ matrices into one matrix, so a chain of point operations costs one pass over the image. Alpha is
+ always passed through unchanged.
+ */
+public class ColorOps {
+    public static final ColorOp IDENTITY = channels(v -> v);
+    public static final ColorOp INVERT = channels(v -> 255 - v);
+    public static final ColorOp GRAYSCALE = matrix(new double[][] {
+            {0.299, 0.587, 0.114},
+            {0.299, 0.587, 0.114},
+            {0.299, 0.587, 0.114}
+    });
+    public static final ColorOp SHIFT_COLORS = matrix(new double[][] {
+            {0, 0, 1},
+            {1, 0, 0},
+            {0, 1, 0}
+    });
+    public static final ColorOp RED_ONLY = channels(v -> v, v -> 0, v -> 0);
+    public static final ColorOp GREEN_ONLY = channels(v -> 0, v -> v, v -> 0);
+    public static final ColorOp BLUE_ONLY = channels(v -> 0, v -> 0, v -> v);
+    public static final ColorOp REMOVE_RED = channels(v -> 0, v -> v, v -> v);
+    public static final ColorOp REMOVE_GREEN = channels(v -> v, v -> 0, v -> v);
+    public static final ColorOp REMOVE_BLUE = channels(v -> v, v -> v, v -> 0);
+
+    private ColorOps() {}
+
+    public static ColorOp channels(IntUnaryOperator transformer) {
+        return channels(transformer, transformer, transformer);
+    }
+
+    // Each operator maps a channel value in [0, 255]; results are clamped into the same range
+    public static ColorOp channels(IntUnaryOperator red, IntUnaryOperator green, IntUnaryOperator blue) {
+        return new Lut(table(red), table(green), table(blue));
+    }
+
+    private static int[] table(IntUnaryOperator transformer) {
+        int[] table = new int[256];
+        for (int v = 0; v < 256; v++) {
+            table[v] = PixelBuffer.clamp(transformer.applyAsInt(v));
+        }
+        return table;
+    }
+
+    // Rows are the output red, green and blue; columns weight the input red, green, blue and an optional constant offset
+    public static ColorOp matrix(double[][] rows) {
+        if (rows.length != 3) throw new IllegalArgumentException("Color matrix must have 3 rows.");
+        double[] coefficients = new double[12];
+        for (int i = 0; i < 3; i++) {
+            if (rows[i].length != 3 && rows[i].length != 4) throw new IllegalArgumentException("Color matrix rows must have 3 or 4 entries.");
+            System.arraycopy(rows[i], 0, coefficients, i * 4, rows[i].length);
+        }
+        return new Matrix(coefficients);
+    }
+
+    public static ColorOp compile(ColorOp... ops) {
+        List<ColorOp> stages = new ArrayList<>();
+        for (ColorOp op : ops) {
+            if (op instanceof Sequence sequence) {
+                for (ColorOp stage : sequence.stages) append(stages, stage);
+            } else {
+                append(stages, op);
+            }
+        }
+        if (stages.isEmpty()) return IDENTITY;
+        return stages.size() == 1 ? stages.get(0) : new Sequence(stages.toArray(new ColorOp[0]));
+    }
+
+    private static void append(List<ColorOp> stages, ColorOp op) {
+        if (op instanceof Matrix matrix && matrix.isDiagonal()) op = matrix.toLut();
+        ColorOp previous = stages.isEmpty() ? null : stages.get(stages.size() - 1);
+        if (previous instanceof Lut first && op instanceof Lut second) {
+            stages.set(stages.size() - 1, first.then(second));
+        } else if (previous instanceof Matrix first && op instanceof Matrix second && first.staysInRange()) {
+            stages.set(stages.size() - 1, first.then(second));
+        } else {
+            stages.add(op);
+        }
+    }
+
+    static class Lut implements ColorOp {
+        private final int[] red;
+        private final int[] green;
+        private final int[] blue;
+
+        Lut(int[] red, int[] green, int[] blue) {
+            this.red = red;
+            this.green = green;
+            this.blue = blue;
+        }
+
+        Lut then(Lut next) {
+            int[] fusedRed = new int[256];
+            int[] fusedGreen = new int[256];
+            int[] fusedBlue = new int[256];
+            for (int v = 0; v < 256; v++) {
+                fusedRed[v] = next.red[red[v]];
+                fusedGreen[v] = next.green[green[v]];
+                fusedBlue[v] = next.blue[blue[v]];
+            }
+            return new Lut(fusedRed, fusedGreen, fusedBlue);
+        }
+
+        @Override
+        public int apply(int argb) {
+            return (argb & 0xFF000000) | (red[(argb >> 16) & 0xFF] << 16) | (green[(argb >> 8) & 0xFF] << 8) | blue[argb & 0xFF];
+        }
+
+        @Override
+        public void applyAll(int[] src, int[] dst, int from, int to, int alphaMask) {
+            int[] red = this.red;
+            int[] green = this.green;
+            int[] blue = this.blue;
+            for (int i = from; i < to; i++) {
+                int argb = src[i] | alphaMask;
+                dst[i] = (argb & 0xFF000000) | (red[(argb >> 16) & 0xFF] << 16) | (green[(argb >> 8) & 0xFF] << 8) | blue[argb & 0xFF];
+            }
+        }
+    }
+
+    static class Matrix implements ColorOp {
+        private static final int SHIFT = 12;
+        private static final int ONE = 1 << SHIFT;
+
+        private final double[] coefficients;
+        private final int[] fixed = new int[12];
+
+        Matrix(double[] coefficients) {
+            this.coefficients = coefficients;
+            for (int i = 0; i < 12; i++) {
+                // The rounding half is folded into the offset column
+                fixed[i] = (int) Math.round(coefficients[i] * ONE) + (i % 4 == 3 ? ONE / 2 : 0);
+            }
+        }
+
+        boolean isDiagonal() {
+            for (int row = 0; row < 3; row++) {
+                for (int col = 0; col < 3; col++) {
+                    if (row != col && coefficients[row * 4 + col] != 0) return false;
+                }
+            }
+            return true;
+        }
+
+        Lut toLut() {
+            int[][] tables = new int[3][256];
+            for (int channel = 0; channel < 3; channel++) {
+                for (int v = 0; v < 256; v++) {
+                    tables[channel][v] = PixelBuffer.clamp((fixed[channel * 4 + channel] * v + fixed[channel * 4 + 3]) >> SHIFT);
+                }
+            }
+            return new Lut(tables[0], tables[1], tables[2]);
+        }
+
+        // Fusing two matrices drops the clamp between them, which is only exact if this one never leaves [0, 255]
+        boolean staysInRange() {
+            for (int row = 0; row < 3; row++) {
+                double low = coefficients[row * 4 + 3];
+                double high = low;
+                for (int col = 0; col < 3; col++) {
+                    double c = coefficients[row * 4 + col];
+                    low += Math.min(c, 0) * 255;
+                    high += Math.max(c, 0) * 255;
+                }
+                if (low < 0 || high > 255.5) return false;
+            }
+            return true;
+        }
+
+        Matrix then(Matrix next) {
+            double[] fused = new double[12];
+            for (int row = 0; row < 3; row++) {
+                for (int col = 0; col < 4; col++) {
+                    double sum = col == 3 ? next.coefficients[row * 4 + 3] : 0;
+                    for (int k = 0; k < 3; k++) {
+                        sum += next.coefficients[row * 4 + k] * coefficients[k * 4 + col];
+                    }
+                    fused[row * 4 + col] = sum;
+                }
+            }
+            return new Matrix(fused);
+        }
+
+        @Override
+        public int apply(int argb) {
+            int[] m = fixed;
+            int r = (argb >> 16) & 0xFF;
+            int g = (argb >> 8) & 0xFF;
+            int b = argb & 0xFF;
+            int red = PixelBuffer.clamp((m[0] * r + m[1] * g + m[2] * b + m[3]) >> SHIFT);
+            int green = PixelBuffer.clamp((m[4] * r + m[5] * g + m[6] * b + m[7]) >> SHIFT);
+            int blue = PixelBuffer.clamp((m[8] * r + m[9] * g + m[10] * b + m[11]) >> SHIFT);
+            return (argb & 0xFF000000) | (red << 16) | (green << 8) | blue;
+        }
+
+        @Override
+        public void applyAll(int[] src, int[] dst, int from, int to, int alphaMask) {
+            SimdKernels simd = SimdKernels.get();
+            if (simd != null) {
+                simd.applyMatrix(fixed, SHIFT, src, dst, from, to, alphaMask);
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                dst[i] = apply(src[i] | alphaMask);
+            }
+        }
+    }
+
+    static class Sequence implements ColorOp {
+        private final ColorOp[] stages;
+
+        Sequence(ColorOp[] stages) {
+            this.stages = stages;
+        }
+
+        @Override
+        public int apply(int argb) {
+            for (ColorOp stage : stages) {
+                argb = stage.apply(argb);
+            }
+            return argb;
+        }
+
+        @Override
+        public void applyAll(int[] src, int[] dst, int from, int to, int alphaMask) {
+            stages[0].applyAll(src, dst, from, to, alphaMask);
+            for (int i = 1; i < stages.length; i++) {
+                stages[i].applyAll(dst, dst, from, to, 0);
+            }
+        }
+    }
+}
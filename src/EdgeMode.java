@@ -0,0 +1,39 @@
+/**
+ * How filters read pixels that fall outside the image.
+
+ WRAP continues on the opposite edge, CLAMP repeats the nearest edge pixel, MIRROR reflects the image
+ about its edge pixels, and CONSTANT reads a fixed color.
+ */
+public enum EdgeMode {
+    WRAP("Wrap around"),
+    CLAMP("Extend edges"),
+    MIRROR("Mirror"),
+    CONSTANT("Constant color");
+
+    public final String name;
+    EdgeMode(String name) {
+        this.name = name;
+    }
+
+    // Maps a coordinate onto [0, length), or returns -1 for coordinates that read the constant color
+    public int index(int i, int length) {
+        if (i >= 0 && i < length) return i;
+        return switch (this) {
+            case WRAP -> Math.floorMod(i, length);
+            case CLAMP -> i < 0 ? 0 : length - 1;
+            case MIRROR -> {
+                if (length == 1) yield 0;
+                int period = 2 * (length - 1);
+                int folded = Math.floorMod(i, period);
+                yield folded < length ? folded : period - folded;
+            }
+            case CONSTANT -> -1;
+        };
+    }
+
+    public int sample(int[] pixels, int width, int height, int x, int y, int constant) {
+        int column = index(x, width);
+        int row = index(y, height);
+        return column < 0 || row < 0 ? constant : pixels[row * width + column];
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * Convolves an image with a large kernel through the fast Fourier transform.
+
+ The image is processed in overlapping tiles (overlap-save), so the transforms stay a fixed size no
+ matter how big the image is, and tiles are spread over ParallelExecutor bands. Each tile is filled
+ from the source through the same EdgeMode as direct convolution. Red and green are
+ transformed together as the real and imaginary parts of one complex signal, which works because the
+ kernel is real, so each tile needs two forward and two inverse transforms.
+ */
+class FftConvolver {
+    private static final int MIN_TILE_SIZE = 256;
+
+    private final int kernelWidth;
+    private final int kernelHeight;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final Fft rowFft;
+    private final Fft columnFft;
+    private final double[] kernelReal;
+    private final double[] kernelImaginary;
+
+    FftConvolver(double[] weights, int kernelWidth, int kernelHeight, int imageWidth, int imageHeight) {
+        this.kernelWidth = kernelWidth;
+        this.kernelHeight = kernelHeight;
+        tileWidth = tileSize(kernelWidth, imageWidth);
+        tileHeight = tileSize(kernelHeight, imageHeight);
+        rowFft = new Fft(tileWidth);
+        columnFft = new Fft(tileHeight);
+        // Kernel.applyFilter correlates, so the kernel is flipped to turn the transform's convolution into correlation
+        kernelReal = new double[tileWidth * tileHeight];
+        kernelImaginary = new double[kernelReal.length];
+        for (int i = 0; i < kernelHeight; i++) {
+            for (int j = 0; j < kernelWidth; j++) {
+                kernelReal[i * tileWidth + j] = weights[(kernelHeight - 1 - i) * kernelWidth + (kernelWidth - 1 - j)];
+            }
+        }
+        transform(kernelReal, kernelImaginary, false, new double[Math.max(tileWidth, tileHeight) * 2]);
+    }
+
+    private static int tileSize(int kernelSize, int imageSize) {
+        int size = Math.max(MIN_TILE_SIZE, nextPowerOfTwo(2 * kernelSize));
+        return Math.min(size, nextPowerOfTwo(imageSize + kernelSize - 1));
+    }
+
+    private static int nextPowerOfTwo(int value) {
+        int power = Integer.highestOneBit(value);
+        return power == value ? power : power << 1;
+    }
+
+    // Estimated floating-point operations per output pixel for the transforms and spectrum products of one tile
+    static double estimatedCost(int kernelWidth, int kernelHeight, int imageWidth, int imageHeight) {
+        int width = tileSize(kernelWidth, imageWidth);
+        int height = tileSize(kernelHeight, imageHeight);
+        double area = (double) width * height;
+        double transforms = 4 * area * (Math.log(area) / Math.log(2)) * 2;
+        double validArea = (double) Math.min(width - kernelWidth + 1, imageWidth) * Math.min(height - kernelHeight + 1, imageHeight);
+        return (transforms + 8 * area) / validArea;
+    }
+
+    // A positive divisor marks integer weights over that divisor, whose exact sums are recovered before rounding
+    void apply(PixelBuffer source, PixelBuffer target, EdgeMode edgeMode, int edgeColor, int divisor) {
+        int[] src = source.getPixels();
+        int[] dst = target.getPixels();
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int alphaMask = source.getAlphaMask();
+        int stepX = tileWidth - kernelWidth + 1;
+        int stepY = tileHeight - kernelHeight + 1;
+        int tileColumns = (width + stepX - 1) / stepX;
+        int tileRows = (height + stepY - 1) / stepY;
+        ParallelExecutor.forEachBand(tileRows, 1, (startTileRow, endTileRow) -> {
+            int area = tileWidth * tileHeight;
+            double[] redGreenReal = new double[area];
+            double[] redGreenImaginary = new double[area];
+            double[] blueReal = new double[area];
+            double[] blueImaginary = new double[area];
+            double[] scratch = new double[Math.max(tileWidth, tileHeight) * 2];
+            int[] columns = new int[tileWidth];
+            for (int tileRow = startTileRow; tileRow < endTileRow; tileRow++) {
+                for (int tileColumn = 0; tileColumn < tileColumns; tileColumn++) {
+                    int originX = tileColumn * stepX;
+                    int originY = tileRow * stepY;
+                    for (int x = 0; x < tileWidth; x++) {
+                        columns[x] = edgeMode.index(originX + x - kernelWidth/2, width);
+                    }
+                    for (int y = 0; y < tileHeight; y++) {
+                        int sourceRow = edgeMode.index(originY + y - kernelHeight/2, height);
+                        for (int x = 0; x < tileWidth; x++) {
+                            int pixel = sourceRow < 0 || columns[x] < 0 ? edgeColor : src[sourceRow * width + columns[x]];
+                            int index = y * tileWidth + x;
+                            redGreenReal[index] = (pixel >> 16) & 0xFF;
+                            redGreenImaginary[index] = (pixel >> 8) & 0xFF;
+                            blueReal[index] = pixel & 0xFF;
+                            blueImaginary[index] = 0;
+                        }
+                    }
+                    transform(redGreenReal, redGreenImaginary, false, scratch);
+                    transform(blueReal, blueImaginary, false, scratch);
+                    multiply(redGreenReal, redGreenImaginary);
+                    multiply(blueReal, blueImaginary);
+                    transform(redGreenReal, redGreenImaginary, true, scratch);
+                    transform(blueReal, blueImaginary, true, scratch);
+
+                    int endX = Math.min(originX + stepX, width);
+                    int endY = Math.min(originY + stepY, height);
+                    for (int row = originY; row < endY; row++) {
+                        for (int col = originX; col < endX; col++) {
+                            int index = (row - originY + kernelHeight - 1) * tileWidth + (col - originX + kernelWidth - 1);
+                            int alpha = (src[row * width + col] | alphaMask) >>> 24;
+                            dst[row * width + col] = PixelBuffer.pack(alpha, toChannel(redGreenReal[index], divisor),
+                                    toChannel(redGreenImaginary[index], divisor), toChannel(blueReal[index], divisor));
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private static int toChannel(double value, int divisor) {
+        if (divisor <= 0) return PixelBuffer.clamp((int) Math.round(value));
+        long sum = Math.round(value * divisor);
+        return PixelBuffer.clamp((int) Math.floorDiv(sum + divisor / 2, divisor));
+    }
+
+    private void multiply(double[] real, double[] imaginary) {
+        for (int i = 0; i < real.length; i++) {
+            double re = real[i] * kernelReal[i] - imaginary[i] * kernelImaginary[i];
+            double im = real[i] * kernelImaginary[i] + imaginary[i] * kernelReal[i];
+            real[i] = re;
+            imaginary[i] = im;
+        }
+    }
+
+    private void transform(double[] real, double[] imaginary, boolean inverse, double[] scratch) {
+        for (int y = 0; y < tileHeight; y++) {
+            rowFft.transform(real, imaginary, y * tileWidth, 1, inverse, scratch);
+        }
+        for (int x = 0; x < tileWidth; x++) {
+            columnFft.transform(real, imaginary, x, tileWidth, inverse, scratch);
+        }
+    }
+
+    /**
+     * In-place iterative radix-2 transform of a power-of-two length, with precomputed twiddles and bit reversal.
+     The inverse transform is scaled by 1/n.
+     */
+    static class Fft {
+        private final int size;
+        private final int[] reversed;
+        private final double[] cos;
+        private final double[] sin;
+
+        Fft(int size) {
+            if (Integer.bitCount(size) != 1) throw new IllegalArgumentException("FFT size must be a power of two.");
+            this.size = size;
+            reversed = new int[size];
+            int bits = Integer.numberOfTrailingZeros(size);
+            for (int i = 0; i < size; i++) {
+                reversed[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+            }
+            cos = new double[size / 2];
+            sin = new double[size / 2];
+            for (int i = 0; i < size / 2; i++) {
+                cos[i] = Math.cos(2 * Math.PI * i / size);
+                sin[i] = Math.sin(2 * Math.PI * i / size);
+            }
+        }
+
+        void transform(double[] real, double[] imaginary, int offset, int stride, boolean inverse, double[] scratch) {
+            double[] re = scratch;
+            int im = size; // imaginary parts are stored after the real parts
+            for (int i = 0; i < size; i++) {
+                int index = offset + reversed[i] * stride;
+                re[i] = real[index];
+                re[im + i] = imaginary[index];
+            }
+            double sign = inverse ? 1 : -1;
+            for (int length = 2; length <= size; length <<= 1) {
+                int half = length >> 1;
+                int twiddleStep = size / length;
+                for (int start = 0; start < size; start += length) {
+                    for (int k = 0; k < half; k++) {
+                        double wr = cos[k * twiddleStep];
+                        double wi = sign * sin[k * twiddleStep];
+                        int even = start + k;
+                        int odd = even + half;
+                        double oddRe = re[odd] * wr - re[im + odd] * wi;
+                        double oddIm = re[odd] * wi + re[im + odd] * wr;
+                        re[odd] = re[even] - oddRe;
+                        re[im + odd] = re[im + even] - oddIm;
+                        re[even] += oddRe;
+                        re[im + even] += oddIm;
+                    }
+                }
+            }
+            double scale = inverse ? 1.0 / size : 1;
+            for (int i = 0; i < size; i++) {
+                int index = offset + i * stride;
+                real[index] = re[i] * scale;
+                imaginary[index] = re[im + i] * scale;
+            }
+        }
+    }
+}
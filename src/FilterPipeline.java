@@ -0,0 +1,140 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * A chain of filters that is built up front and run over the image one tile at a time.
+
+ Nothing is computed while the chain is built. When it is applied, each output tile is produced by
+ reading the source tile plus the halo every later stage needs, then running the stages one after the
+ other on that small buffer, so intermediate results never exist at full size. Point operations have
+ no stage of their own: those at the start are applied while the source tile is copied in, and those
+ after a neighborhood filter while its result is cropped to the next stage's area, and consecutive
+ ones are compiled into one op. Tile rows are spread over ParallelExecutor bands.
+
+ A neighborhood stage sees its tile as a whole image, which gives the same result as the whole-image
+ filter because the tile's edges are either the image's edges or far enough inside the halo. That
+ does not hold for EdgeMode.WRAP, which reads from the opposite side of the image, so chains that use
+ it are run one stage at a time over the whole image instead.
+ */
+public class FilterPipeline {
+    private static final int MIN_TILE_SIZE = 256;
+
+    private final List<Stage> stages = new ArrayList<>();
+    // Point operations before the first neighborhood stage
+    private ColorOp inputOp;
+
+    private static class Stage {
+        final UnaryOperator<BufferedImage> filter;
+        final int reach;
+        final EdgeMode edgeMode;
+        ColorOp outputOp;
+
+        Stage(UnaryOperator<BufferedImage> filter, int reach, EdgeMode edgeMode) {
+            this.filter = filter;
+            this.reach = reach;
+            this.edgeMode = edgeMode;
+        }
+    }
+
+    public FilterPipeline then(ColorOp op) {
+        if (stages.isEmpty()) {
+            inputOp = inputOp == null ? op : inputOp.andThen(op);
+        } else {
+            Stage last = stages.get(stages.size() - 1);
+            last.outputOp = last.outputOp == null ? op : last.outputOp.andThen(op);
+        }
+        return this;
+    }
+
+    public FilterPipeline then(Kernel kernel, EdgeMode edgeMode) {
+        return then(kernel, edgeMode, 0xFF000000);
+    }
+
+    public FilterPipeline then(Kernel kernel, EdgeMode edgeMode, int edgeColor) {
+        int reach = Math.max(kernel.getWidth(), kernel.getHeight()) / 2;
+        return then(image -> Kernel.applyFilter(image, kernel, edgeMode, edgeColor), reach, edgeMode);
+    }
+
+    // Adds any filter that reads at most reach pixels away from each pixel and returns an image of the size it was given
+    public FilterPipeline then(UnaryOperator<BufferedImage> filter, int reach, EdgeMode edgeMode) {
+        if (reach < 0) throw new IllegalArgumentException("Filter reach cannot be negative.");
+        stages.add(new Stage(filter, reach, edgeMode));
+        return this;
+    }
+
+    public BufferedImage apply(BufferedImage image) {
+        if (stages.isEmpty()) return ImageUtils.transformColors(image, inputOp == null ? ColorOps.IDENTITY : inputOp);
+        for (Stage stage : stages) {
+            if (stage.edgeMode == EdgeMode.WRAP) return applyByStage(image);
+        }
+        PixelBuffer source = PixelBuffer.of(image);
+        PixelBuffer target = PixelBuffer.createCompatible(source);
+        int totalReach = 0;
+        for (Stage stage : stages) totalReach += stage.reach;
+        // Keeps the recomputed halo a small fraction of each tile
+        int tileSize = Math.max(MIN_TILE_SIZE, 4 * totalReach);
+        int tilesX = (source.getWidth() + tileSize - 1) / tileSize;
+        int tilesY = (source.getHeight() + tileSize - 1) / tileSize;
+        ColorOp input = inputOp == null ? null : ColorOps.compile(inputOp);
+        ParallelExecutor.forEachBand(tilesY, 1, (startRow, endRow) -> {
+            for (int tileY = startRow; tileY < endRow; tileY++) {
+                for (int tileX = 0; tileX < tilesX; tileX++) {
+                    Rectangle tile = new Rectangle(tileX * tileSize, tileY * tileSize, tileSize, tileSize)
+                            .intersection(new Rectangle(0, 0, source.getWidth(), source.getHeight()));
+                    applyToTile(source, target, tile, input);
+                }
+            }
+        });
+        return target.getImage();
+    }
+
+    private void applyToTile(PixelBuffer source, PixelBuffer target, Rectangle tile, ColorOp input) {
+        Rectangle bounds = new Rectangle(0, 0, source.getWidth(), source.getHeight());
+        // areas[k] is what stage k reads; the last area is the tile itself
+        Rectangle[] areas = new Rectangle[stages.size() + 1];
+        areas[stages.size()] = tile;
+        for (int k = stages.size() - 1; k >= 0; k--) {
+            int reach = stages.get(k).reach;
+            Rectangle next = areas[k + 1];
+            areas[k] = new Rectangle(next.x - reach, next.y - reach, next.width + 2 * reach, next.height + 2 * reach).intersection(bounds);
+        }
+        PixelBuffer current = PixelBuffer.create(areas[0].width, areas[0].height, source.hasAlpha());
+        copy(source, bounds, areas[0], current, areas[0], input);
+        for (int k = 0; k < stages.size(); k++) {
+            Stage stage = stages.get(k);
+            PixelBuffer filtered = PixelBuffer.of(stage.filter.apply(current.getImage()));
+            ColorOp output = stage.outputOp == null ? null : ColorOps.compile(stage.outputOp);
+            if (k == stages.size() - 1) {
+                copy(filtered, areas[k], tile, target, bounds, output);
+            } else {
+                current = PixelBuffer.create(areas[k + 1].width, areas[k + 1].height, source.hasAlpha());
+                copy(filtered, areas[k], areas[k + 1], current, areas[k + 1], output);
+            }
+        }
+    }
+
+    // Copies area (in image coordinates) from a buffer covering fromArea into one covering toArea, applying op on the way
+    private static void copy(PixelBuffer from, Rectangle fromArea, Rectangle area, PixelBuffer to, Rectangle toArea, ColorOp op) {
+        int[] src = from.getPixels();
+        int[] dst = to.getPixels();
+        int alphaMask = from.getAlphaMask();
+        for (int y = area.y; y < area.y + area.height; y++) {
+            int dstStart = (y - toArea.y) * to.getWidth() + area.x - toArea.x;
+            System.arraycopy(src, (y - fromArea.y) * from.getWidth() + area.x - fromArea.x, dst, dstStart, area.width);
+            // The row is still in cache, so the op costs no extra pass over memory
+            if (op != null) op.applyAll(dst, dst, dstStart, dstStart + area.width, alphaMask);
+        }
+    }
+
+    private BufferedImage applyByStage(BufferedImage image) {
+        BufferedImage current = inputOp == null ? image : ImageUtils.transformColors(image, inputOp);
+        for (Stage stage : stages) {
+            current = stage.filter.apply(current);
+            if (stage.outputOp != null) current = ImageUtils.transformColors(current, stage.outputOp);
+        }
+        return current;
+    }
+}
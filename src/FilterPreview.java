@@ -0,0 +1,147 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.function.DoubleToIntFunction;
+import java.util.function.UnaryOperator;
+
+/**
+ * Shows a filter on a screen-resolution proxy of the visible part of the image.
+
+ The canvas hands over the pyramid level it is drawing from and the part of it on screen, so the
+ filter only ever runs on about as many pixels as the window has. The filter is told the scale of the
+ proxy (proxy pixels per image pixel) so that radii can be scaled down to match, and the same filter
+ at scale 1 is the full-resolution operation. The proxy is read with a halo around the visible area,
+ as wide as the filter reaches at that scale, so the view's edges look the same as in the final
+ result. The last result is cached until the view or the image changes.
+
+ Filters with no scaled-down equivalent, such as small convolution kernels, whose taps are image
+ pixels apart however far the view is zoomed out, are made with atFullResolution(). The canvas then
+ hands over the visible part of the full-resolution image instead of a pyramid level, and the filter
+ runs on it at scale 1.
+
+ With a selection, only the part of the view around the selection is filtered, and only the selected
+ pixels show the result, as apply() with the selection will leave them.
+ */
+public class FilterPreview {
+    public interface Filter {
+        BufferedImage apply(BufferedImage image, double scale);
+    }
+
+    private final Filter filter;
+    private final DoubleToIntFunction reach;
+    private final EdgeMode edgeMode;
+    private final boolean fullResolution;
+
+    private BufferedImage cachedSource;
+    private Rectangle cachedRegion;
+    private Selection cachedSelection;
+    private BufferedImage cachedResult;
+
+    // reach gives how far the filter reads around each pixel, in proxy pixels, at a given scale
+    public FilterPreview(Filter filter, DoubleToIntFunction reach) {
+        this(filter, reach, null);
+    }
+
+    // edgeMode is how the filter reads past the image's edges, or null if it never does
+    public FilterPreview(Filter filter, DoubleToIntFunction reach, EdgeMode edgeMode) {
+        this(filter, reach, edgeMode, false);
+    }
+
+    private FilterPreview(Filter filter, DoubleToIntFunction reach, EdgeMode edgeMode, boolean fullResolution) {
+        this.filter = filter;
+        this.reach = reach;
+        this.edgeMode = edgeMode;
+        this.fullResolution = fullResolution;
+    }
+
+    // A preview that is always rendered from full-resolution pixels, for a filter that reads reach pixels around each one
+    public static FilterPreview atFullResolution(UnaryOperator<BufferedImage> filter, int reach, EdgeMode edgeMode) {
+        return new FilterPreview((image, scale) -> filter.apply(image), scale -> reach, edgeMode, true);
+    }
+
+    public BufferedImage apply(BufferedImage image) {
+        return filter.apply(image, 1);
+    }
+
+    // Filters the selection's bounding box and returns the result for it, for Selection.copyInto()
+    public BufferedImage apply(BufferedImage image, Selection selection) {
+        return selection.filter(image, this::apply, getReach(), wrapsAround());
+    }
+
+    // How far the full-resolution filter reads around each pixel
+    public int getReach() {
+        return Math.max(0, reach.applyAsInt(1));
+    }
+
+    public boolean isFullResolution() {
+        return fullResolution;
+    }
+
+    public boolean wrapsAround() {
+        return edgeMode == EdgeMode.WRAP;
+    }
+
+    public void invalidate() {
+        cachedSource = null;
+        cachedResult = null;
+    }
+
+    // Filters the given region of a pyramid level that is shown at the given scale and returns the region's result
+    public BufferedImage render(BufferedImage level, Rectangle region, double scale) {
+        return render(level, region, scale, null);
+    }
+
+    // As render(), but outside the selection, if there is one, the region is left as it is
+    public BufferedImage render(BufferedImage level, Rectangle region, double scale, Selection selection) {
+        if (level == cachedSource && region.equals(cachedRegion) && selection == cachedSelection) return cachedResult;
+        BufferedImage result;
+        if (selection == null) {
+            result = filter(level, region, scale);
+        } else {
+            result = mask(level, region, scale, selection);
+        }
+        cachedSource = level;
+        cachedRegion = new Rectangle(region);
+        cachedSelection = selection;
+        cachedResult = result;
+        return cachedResult;
+    }
+
+    private BufferedImage filter(BufferedImage level, Rectangle region, double scale) {
+        int halo = Math.max(0, reach.applyAsInt(scale));
+        Rectangle padded = new Rectangle(region.x - halo, region.y - halo, region.width + 2 * halo, region.height + 2 * halo)
+                .intersection(new Rectangle(0, 0, level.getWidth(), level.getHeight()));
+        PixelBuffer source = PixelBuffer.of(level);
+        PixelBuffer proxy = PixelBuffer.create(padded.width, padded.height, source.hasAlpha());
+        for (int y = 0; y < padded.height; y++) {
+            System.arraycopy(source.getPixels(), (padded.y + y) * source.getWidth() + padded.x, proxy.getPixels(), y * padded.width, padded.width);
+        }
+        BufferedImage result = filter.apply(proxy.getImage(), scale);
+        return result.getSubimage(region.x - padded.x, region.y - padded.y, region.width, region.height);
+    }
+
+    // Filters the region only around the selection and keeps the result only at pixels whose centers are selected
+    private BufferedImage mask(BufferedImage level, Rectangle region, double scale, Selection selection) {
+        PixelBuffer source = PixelBuffer.of(level);
+        PixelBuffer result = PixelBuffer.create(region.width, region.height, source.hasAlpha());
+        for (int y = 0; y < region.height; y++) {
+            System.arraycopy(source.getPixels(), (region.y + y) * source.getWidth() + region.x, result.getPixels(), y * region.width, region.width);
+        }
+        Rectangle bounds = selection.getBounds();
+        int left = (int) Math.floor(bounds.x * scale);
+        int top = (int) Math.floor(bounds.y * scale);
+        int right = (int) Math.ceil((bounds.x + bounds.width) * scale);
+        int bottom = (int) Math.ceil((bounds.y + bounds.height) * scale);
+        Rectangle area = new Rectangle(left, top, right - left, bottom - top).intersection(region);
+        if (area.isEmpty()) return result.getImage();
+        PixelBuffer filtered = PixelBuffer.of(filter(level, area, scale));
+        for (int y = area.y; y < area.y + area.height; y++) {
+            int imageY = (int) Math.floor((y + 0.5) / scale);
+            for (int x = area.x; x < area.x + area.width; x++) {
+                if (selection.contains((int) Math.floor((x + 0.5) / scale), imageY)) {
+                    result.getPixels()[(y - region.y) * region.width + x - region.x] = filtered.getPixels()[(y - area.y) * area.width + x - area.x];
+                }
+            }
+        }
+        return result.getImage();
+    }
+}
@@ -0,0 +1,158 @@
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+/**
+ * Decodes image files through a single ImageReader, with a quick preview and region decoding.
+
+ load() opens the file once and first hands out a preview: the embedded thumbnail if the file has
+ one, or, for large images, a copy read with source subsampling, which skips most of the pixel
+ conversion. It then decodes the full image from the same stream. Inside an OperationContext the
+ full decode reports progress and stops early when cancelled.
+
+ readRegion() decodes only part of an image, optionally subsampled. Readers that support it (JPEG,
+ PNG, BMP and most others in ImageIO) skip the pixels outside the region instead of converting them.
+ All images are returned as TYPE_INT_RGB or TYPE_INT_ARGB.
+ */
+public class ImageLoader {
+    public static final int PREVIEW_SIZE = 1024;
+    // Smaller images decode fast enough that a separate preview is not worth it
+    private static final long PREVIEW_MIN_PIXELS = 1 << 22;
+
+    private ImageLoader() {}
+
+    private interface ReaderTask<T> {
+        T run(ImageReader reader) throws IOException;
+    }
+
+    private static <T> T withReader(File file, ReaderTask<T> task) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            if (input == null) throw new IOException("Cannot open " + file.getName() + ".");
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) throw new IOException("Unsupported image format.");
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, false, true);
+                return task.run(reader);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // Reads only the header
+    public static Dimension readSize(File file) throws IOException {
+        return withReader(file, reader -> new Dimension(reader.getWidth(0), reader.getHeight(0)));
+    }
+
+    // Whether an image of this size can be held as an ordinary BufferedImage, leaving room for a working copy
+    public static boolean fitsInHeap(long width, long height) {
+        return width * height <= maxHeapPixels();
+    }
+
+    // The most pixels an image held as an ordinary BufferedImage can have, at 4 bytes each and 3 copies
+    public static long maxHeapPixels() {
+        return Math.min(Integer.MAX_VALUE, (Runtime.getRuntime().maxMemory() - 1) / 12);
+    }
+
+    public static BufferedImage load(File file) throws IOException {
+        return load(file, null);
+    }
+
+    // Decodes the full image, passing a low-resolution version to preview first when one can be had quickly
+    public static BufferedImage load(File file, Consumer<BufferedImage> preview) throws IOException {
+        return withReader(file, reader -> {
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            if (preview != null) {
+                if (reader.hasThumbnails(0)) {
+                    preview.accept(reader.readThumbnail(0, 0));
+                } else if ((long) width * height >= PREVIEW_MIN_PIXELS) {
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    int subsampling = (Math.max(width, height) + PREVIEW_SIZE - 1) / PREVIEW_SIZE;
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    preview.accept(read(reader, param, false));
+                }
+            }
+            return read(reader, reader.getDefaultReadParam(), true);
+        });
+    }
+
+    // Decodes the part of the image inside region (all of it if region is null), keeping every subsampling-th pixel
+    public static BufferedImage readRegion(File file, Rectangle region, int subsampling) throws IOException {
+        if (subsampling < 1) throw new IllegalArgumentException("Subsampling must be at least 1.");
+        return withReader(file, reader -> {
+            ImageReadParam param = reader.getDefaultReadParam();
+            if (region != null) {
+                Rectangle area = region.intersection(new Rectangle(0, 0, reader.getWidth(0), reader.getHeight(0)));
+                if (area.isEmpty()) throw new IllegalArgumentException("Region is outside the image.");
+                param.setSourceRegion(area);
+            }
+            if (subsampling > 1) param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            return read(reader, param, true);
+        });
+    }
+
+    private static BufferedImage read(ImageReader reader, ImageReadParam param, boolean reportProgress) throws IOException {
+        OperationContext context = OperationContext.current();
+        if (context != null) {
+            context.checkCancelled();
+            reader.addIIOReadProgressListener(new ProgressListener(context, reportProgress));
+        }
+        try {
+            BufferedImage image = reader.read(0, param);
+            if (context != null) context.checkCancelled();
+            return PixelBuffer.of(image).getImage();
+        } finally {
+            reader.removeAllIIOReadProgressListeners();
+        }
+    }
+
+    private static class ProgressListener implements IIOReadProgressListener {
+        private final OperationContext context;
+        private final boolean reportProgress;
+
+        ProgressListener(OperationContext context, boolean reportProgress) {
+            this.context = context;
+            this.reportProgress = reportProgress;
+        }
+
+        @Override
+        public void imageProgress(ImageReader source, float percentageDone) {
+            if (context.isCancelled()) source.abort();
+            else if (reportProgress) context.report(percentageDone / 100);
+        }
+
+        @Override
+        public void sequenceStarted(ImageReader source, int minIndex) {}
+
+        @Override
+        public void sequenceComplete(ImageReader source) {}
+
+        @Override
+        public void imageStarted(ImageReader source, int imageIndex) {}
+
+        @Override
+        public void imageComplete(ImageReader source) {}
+
+        @Override
+        public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {}
+
+        @Override
+        public void thumbnailProgress(ImageReader source, float percentageDone) {}
+
+        @Override
+        public void thumbnailComplete(ImageReader source) {}
+
+        @Override
+        public void readAborted(ImageReader source) {}
+    }
+}
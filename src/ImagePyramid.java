@@ -0,0 +1,171 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A mipmap pyramid of an image for drawing it at any zoom.
+
+ Level 0 is the image itself and each further level is half the size of the one below, averaged over
+ 2x2 blocks. Levels are allocated on first use and filled tile by tile, only where they are drawn.
+ invalidate() marks the tiles covering a changed area as stale on every level, so an edit costs a
+ downsample of that area once, the next time it is visible, instead of a rescale of the whole image.
+
+ The image must be TYPE_INT_RGB or TYPE_INT_ARGB so that PixelBuffer can wrap it without copying.
+ */
+public class ImagePyramid {
+    public static final int TILE_SIZE = 256;
+    // Levels stop once the image fits in a tile
+    private static final int MIN_LEVEL_SIZE = TILE_SIZE;
+
+    private BufferedImage source;
+    private PixelBuffer sourceBuffer;
+    private final List<Level> levels = new ArrayList<>();
+
+    private static class Level {
+        final int width;
+        final int height;
+        final int tilesX;
+        final int tilesY;
+        final boolean[] valid;
+        PixelBuffer buffer;
+
+        Level(int width, int height) {
+            this.width = width;
+            this.height = height;
+            tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+            tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+            valid = new boolean[tilesX * tilesY];
+        }
+    }
+
+    public void setSource(BufferedImage image) {
+        source = image;
+        sourceBuffer = image == null ? null : PixelBuffer.of(image);
+        levels.clear();
+        if (image == null) return;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        while (Math.max(width, height) > MIN_LEVEL_SIZE) {
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+            levels.add(new Level(width, height));
+        }
+    }
+
+    public BufferedImage getSource() {
+        return source;
+    }
+
+    // The coarsest level that still has at least one pixel per screen pixel at the given scale
+    public int levelFor(double scale) {
+        if (scale >= 1) return 0;
+        int level = (int) Math.floor(Math.log(1 / scale) / Math.log(2) + 1e-9);
+        return Math.max(0, Math.min(level, levels.size()));
+    }
+
+    // Marks the tiles covering an area of the source image as stale on every level
+    public void invalidate(Rectangle region) {
+        if (source == null || region == null) return;
+        for (int i = 0; i < levels.size(); i++) {
+            Level level = levels.get(i);
+            if (level.buffer == null) continue;
+            Rectangle area = scaleDown(region, i + 1).intersection(new Rectangle(0, 0, level.width, level.height));
+            if (area.isEmpty()) continue;
+            for (int tileY = area.y / TILE_SIZE; tileY <= (area.y + area.height - 1) / TILE_SIZE; tileY++) {
+                for (int tileX = area.x / TILE_SIZE; tileX <= (area.x + area.width - 1) / TILE_SIZE; tileX++) {
+                    level.valid[tileY * level.tilesX + tileX] = false;
+                }
+            }
+        }
+    }
+
+    // Returns the image of a level after bringing the given area of it (in that level's pixels) up to date
+    public BufferedImage getLevel(int index, Rectangle region) {
+        if (index == 0) return source;
+        Level level = levels.get(index - 1);
+        if (level.buffer == null) {
+            level.buffer = PixelBuffer.create(level.width, level.height, sourceBuffer.hasAlpha());
+        }
+        Rectangle area = region.intersection(new Rectangle(0, 0, level.width, level.height));
+        if (area.isEmpty()) return level.buffer.getImage();
+
+        int firstX = area.x / TILE_SIZE;
+        int firstY = area.y / TILE_SIZE;
+        int lastX = (area.x + area.width - 1) / TILE_SIZE;
+        int lastY = (area.y + area.height - 1) / TILE_SIZE;
+        Rectangle stale = null;
+        for (int tileY = firstY; tileY <= lastY; tileY++) {
+            for (int tileX = firstX; tileX <= lastX; tileX++) {
+                if (!level.valid[tileY * level.tilesX + tileX]) {
+                    Rectangle tile = tileBounds(level, tileX, tileY);
+                    stale = stale == null ? tile : stale.union(tile);
+                }
+            }
+        }
+        if (stale == null) return level.buffer.getImage();
+
+        // The level below has to be current wherever the stale tiles read from it
+        getLevel(index - 1, new Rectangle(stale.x * 2, stale.y * 2, stale.width * 2, stale.height * 2));
+        PixelBuffer parent = index == 1 ? sourceBuffer : levels.get(index - 2).buffer;
+
+        List<Rectangle> tiles = new ArrayList<>();
+        for (int tileY = firstY; tileY <= lastY; tileY++) {
+            for (int tileX = firstX; tileX <= lastX; tileX++) {
+                int tileIndex = tileY * level.tilesX + tileX;
+                if (!level.valid[tileIndex]) {
+                    tiles.add(tileBounds(level, tileX, tileY));
+                    level.valid[tileIndex] = true;
+                }
+            }
+        }
+        PixelBuffer target = level.buffer;
+        ParallelExecutor.forEachBand(tiles.size(), 1, (start, end) -> {
+            for (int i = start; i < end; i++) {
+                downsample(parent, target, tiles.get(i));
+            }
+        });
+        return level.buffer.getImage();
+    }
+
+    private static Rectangle tileBounds(Level level, int tileX, int tileY) {
+        int x = tileX * TILE_SIZE;
+        int y = tileY * TILE_SIZE;
+        return new Rectangle(x, y, Math.min(TILE_SIZE, level.width - x), Math.min(TILE_SIZE, level.height - y));
+    }
+
+    // The smallest area of a level that covers the given area of the source image
+    public static Rectangle scaleDown(Rectangle region, int level) {
+        int left = region.x >> level;
+        int top = region.y >> level;
+        int right = -(-(region.x + region.width) >> level);
+        int bottom = -(-(region.y + region.height) >> level);
+        return new Rectangle(left, top, right - left, bottom - top);
+    }
+
+    private static void downsample(PixelBuffer parent, PixelBuffer target, Rectangle area) {
+        int[] src = parent.getPixels();
+        int[] dst = target.getPixels();
+        int parentWidth = parent.getWidth();
+        int parentHeight = parent.getHeight();
+        int width = target.getWidth();
+        int alphaMask = parent.getAlphaMask();
+        for (int y = area.y; y < area.y + area.height; y++) {
+            int top = 2 * y * parentWidth;
+            int bottom = Math.min(2 * y + 1, parentHeight - 1) * parentWidth;
+            for (int x = area.x; x < area.x + area.width; x++) {
+                int left = 2 * x;
+                int right = Math.min(left + 1, parentWidth - 1);
+                int p0 = src[top + left] | alphaMask;
+                int p1 = src[top + right] | alphaMask;
+                int p2 = src[bottom + left] | alphaMask;
+                int p3 = src[bottom + right] | alphaMask;
+                int a = ((p0 >>> 24) + (p1 >>> 24) + (p2 >>> 24) + (p3 >>> 24) + 2) >> 2;
+                int r = (((p0 >> 16) & 0xFF) + ((p1 >> 16) & 0xFF) + ((p2 >> 16) & 0xFF) + ((p3 >> 16) & 0xFF) + 2) >> 2;
+                int g = (((p0 >> 8) & 0xFF) + ((p1 >> 8) & 0xFF) + ((p2 >> 8) & 0xFF) + ((p3 >> 8) & 0xFF) + 2) >> 2;
+                int b = ((p0 & 0xFF) + (p1 & 0xFF) + (p2 & 0xFF) + (p3 & 0xFF) + 2) >> 2;
+                dst[y * width + x] = PixelBuffer.pack(a, r, g, b);
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOWriteProgressListener;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Encodes images to files so that a failed or cancelled save never leaves a broken file behind.
+
+ The image is encoded into a temporary file next to the target through a ChannelImageOutputStream,
+ forced to disk and then moved over the target in one atomic rename. The quality is ImageIO's
+ compression quality: for JPEG, 1 is the best image, and for PNG, 1 is no compression and 0 is the
+ smallest file, so values near 1 make fast saves for scratch work. Inside an OperationContext the
+ encoder reports progress and stops early when cancelled.
+
+ Any RenderedImage can be saved, so callers can hand over a snapshot such as TileHistory.snapshot()
+ and keep editing while the save runs.
+ */
+public class ImageSaver {
+    public static final String[] FORMATS = {"png", "jpeg", "bmp"};
+
+    private ImageSaver() {}
+
+    public static boolean supportsAlpha(String format) {
+        String name = format.toLowerCase(Locale.ROOT);
+        return !name.equals("jpg") && !name.equals("jpeg") && !name.equals("bmp");
+    }
+
+    public static void save(RenderedImage image, File file, String format) throws IOException {
+        save(image, file, format, -1);
+    }
+
+    // A negative quality keeps the writer's default
+    public static void save(RenderedImage image, File file, String format, float quality) throws IOException {
+        if (quality > 1) throw new IllegalArgumentException("Quality cannot be more than 1.");
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) throw new IOException("No writer for format " + format + ".");
+        ImageWriter writer = writers.next();
+        Path target = file.toPath().toAbsolutePath();
+        // Created with CREATE_NEW rather than createTempFile, which would make the saved file private to the user
+        Path temp = target.resolveSibling("." + target.getFileName() + "." + Long.toHexString(System.nanoTime()) + ".tmp");
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (quality >= 0 && param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                if (param.getCompressionType() == null) param.setCompressionType(param.getCompressionTypes()[0]);
+                param.setCompressionQuality(quality);
+            }
+            OperationContext context = OperationContext.current();
+            if (context != null) {
+                context.checkCancelled();
+                writer.addIIOWriteProgressListener(new ProgressListener(context));
+            }
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+                try (ChannelImageOutputStream output = new ChannelImageOutputStream(channel)) {
+                    writer.setOutput(output);
+                    writer.write(null, new IIOImage(image, null, null), param);
+                }
+                if (context != null) context.checkCancelled();
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            writer.dispose();
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static class ProgressListener implements IIOWriteProgressListener {
+        private final OperationContext context;
+
+        ProgressListener(OperationContext context) {
+            this.context = context;
+        }
+
+        @Override
+        public void imageProgress(ImageWriter source, float percentageDone) {
+            if (context.isCancelled()) source.abort();
+            else context.report(percentageDone / 100);
+        }
+
+        @Override
+        public void imageStarted(ImageWriter source, int imageIndex) {}
+
+        @Override
+        public void imageComplete(ImageWriter source) {}
+
+        @Override
+        public void thumbnailStarted(ImageWriter source, int imageIndex, int thumbnailIndex) {}
+
+        @Override
+        public void thumbnailProgress(ImageWriter source, float percentageDone) {}
+
+        @Override
+        public void thumbnailComplete(ImageWriter source) {}
+
+        @Override
+        public void writeAborted(ImageWriter source) {}
+    }
+}
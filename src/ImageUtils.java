@@ -1,7 +1,6 @@
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.util.*;
-import java.util.function.Function;
 
 public class ImageUtils {
     private ImageUtils() {}
@@ -10,37 +9,146 @@ public class ImageUtils {
         return new BufferedImage(image.getColorModel(), image.copyData(null), image.getColorModel().isAlphaPremultiplied(), null);
     }
 
-    public static BufferedImage transformColors(BufferedImage image, Function<Color, Color> transformer) {
-        BufferedImage filteredImage = copyImage(image);
-        for (int i = 0; i < filteredImage.getWidth(); i++) {
-            for (int j = 0; j < filteredImage.getHeight(); j++) {
-                Color transformedColor = transformer.apply(new Color(filteredImage.getRGB(i, j)));
-                filteredImage.setRGB(i, j, transformedColor.getRGB());
-            }
-        }
-        return filteredImage;
+    public static BufferedImage transformColors(BufferedImage image, ColorOp transformer) {
+        PixelBuffer source = PixelBuffer.of(image);
+        PixelBuffer target = PixelBuffer.createCompatible(source);
+        int[] src = source.getPixels();
+        int[] dst = target.getPixels();
+        int alphaMask = source.getAlphaMask();
+        int width = source.getWidth();
+        ColorOp compiled = ColorOps.compile(transformer);
+        ParallelExecutor.forEachBand(source.getHeight(), ParallelExecutor.minBandHeight(width),
+                (startRow, endRow) -> compiled.applyAll(src, dst, startRow * width, endRow * width, alphaMask));
+        return target.getImage();
     }
 
     public static BufferedImage fillRegion(BufferedImage image, Point startPoint, Color fillColor) {
-        BufferedImage newImage = copyImage(image);
-        iterFloodFill(newImage, startPoint, fillColor);
-        return newImage;
+        try (Instrumentation.Span span = Instrumentation.begin("Fill region", image.getWidth(), image.getHeight())) {
+            BufferedImage newImage = copyImage(image);
+            Rectangle filled = floodFill(newImage, startPoint, fillColor, 0, false);
+            span.setPixels((long) filled.width * filled.height);
+            return newImage;
+        }
+    }
+
+    /**
+     * Fills the region around startPoint in place and returns its bounding box.
+
+     A pixel belongs to the region when its RGB distance to the start pixel is at most tolerance. With
+     eightConnected, pixels touching only at a corner are also connected. The fill works span by span:
+     it fills a whole run of the row, then pushes one seed per run in the rows above and below. Seeds go
+     on a primitive int stack, and a visited bitmap makes sure the fill ends even when the fill color
+     matches the region. findRegion() walks the same runs without filling them, for selections.
+     */
+    public static Rectangle floodFill(BufferedImage image, Point startPoint, Color fillColor, int tolerance, boolean eightConnected) {
+        PixelBuffer buffer = PixelBuffer.of(image);
+        int[] pixels = buffer.getPixels();
+        int width = buffer.getWidth();
+        int fill = fillColor.getRGB();
+        Rectangle bounds = findRegion(buffer, startPoint, tolerance, eightConnected, (y, left, right) -> {
+            Arrays.fill(pixels, y * width + left, y * width + right + 1, fill);
+        });
+        if (buffer.getImage() != image) {
+            image.setRGB(bounds.x, bounds.y, bounds.width, bounds.height, pixels, bounds.y * width + bounds.x, width);
+        }
+        return bounds;
     }
 
-    private static void iterFloodFill(BufferedImage image, Point startPoint, Color fillColor) {
-        if (startPoint.x < 0 || startPoint.x >= image.getWidth() || startPoint.y < 0 || startPoint.y >= image.getHeight()) {
+    public interface RunVisitor {
+        // Called once for each run of the region, from left to right inclusive
+        void visit(int y, int left, int right);
+    }
+
+    // Walks the region floodFill would fill, one run at a time, without changing the image, and returns its bounding box
+    public static Rectangle findRegion(BufferedImage image, Point startPoint, int tolerance, boolean eightConnected, RunVisitor visitor) {
+        return findRegion(PixelBuffer.of(image), startPoint, tolerance, eightConnected, visitor);
+    }
+
+    private static Rectangle findRegion(PixelBuffer buffer, Point startPoint, int tolerance, boolean eightConnected, RunVisitor visitor) {
+        if (startPoint.x < 0 || startPoint.x >= buffer.getWidth() || startPoint.y < 0 || startPoint.y >= buffer.getHeight()) {
             throw new IllegalArgumentException("point coordinates out of bounds.");
         }
-        int originalColor = image.getRGB(startPoint.x, startPoint.y);
-        Stack<Point> stack = new Stack<>();
-        stack.push(startPoint);
+        int[] pixels = buffer.getPixels();
+        int width = buffer.getWidth();
+        int height = buffer.getHeight();
+        int seed = pixels[startPoint.y * width + startPoint.x];
+        int seedRed = (seed >> 16) & 0xFF;
+        int seedGreen = (seed >> 8) & 0xFF;
+        int seedBlue = seed & 0xFF;
+        int maxDistance = tolerance * tolerance;
+        int reach = eightConnected ? 1 : 0;
+        long[] visited = new long[(int) (((long) width * height + 63) >>> 6)];
+        int minX = startPoint.x, maxX = startPoint.x, minY = startPoint.y, maxY = startPoint.y;
+
+        IntStack stack = new IntStack();
+        stack.push(startPoint.y * width + startPoint.x);
         while (!stack.isEmpty()) {
-            Point p = stack.pop();
-            image.setRGB(p.x, p.y, fillColor.getRGB());
-            if (p.x > 0 && image.getRGB(p.x - 1, p.y) == originalColor) stack.push(new Point(p.x - 1, p.y));
-            if (p.x < image.getWidth() - 1 && image.getRGB(p.x + 1, p.y) == originalColor) stack.push(new Point(p.x + 1, p.y));
-            if (p.y > 0 && image.getRGB(p.x, p.y - 1) == originalColor) stack.push(new Point(p.x, p.y - 1));
-            if (p.y < image.getHeight() - 1 && image.getRGB(p.x, p.y + 1) == originalColor) stack.push(new Point(p.x, p.y + 1));
+            int index = stack.pop();
+            if (isSet(visited, index)) continue;
+            int y = index / width;
+            int rowStart = y * width;
+            int left = index - rowStart;
+            int right = left;
+            while (left > 0 && !isSet(visited, rowStart + left - 1)
+                    && matches(pixels[rowStart + left - 1], seedRed, seedGreen, seedBlue, maxDistance)) left--;
+            while (right < width - 1 && !isSet(visited, rowStart + right + 1)
+                    && matches(pixels[rowStart + right + 1], seedRed, seedGreen, seedBlue, maxDistance)) right++;
+            for (int x = left; x <= right; x++) {
+                visited[(rowStart + x) >>> 6] |= 1L << (rowStart + x);
+            }
+            visitor.visit(y, left, right);
+            minX = Math.min(minX, left);
+            maxX = Math.max(maxX, right);
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+
+            int scanLeft = Math.max(0, left - reach);
+            int scanRight = Math.min(width - 1, right + reach);
+            for (int neighbor = y - 1; neighbor <= y + 1; neighbor += 2) {
+                if (neighbor < 0 || neighbor >= height) continue;
+                int neighborStart = neighbor * width;
+                boolean inRun = false;
+                for (int x = scanLeft; x <= scanRight; x++) {
+                    int candidate = neighborStart + x;
+                    if (!isSet(visited, candidate) && matches(pixels[candidate], seedRed, seedGreen, seedBlue, maxDistance)) {
+                        if (!inRun) stack.push(candidate);
+                        inRun = true;
+                    } else {
+                        inRun = false;
+                    }
+                }
+            }
+        }
+
+        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    private static boolean isSet(long[] bits, int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    private static boolean matches(int pixel, int red, int green, int blue, int maxDistance) {
+        int dr = ((pixel >> 16) & 0xFF) - red;
+        int dg = ((pixel >> 8) & 0xFF) - green;
+        int db = (pixel & 0xFF) - blue;
+        return dr * dr + dg * dg + db * db <= maxDistance;
+    }
+
+    private static class IntStack {
+        private int[] values = new int[256];
+        private int size;
+
+        void push(int value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        int pop() {
+            return values[--size];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
         }
     }
 }
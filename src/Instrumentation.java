@@ -0,0 +1,195 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures editor operations, emitting an OperationEvent for each and keeping totals per operation.
+
+ An operation is measured by a Span, opened with begin() and closed with try-with-resources. A span
+ records the wall time and the bytes allocated for the operation: those allocated by the thread that
+ opened it, plus those allocated by ParallelExecutor's pool threads while running the operation's
+ bands, which each band adds to the span open on the thread that started it. Other threads, such as
+ the event thread painting meanwhile, are not counted. The totals back the editor's stats window, and
+ with -Dphotoeditor.dumpStats=true they are printed to standard error on exit.
+ */
+public class Instrumentation {
+    private static final com.sun.management.ThreadMXBean THREADS = allocationCounter();
+    private static final Map<String, Summary> SUMMARIES = new TreeMap<>();
+    // The innermost open span on each thread; on a pool thread, the span of the band it is running
+    private static final ThreadLocal<Span> CURRENT = new ThreadLocal<>();
+
+    static {
+        if (Boolean.getBoolean("photoeditor.dumpStats")) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.print(report())));
+        }
+    }
+
+    private Instrumentation() {}
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads
+                && threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+            return threads;
+        }
+        return null;
+    }
+
+    // Bytes allocated so far by the current thread, or 0 if the JVM does not count them
+    private static long allocatedBytes() {
+        return THREADS == null ? 0 : THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    // Wraps a band so that a pool thread running it adds what it allocates to the span open on the calling thread.
+    // Bands run by the calling thread itself, or nested inside another counted band, are already in that thread's count.
+    static ParallelExecutor.BandTask counted(ParallelExecutor.BandTask task) {
+        Span span = CURRENT.get();
+        if (span == null || THREADS == null) return task;
+        return (startRow, endRow) -> {
+            if (CURRENT.get() != null) {
+                task.run(startRow, endRow);
+                return;
+            }
+            CURRENT.set(span);
+            long before = allocatedBytes();
+            try {
+                task.run(startRow, endRow);
+            } finally {
+                span.workerAllocated.add(allocatedBytes() - before);
+                CURRENT.remove();
+            }
+        };
+    }
+
+    public static Span begin(String operation, int width, int height) {
+        return new Span(operation, width, height);
+    }
+
+    public static class Span implements AutoCloseable {
+        private final OperationEvent event = new OperationEvent();
+        private final long start = System.nanoTime();
+        private final long startAllocated = allocatedBytes();
+        private final LongAdder workerAllocated = new LongAdder();
+        private final Span parent = CURRENT.get();
+        private boolean closed;
+
+        private Span(String operation, int width, int height) {
+            CURRENT.set(this);
+            event.begin();
+            event.operation = operation;
+            setSize(width, height);
+        }
+
+        // The pixels processed default to the whole image
+        public void setSize(int width, int height) {
+            event.width = width;
+            event.height = height;
+            event.pixels = (long) width * height;
+        }
+
+        public void setPixels(long pixels) {
+            event.pixels = pixels;
+        }
+
+        public void setHistoryMemory(long bytes) {
+            event.historyMemory = bytes;
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            event.end();
+            long nanos = System.nanoTime() - start;
+            long workerBytes = workerAllocated.sum();
+            event.allocated = allocatedBytes() - startAllocated + workerBytes;
+            // An enclosing span counts this thread's bytes itself, but needs to be told about the pool's
+            if (parent != null) parent.workerAllocated.add(workerBytes);
+            CURRENT.set(parent);
+            if (event.shouldCommit()) event.commit();
+            synchronized (SUMMARIES) {
+                SUMMARIES.computeIfAbsent(event.operation, Summary::new).add(nanos, event.pixels, event.allocated);
+            }
+        }
+    }
+
+    public static class Summary {
+        public final String operation;
+        private int count;
+        private long totalNanos;
+        private long maxNanos;
+        private long pixels;
+        private long allocated;
+
+        Summary(String operation) {
+            this.operation = operation;
+        }
+
+        void add(long nanos, long pixels, long allocated) {
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+            this.pixels += pixels;
+            this.allocated += allocated;
+        }
+
+        Summary copy() {
+            Summary copy = new Summary(operation);
+            copy.count = count;
+            copy.totalNanos = totalNanos;
+            copy.maxNanos = maxNanos;
+            copy.pixels = pixels;
+            copy.allocated = allocated;
+            return copy;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public long getPixels() {
+            return pixels;
+        }
+
+        public long getAllocated() {
+            return allocated;
+        }
+    }
+
+    // The totals so far, sorted by operation name
+    public static List<Summary> summaries() {
+        synchronized (SUMMARIES) {
+            List<Summary> copies = new ArrayList<>();
+            for (Summary summary : SUMMARIES.values()) copies.add(summary.copy());
+            return copies;
+        }
+    }
+
+    public static void reset() {
+        synchronized (SUMMARIES) {
+            SUMMARIES.clear();
+        }
+    }
+
+    public static String report() {
+        StringBuilder report = new StringBuilder(String.format("%-24s %7s %10s %10s %10s %12s %12s%n",
+                "Operation", "Count", "Total ms", "Mean ms", "Max ms", "MPixels/s", "MB alloc"));
+        for (Summary summary : summaries()) {
+            double totalMillis = summary.totalNanos / 1e6;
+            report.append(String.format("%-24s %7d %10.1f %10.2f %10.2f %12.1f %12.1f%n", summary.operation, summary.count,
+                    totalMillis, totalMillis / summary.count, summary.maxNanos / 1e6,
+                    summary.totalNanos == 0 ? 0 : summary.pixels * 1e3 / summary.totalNanos, summary.allocated / 1e6));
+        }
+        return report.toString();
+    }
+}
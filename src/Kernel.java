@@ -1,9 +1,20 @@
-import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.util.Arrays;
 
 public class Kernel {
     private final double[][] matrix;
     private final double multiplier;
+    private final double[] weights;
+    private final double[] rowWeights;
+    private final double[] columnWeights;
+    private final int[] integerWeights;
+    private final int divisor;
+    private final int divisorShift;
+    private final boolean exact;
+    private final int[] integerRowWeights;
+    private final int[] integerColumnWeights;
+
+    private static final int FFT_MIN_TAPS = 64;
 
     public static final Kernel BLUR = new Kernel(new double[][] {
             {1, 1, 1, 1, 1},
@@ -15,9 +26,9 @@ public class Kernel {
 
     public static final Kernel GAUSSIAN_BLUR = new Kernel(new double[][] {
             {1, 4,  6,  4,  1},
-            {4, 16, 24, 26, 4},
+            {4, 16, 24, 16, 4},
             {6, 24, 36, 24, 6},
-            {4, 16, 24, 26, 4},
+            {4, 16, 24, 16, 4},
             {1, 4,  6,  4,  1}
     }, 1.0/256.0);
 
@@ -46,6 +57,152 @@ public class Kernel {
         }
         this.matrix = matrix;
         this.multiplier = multiplier;
+        weights = new double[matrix.length * rowLength];
+        for (int i = 0; i < matrix.length; i++) {
+            for (int j = 0; j < rowLength; j++) {
+                weights[i * rowLength + j] = matrix[i][j] * multiplier;
+            }
+        }
+        double[][] factors = factor(weights, matrix.length, rowLength);
+        rowWeights = factors == null ? null : factors[0];
+        columnWeights = factors == null ? null : factors[1];
+
+        int[] exactWeights = exactWeights(matrix, multiplier);
+        exact = exactWeights != null;
+        if (exact) {
+            integerWeights = exactWeights;
+            divisor = multiplier >= 1 || multiplier <= -1 ? 1 : (int) Math.round(1 / Math.abs(multiplier));
+        } else {
+            int shift = fixedShift(weights);
+            integerWeights = new int[weights.length];
+            for (int i = 0; i < weights.length; i++) {
+                integerWeights[i] = (int) Math.round(weights[i] * (1 << shift));
+            }
+            divisor = 1 << shift;
+        }
+        divisorShift = Integer.bitCount(divisor) == 1 ? Integer.numberOfTrailingZeros(divisor) : -1;
+        int[][] integerFactors = exact && rowWeights != null ? factorIntegers(integerWeights, matrix.length, rowLength) : null;
+        integerRowWeights = integerFactors == null ? null : integerFactors[0];
+        integerColumnWeights = integerFactors == null ? null : integerFactors[1];
+    }
+
+    // Integer weights whose sum over divisor reproduces the kernel exactly, for integral matrices scaled by n or 1/n
+    private static int[] exactWeights(double[][] matrix, double multiplier) {
+        if (multiplier == 0) return null;
+        double scale;
+        if (Math.abs(multiplier) >= 1) {
+            scale = multiplier;
+            if (!isInteger(scale)) return null;
+        } else {
+            double inverse = 1 / Math.abs(multiplier);
+            if (!isInteger(inverse) || inverse > Integer.MAX_VALUE) return null;
+            scale = Math.signum(multiplier);
+        }
+        int width = matrix[0].length;
+        int[] weights = new int[matrix.length * width];
+        long total = 0;
+        for (int i = 0; i < matrix.length; i++) {
+            for (int j = 0; j < width; j++) {
+                if (!isInteger(matrix[i][j])) return null;
+                double weight = Math.rint(matrix[i][j]) * Math.rint(scale);
+                total += (long) Math.abs(weight);
+                if (total > Integer.MAX_VALUE / 512) return null;
+                weights[i * width + j] = (int) weight;
+            }
+        }
+        return weights;
+    }
+
+    private static boolean isInteger(double value) {
+        return Math.abs(value - Math.rint(value)) < 1e-9 * Math.max(1, Math.abs(value));
+    }
+
+    // As many fractional bits as keep a sum of 255-valued taps, plus the rounding half, inside an int
+    private static int fixedShift(double[] weights) {
+        double total = 0;
+        for (double weight : weights) {
+            total += Math.abs(weight);
+        }
+        int shift = 16;
+        while (shift > 0 && (255 * total + 1) * (1 << shift) >= Integer.MAX_VALUE) shift--;
+        return shift;
+    }
+
+    // Integer row and column vectors whose outer product is exactly the given weights, or null
+    private static int[][] factorIntegers(int[] weights, int height, int width) {
+        int pivot = 0;
+        for (int i = 1; i < weights.length; i++) {
+            if (Math.abs(weights[i]) > Math.abs(weights[pivot])) pivot = i;
+        }
+        if (weights[pivot] == 0) return null;
+        int pivotRow = pivot / width;
+        int pivotColumn = pivot % width;
+        int divisor = 0;
+        for (int j = 0; j < width; j++) {
+            divisor = gcd(divisor, Math.abs(weights[pivotRow * width + j]));
+        }
+        int[] row = new int[width];
+        int[] column = new int[height];
+        for (int j = 0; j < width; j++) {
+            row[j] = weights[pivotRow * width + j] / divisor;
+        }
+        for (int i = 0; i < height; i++) {
+            int weight = weights[i * width + pivotColumn];
+            if (weight % row[pivotColumn] != 0) return null;
+            column[i] = weight / row[pivotColumn];
+        }
+        for (int i = 0; i < height; i++) {
+            for (int j = 0; j < width; j++) {
+                if (column[i] * row[j] != weights[i * width + j]) return null;
+            }
+        }
+        return new int[][] {row, column};
+    }
+
+    private static int gcd(int a, int b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+
+    public Kernel(double[] row, double[] column) {
+        this(row, column, 1);
+    }
+
+    public Kernel(double[] row, double[] column, double multiplier) {
+        this(outerProduct(row, column), multiplier);
+    }
+
+    private static double[][] outerProduct(double[] row, double[] column) {
+        if (row.length == 0 || column.length == 0) throw new IllegalArgumentException("Vectors cannot be empty.");
+        double[][] matrix = new double[column.length][row.length];
+        for (int i = 0; i < column.length; i++) {
+            for (int j = 0; j < row.length; j++) {
+                matrix[i][j] = column[i] * row[j];
+            }
+        }
+        return matrix;
+    }
+
+    // Splits a rank-1 kernel into a row vector (carrying the scale) and a column vector, or returns null
+    private static double[][] factor(double[] weights, int height, int width) {
+        int pivot = 0;
+        for (int i = 1; i < weights.length; i++) {
+            if (Math.abs(weights[i]) > Math.abs(weights[pivot])) pivot = i;
+        }
+        double pivotWeight = weights[pivot];
+        if (pivotWeight == 0) return null;
+        double[] row = new double[width];
+        double[] column = new double[height];
+        System.arraycopy(weights, (pivot / width) * width, row, 0, width);
+        for (int i = 0; i < height; i++) {
+            column[i] = weights[i * width + pivot % width] / pivotWeight;
+        }
+        double tolerance = Math.abs(pivotWeight) * 1e-9;
+        for (int i = 0; i < height; i++) {
+            for (int j = 0; j < width; j++) {
+                if (Math.abs(column[i] * row[j] - weights[i * width + j]) > tolerance) return null;
+            }
+        }
+        return new double[][] {row, column};
     }
 
     public double getPixel(int row, int col) {
@@ -60,30 +217,287 @@ public class Kernel {
         return matrix[0].length;
     }
 
+    public boolean isSeparable() {
+        return rowWeights != null;
+    }
+
+    // Whether the kernel has rational weights that the integer paths reproduce without any rounding error
+    public boolean isExact() {
+        return exact;
+    }
+
+    // Rounds sum / divisor to the nearest integer, halves rounding up
+    private int divide(int sum) {
+        return divisorShift >= 0 ? (sum + (divisor >> 1)) >> divisorShift : Math.floorDiv(sum + (divisor >> 1), divisor);
+    }
+
     public static BufferedImage applyFilter(BufferedImage original, Kernel kernel) {
-        BufferedImage image = ImageUtils.copyImage(original);
-        for (int row = 0; row < image.getHeight(); row++) {
-            for (int col = 0; col < image.getWidth(); col++) {
-                int red = 0;
-                int green = 0;
-                int blue = 0;
-                for (int i = 0; i < kernel.getHeight(); i++) {
-                    for (int j = 0; j < kernel.getWidth(); j++) {
-                        int x = Math.floorMod(col + (j - kernel.getWidth()/2), image.getWidth());
-                        int y = Math.floorMod(row + (i - kernel.getHeight()/2), image.getHeight());
-                        Color pixelColor = new Color(original.getRGB(x, y));
-                        red += pixelColor.getRed() * kernel.getPixel(i, j);
-                        green += pixelColor.getGreen() * kernel.getPixel(i, j);
-                        blue += pixelColor.getBlue() * kernel.getPixel(i, j);
+        return applyFilter(original, kernel, EdgeMode.CLAMP);
+    }
+
+    public static BufferedImage applyFilter(BufferedImage original, Kernel kernel, EdgeMode edgeMode) {
+        return applyFilter(original, kernel, edgeMode, 0xFF000000);
+    }
+
+    public static BufferedImage applyFilter(BufferedImage original, Kernel kernel, EdgeMode edgeMode, int edgeColor) {
+        PixelBuffer source = PixelBuffer.of(original);
+        PixelBuffer target = PixelBuffer.createCompatible(source);
+        if (kernel.isSeparable() && kernel.getWidth() > 1 && kernel.getHeight() > 1) {
+            if (kernel.integerRowWeights != null) {
+                applyIntegerSeparable(source, target, kernel, edgeMode, edgeColor);
+            } else {
+                applySeparable(source, target, kernel, edgeMode, edgeColor);
+            }
+        } else if (prefersFft(kernel, source.getWidth(), source.getHeight())) {
+            new FftConvolver(kernel.weights, kernel.getWidth(), kernel.getHeight(), source.getWidth(), source.getHeight())
+                    .apply(source, target, edgeMode, edgeColor, kernel.exact ? kernel.divisor : 0);
+        } else if (SimdKernels.get() != null && kernel.divisorShift >= 0) {
+            applyVectorized(source, target, kernel, edgeMode, edgeColor);
+        } else {
+            applyDirect(source, target, kernel, edgeMode, edgeColor);
+        }
+        return target.getImage();
+    }
+
+    // Measured crossover: one estimated FFT operation costs about as much as 2/3 of a direct tap (near 9x9 kernels)
+    private static boolean prefersFft(Kernel kernel, int width, int height) {
+        int taps = kernel.getWidth() * kernel.getHeight();
+        return taps >= FFT_MIN_TAPS && FftConvolver.estimatedCost(kernel.getWidth(), kernel.getHeight(), width, height) < taps * 1.5;
+    }
+
+    // Pixels whose whole kernel footprint lies inside the image read through precomputed offsets; only the border goes through the edge mode
+    private static void applyDirect(PixelBuffer source, PixelBuffer target, Kernel kernel, EdgeMode edgeMode, int edgeColor) {
+        int[] src = source.getPixels();
+        int[] dst = target.getPixels();
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int alphaMask = source.getAlphaMask();
+        int kernelWidth = kernel.getWidth();
+        int kernelHeight = kernel.getHeight();
+        int[] weights = kernel.integerWeights;
+        int[] offsets = new int[weights.length];
+        for (int i = 0; i < kernelHeight; i++) {
+            for (int j = 0; j < kernelWidth; j++) {
+                offsets[i * kernelWidth + j] = (i - kernelHeight/2) * width + (j - kernelWidth/2);
+            }
+        }
+        int interiorLeft = Math.min(kernelWidth/2, width);
+        int interiorRight = Math.max(interiorLeft, width - (kernelWidth - 1 - kernelWidth/2));
+        int interiorTop = kernelHeight/2;
+        int interiorBottom = height - (kernelHeight - 1 - kernelHeight/2);
+        ParallelExecutor.forEachBand(height, ParallelExecutor.minBandHeight(width * weights.length), (startRow, endRow) -> {
+            for (int row = startRow; row < endRow; row++) {
+                boolean interiorRow = row >= interiorTop && row < interiorBottom;
+                int left = interiorRow ? interiorLeft : width;
+                int right = interiorRow ? interiorRight : width;
+                for (int col = 0; col < left; col++) {
+                    dst[row * width + col] = convolveBorder(src, width, height, col, row, kernel, edgeMode, edgeColor, alphaMask);
+                }
+                for (int col = left; col < right; col++) {
+                    int center = row * width + col;
+                    int red = 0;
+                    int green = 0;
+                    int blue = 0;
+                    for (int t = 0; t < offsets.length; t++) {
+                        int pixel = src[center + offsets[t]];
+                        int weight = weights[t];
+                        red += ((pixel >> 16) & 0xFF) * weight;
+                        green += ((pixel >> 8) & 0xFF) * weight;
+                        blue += (pixel & 0xFF) * weight;
                     }
+                    dst[center] = kernel.pack(src[center] | alphaMask, red, green, blue);
+                }
+                for (int col = right; col < width; col++) {
+                    dst[row * width + col] = convolveBorder(src, width, height, col, row, kernel, edgeMode, edgeColor, alphaMask);
                 }
-                red = Math.max(Math.min(red, 255), 0);
-                green = Math.max(Math.min(green, 255), 0);
-                blue = Math.max(Math.min(blue, 255), 0);
+            }
+        });
+    }
+
+    private static void applyVectorized(PixelBuffer source, PixelBuffer target, Kernel kernel, EdgeMode edgeMode, int edgeColor) {
+        int width = source.getWidth();
+        SimdKernels simd = SimdKernels.get();
+        ParallelExecutor.forEachBand(source.getHeight(), ParallelExecutor.minBandHeight(width * kernel.integerWeights.length), (startRow, endRow) ->
+                simd.convolveBand(source.getPixels(), target.getPixels(), width, source.getHeight(), startRow, endRow, kernel.integerWeights,
+                        kernel.divisorShift, kernel.getWidth(), kernel.getHeight(), edgeMode, edgeColor, source.getAlphaMask()));
+    }
 
-                image.setRGB(col, row, new Color(red, green, blue).getRGB());
+    private static int convolveBorder(int[] src, int width, int height, int col, int row, Kernel kernel, EdgeMode edgeMode, int edgeColor, int alphaMask) {
+        int kernelWidth = kernel.getWidth();
+        int kernelHeight = kernel.getHeight();
+        int red = 0;
+        int green = 0;
+        int blue = 0;
+        for (int i = 0; i < kernelHeight; i++) {
+            for (int j = 0; j < kernelWidth; j++) {
+                int pixel = edgeMode.sample(src, width, height, col + j - kernelWidth/2, row + i - kernelHeight/2, edgeColor);
+                int weight = kernel.integerWeights[i * kernelWidth + j];
+                red += ((pixel >> 16) & 0xFF) * weight;
+                green += ((pixel >> 8) & 0xFF) * weight;
+                blue += (pixel & 0xFF) * weight;
             }
         }
-        return image;
+        return kernel.pack(src[row * width + col] | alphaMask, red, green, blue);
+    }
+
+    private int pack(int center, int red, int green, int blue) {
+        return PixelBuffer.pack(center >>> 24, PixelBuffer.clamp(divide(red)), PixelBuffer.clamp(divide(green)), PixelBuffer.clamp(divide(blue)));
+    }
+
+    private static int packRounded(int center, float red, float green, float blue) {
+        return PixelBuffer.pack(center >>> 24, PixelBuffer.clamp(Math.round(red)), PixelBuffer.clamp(Math.round(green)), PixelBuffer.clamp(Math.round(blue)));
+    }
+
+    // Exact two-pass convolution: integer row sums over the band and its halo, then integer column sums and a single rounding
+    private static void applyIntegerSeparable(PixelBuffer source, PixelBuffer target, Kernel kernel, EdgeMode edgeMode, int edgeColor) {
+        int[] src = source.getPixels();
+        int[] dst = target.getPixels();
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int alphaMask = source.getAlphaMask();
+        int kernelWidth = kernel.getWidth();
+        int kernelHeight = kernel.getHeight();
+        int[] rowWeights = kernel.integerRowWeights;
+        int[] columnWeights = kernel.integerColumnWeights;
+        int minBandHeight = ParallelExecutor.minBandHeight(width * (kernelWidth + kernelHeight));
+        ParallelExecutor.forEachBand(height, minBandHeight, (startRow, endRow) -> {
+            int bandRows = endRow - startRow + kernelHeight - 1;
+            int[] padded = new int[width + kernelWidth - 1];
+            int[] red = new int[bandRows * width];
+            int[] green = new int[red.length];
+            int[] blue = new int[red.length];
+            for (int r = 0; r < bandRows; r++) {
+                int y = edgeMode.index(startRow + r - kernelHeight/2, height);
+                if (y < 0) {
+                    Arrays.fill(padded, edgeColor);
+                } else {
+                    padRow(src, y * width, width, padded, kernelWidth/2, edgeMode, edgeColor);
+                }
+                int offset = r * width;
+                for (int x = 0; x < width; x++) {
+                    int redSum = 0;
+                    int greenSum = 0;
+                    int blueSum = 0;
+                    for (int j = 0; j < kernelWidth; j++) {
+                        int pixel = padded[x + j];
+                        int weight = rowWeights[j];
+                        redSum += ((pixel >> 16) & 0xFF) * weight;
+                        greenSum += ((pixel >> 8) & 0xFF) * weight;
+                        blueSum += (pixel & 0xFF) * weight;
+                    }
+                    red[offset + x] = redSum;
+                    green[offset + x] = greenSum;
+                    blue[offset + x] = blueSum;
+                }
+            }
+            int[] redSum = new int[width];
+            int[] greenSum = new int[width];
+            int[] blueSum = new int[width];
+            for (int row = startRow; row < endRow; row++) {
+                Arrays.fill(redSum, 0);
+                Arrays.fill(greenSum, 0);
+                Arrays.fill(blueSum, 0);
+                for (int i = 0; i < kernelHeight; i++) {
+                    int weight = columnWeights[i];
+                    int offset = (row - startRow + i) * width;
+                    for (int x = 0; x < width; x++) {
+                        redSum[x] += red[offset + x] * weight;
+                        greenSum[x] += green[offset + x] * weight;
+                        blueSum[x] += blue[offset + x] * weight;
+                    }
+                }
+                for (int x = 0; x < width; x++) {
+                    dst[row * width + x] = kernel.pack(src[row * width + x] | alphaMask, redSum[x], greenSum[x], blueSum[x]);
+                }
+            }
+        });
+    }
+
+    // Runs a horizontal pass over the band's rows plus the kernel halo, then a vertical pass into the band
+    private static void applySeparable(PixelBuffer source, PixelBuffer target, Kernel kernel, EdgeMode edgeMode, int edgeColor) {
+        int[] src = source.getPixels();
+        int[] dst = target.getPixels();
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int alphaMask = source.getAlphaMask();
+        int kernelWidth = kernel.getWidth();
+        int kernelHeight = kernel.getHeight();
+        float[] rowWeights = toFloats(kernel.rowWeights);
+        float[] columnWeights = toFloats(kernel.columnWeights);
+        int minBandHeight = ParallelExecutor.minBandHeight(width * (kernelWidth + kernelHeight));
+        ParallelExecutor.forEachBand(height, minBandHeight, (startRow, endRow) -> {
+            int bandRows = endRow - startRow + kernelHeight - 1;
+            int[] padded = new int[width + kernelWidth - 1];
+            float[] red = new float[bandRows * width];
+            float[] green = new float[red.length];
+            float[] blue = new float[red.length];
+            for (int r = 0; r < bandRows; r++) {
+                int y = edgeMode.index(startRow + r - kernelHeight/2, height);
+                if (y < 0) {
+                    Arrays.fill(padded, edgeColor);
+                } else {
+                    padRow(src, y * width, width, padded, kernelWidth/2, edgeMode, edgeColor);
+                }
+                int offset = r * width;
+                for (int x = 0; x < width; x++) {
+                    float redSum = 0;
+                    float greenSum = 0;
+                    float blueSum = 0;
+                    for (int j = 0; j < kernelWidth; j++) {
+                        int pixel = padded[x + j];
+                        float weight = rowWeights[j];
+                        redSum += ((pixel >> 16) & 0xFF) * weight;
+                        greenSum += ((pixel >> 8) & 0xFF) * weight;
+                        blueSum += (pixel & 0xFF) * weight;
+                    }
+                    red[offset + x] = redSum;
+                    green[offset + x] = greenSum;
+                    blue[offset + x] = blueSum;
+                }
+            }
+            float[] redSum = new float[width];
+            float[] greenSum = new float[width];
+            float[] blueSum = new float[width];
+            for (int row = startRow; row < endRow; row++) {
+                Arrays.fill(redSum, 0);
+                Arrays.fill(greenSum, 0);
+                Arrays.fill(blueSum, 0);
+                for (int i = 0; i < kernelHeight; i++) {
+                    float weight = columnWeights[i];
+                    int offset = (row - startRow + i) * width;
+                    for (int x = 0; x < width; x++) {
+                        redSum[x] += red[offset + x] * weight;
+                        greenSum[x] += green[offset + x] * weight;
+                        blueSum[x] += blue[offset + x] * weight;
+                    }
+                }
+                for (int x = 0; x < width; x++) {
+                    dst[row * width + x] = packRounded(src[row * width + x] | alphaMask, redSum[x], greenSum[x], blueSum[x]);
+                }
+            }
+        });
+    }
+
+    // Copies one source row into padded with leading pixels extended past both edges
+    static void padRow(int[] src, int rowOffset, int width, int[] padded, int leading, EdgeMode edgeMode, int edgeColor) {
+        int start = Math.min(leading, padded.length);
+        int end = Math.min(leading + width, padded.length);
+        for (int x = 0; x < start; x++) {
+            int column = edgeMode.index(x - leading, width);
+            padded[x] = column < 0 ? edgeColor : src[rowOffset + column];
+        }
+        System.arraycopy(src, rowOffset, padded, start, end - start);
+        for (int x = end; x < padded.length; x++) {
+            int column = edgeMode.index(x - leading, width);
+            padded[x] = column < 0 ? edgeColor : src[rowOffset + column];
+        }
+    }
+
+    private static float[] toFloats(double[] values) {
+        float[] floats = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            floats[i] = (float) values[i];
+        }
+        return floats;
     }
 }
@@ -0,0 +1,391 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The layers of a document, bottom to top, and the cached image of them flattened together.
+
+ Each layer is a TYPE_INT_RGB or TYPE_INT_ARGB image the size of the document with a name, an opacity,
+ a blend mode and a visibility flag. Edits draw straight into the active layer's image and then report
+ the area they touched with invalidate(), which only marks the composite's tiles there as stale.
+ update() recomposites the stale tiles inside an area, so a brush stroke costs a blend of the layers
+ under the stroke, however large the document, and nothing is flattened until it is shown.
+
+ While a single visible layer is shown at full opacity the composite is that layer's image itself,
+ with no copy and no compositing. The composite has alpha unless the bottom visible layer is opaque.
+
+ Every layer also remembers the area edited since the last TileHistory commit, so that a commit only
+ compares those tiles; markChanged() adds to it for the active layer.
+ */
+public class LayerStack {
+    public static final int TILE_SIZE = 128;
+
+    private final List<Layer> layers = new ArrayList<>();
+    private Layer active;
+    private int width;
+    private int height;
+    private int tilesX;
+    private int tilesY;
+    private int nextNumber;
+    // The flattened layers, or null while the single visible layer is shown as it is
+    private PixelBuffer composite;
+    private boolean[] stale;
+
+    public static class Layer {
+        private final boolean hasAlpha;
+        private String name;
+        private BufferedImage image;
+        private float opacity = 1;
+        private BlendMode blendMode = BlendMode.NORMAL;
+        private boolean visible = true;
+        // The area edited since the last history commit
+        private Rectangle uncommitted;
+
+        private Layer(String name, BufferedImage image) {
+            this.name = name;
+            this.image = image;
+            hasAlpha = image.getColorModel().hasAlpha();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // Null while the layer is not in the stack, such as after it was deleted
+        public BufferedImage getImage() {
+            return image;
+        }
+
+        public boolean hasAlpha() {
+            return hasAlpha;
+        }
+
+        public float getOpacity() {
+            return opacity;
+        }
+
+        public BlendMode getBlendMode() {
+            return blendMode;
+        }
+
+        public boolean isVisible() {
+            return visible;
+        }
+
+        @Override
+        public String toString() {
+            return visible ? name : name + " (hidden)";
+        }
+
+        // Returns the area edited since the last call and forgets it
+        Rectangle takeUncommitted() {
+            Rectangle area = uncommitted;
+            uncommitted = null;
+            return area;
+        }
+
+        private void addUncommitted(Rectangle area) {
+            uncommitted = uncommitted == null ? area : uncommitted.union(area);
+        }
+    }
+
+    // A layer's place in the stack and its properties at one point in time, as TileHistory records them
+    static final class LayerState {
+        final Layer layer;
+        final String name;
+        final float opacity;
+        final BlendMode blendMode;
+        final boolean visible;
+
+        private LayerState(Layer layer) {
+            this.layer = layer;
+            name = layer.name;
+            opacity = layer.opacity;
+            blendMode = layer.blendMode;
+            visible = layer.visible;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof LayerState state && layer == state.layer && name.equals(state.name)
+                    && opacity == state.opacity && blendMode == state.blendMode && visible == state.visible;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(layer), name, opacity, blendMode, visible);
+        }
+    }
+
+    // Starts over with the image as the only layer
+    public void reset(BufferedImage background) {
+        PixelBuffer buffer = PixelBuffer.of(background);
+        if (buffer.getImage() != background) throw new IllegalArgumentException("Layers need TYPE_INT_RGB or TYPE_INT_ARGB images.");
+        for (Layer layer : layers) layer.image = null;
+        layers.clear();
+        width = background.getWidth();
+        height = background.getHeight();
+        tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        nextNumber = 1;
+        active = new Layer("Background", background);
+        layers.add(active);
+        layout();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // Bottom to top
+    public List<Layer> getLayers() {
+        return Collections.unmodifiableList(layers);
+    }
+
+    public Layer getActive() {
+        return active;
+    }
+
+    public void setActive(Layer layer) {
+        if (!layers.contains(layer)) throw new IllegalArgumentException("The layer is not in this stack.");
+        active = layer;
+    }
+
+    // The flattened document; only the tiles brought up to date by update() are current
+    public BufferedImage getImage() {
+        return composite == null ? visibleLayers().get(0).image : composite.getImage();
+    }
+
+    // Marks the composite as stale inside an area of the document, or everywhere for null
+    public void invalidate(Rectangle region) {
+        if (composite == null) return;
+        Rectangle area = bounds(region);
+        if (area.isEmpty()) return;
+        for (int tileY = area.y / TILE_SIZE; tileY <= (area.y + area.height - 1) / TILE_SIZE; tileY++) {
+            for (int tileX = area.x / TILE_SIZE; tileX <= (area.x + area.width - 1) / TILE_SIZE; tileX++) {
+                stale[tileY * tilesX + tileX] = true;
+            }
+        }
+    }
+
+    // Records that the active layer's pixels changed inside an area, or everywhere for null, for the composite and the next commit
+    public void markChanged(Rectangle region) {
+        Rectangle area = bounds(region);
+        if (area.isEmpty()) return;
+        active.addUncommitted(area);
+        invalidate(area);
+    }
+
+    // Recomposites the stale tiles inside an area of the document and returns the composite
+    public BufferedImage update(Rectangle region) {
+        if (composite == null) return getImage();
+        Rectangle area = bounds(region);
+        if (area.isEmpty()) return composite.getImage();
+        List<Rectangle> tiles = new ArrayList<>();
+        for (int tileY = area.y / TILE_SIZE; tileY <= (area.y + area.height - 1) / TILE_SIZE; tileY++) {
+            for (int tileX = area.x / TILE_SIZE; tileX <= (area.x + area.width - 1) / TILE_SIZE; tileX++) {
+                int index = tileY * tilesX + tileX;
+                if (stale[index]) {
+                    tiles.add(tileBounds(tileX, tileY));
+                    stale[index] = false;
+                }
+            }
+        }
+        if (tiles.isEmpty()) return composite.getImage();
+        List<Layer> visible = visibleLayers();
+        PixelBuffer[] sources = new PixelBuffer[visible.size()];
+        for (int i = 0; i < sources.length; i++) sources[i] = PixelBuffer.of(visible.get(i).image);
+        int[] target = composite.getPixels();
+        ParallelExecutor.forEachBand(tiles.size(), 1, (start, end) -> {
+            for (int i = start; i < end; i++) {
+                Rectangle tile = tiles.get(i);
+                for (int y = tile.y; y < tile.y + tile.height; y++) {
+                    int offset = y * width + tile.x;
+                    Arrays.fill(target, offset, offset + tile.width, 0);
+                    for (int k = 0; k < sources.length; k++) {
+                        Layer layer = visible.get(k);
+                        layer.blendMode.composite(sources[k].getPixels(), offset, sources[k].getAlphaMask(),
+                                target, offset, tile.width, opacity(layer.opacity));
+                    }
+                }
+            }
+        });
+        return composite.getImage();
+    }
+
+    // Adds an empty layer above the active one and makes it active
+    public Layer addLayer() {
+        Layer layer = new Layer("Layer " + nextNumber++, PixelBuffer.create(width, height, true).getImage());
+        layers.add(layers.indexOf(active) + 1, layer);
+        active = layer;
+        layout();
+        return layer;
+    }
+
+    public Layer duplicateLayer() {
+        Layer layer = new Layer(active.name + " copy", ImageUtils.copyImage(active.image));
+        layer.opacity = active.opacity;
+        layer.blendMode = active.blendMode;
+        layer.visible = active.visible;
+        layers.add(layers.indexOf(active) + 1, layer);
+        active = layer;
+        layout();
+        return layer;
+    }
+
+    // Removes the active layer, unless it is the last one, and activates the one below it
+    public void removeLayer() {
+        if (layers.size() == 1) return;
+        int index = layers.indexOf(active);
+        layers.remove(index);
+        active.image = null;
+        active = layers.get(Math.max(0, index - 1));
+        layout();
+    }
+
+    // Moves the active layer up (positive) or down (negative) the stack by one place
+    public void moveLayer(int direction) {
+        int index = layers.indexOf(active);
+        int target = index + Integer.signum(direction);
+        if (target < 0 || target >= layers.size()) return;
+        Collections.swap(layers, index, target);
+        layout();
+    }
+
+    // Draws the active layer into the one below it with its opacity and blend mode, then removes it
+    public void mergeDown() {
+        int index = layers.indexOf(active);
+        if (index == 0) return;
+        Layer below = layers.get(index - 1);
+        if (active.visible) {
+            PixelBuffer source = PixelBuffer.of(active.image);
+            PixelBuffer target = PixelBuffer.of(below.image);
+            int[] targetPixels = target.getPixels();
+            int alphaMask = target.getAlphaMask();
+            int opacity = opacity(active.opacity);
+            ParallelExecutor.forEachBand(height, ParallelExecutor.minBandHeight(width), (startRow, endRow) -> {
+                int from = startRow * width;
+                int to = endRow * width;
+                if (alphaMask != 0) for (int i = from; i < to; i++) targetPixels[i] |= alphaMask;
+                active.blendMode.composite(source.getPixels(), from, source.getAlphaMask(), targetPixels, from, to - from, opacity);
+            });
+            below.addUncommitted(new Rectangle(width, height));
+        }
+        removeLayer();
+    }
+
+    public void setName(Layer layer, String name) {
+        layer.name = name;
+    }
+
+    public void setOpacity(Layer layer, float opacity) {
+        if (opacity < 0 || opacity > 1) throw new IllegalArgumentException("Opacity must be between 0 and 1.");
+        layer.opacity = opacity;
+        layout();
+    }
+
+    public void setBlendMode(Layer layer, BlendMode blendMode) {
+        layer.blendMode = blendMode;
+        layout();
+    }
+
+    public void setVisible(Layer layer, boolean visible) {
+        layer.visible = visible;
+        layout();
+    }
+
+    // Swaps in a new image for the active layer, such as a filter's result
+    public void setImage(BufferedImage image) {
+        if (image.getWidth() != width || image.getHeight() != height) throw new IllegalArgumentException("A layer must be the size of the document.");
+        PixelBuffer buffer = PixelBuffer.of(image);
+        if (buffer.getImage() != image || buffer.hasAlpha() != active.hasAlpha) {
+            throw new IllegalArgumentException("A layer's image must keep its TYPE_INT type.");
+        }
+        active.image = image;
+        active.addUncommitted(new Rectangle(width, height));
+        layout();
+    }
+
+    List<LayerState> states() {
+        List<LayerState> states = new ArrayList<>(layers.size());
+        for (Layer layer : layers) states.add(new LayerState(layer));
+        return states;
+    }
+
+    // Puts the stack back as it was recorded; layers that come back get a blank image for the history to fill in
+    void restore(List<LayerState> states) {
+        List<Layer> restored = new ArrayList<>(states.size());
+        for (LayerState state : states) {
+            Layer layer = state.layer;
+            layer.name = state.name;
+            layer.opacity = state.opacity;
+            layer.blendMode = state.blendMode;
+            layer.visible = state.visible;
+            if (layer.image == null) layer.image = PixelBuffer.create(width, height, layer.hasAlpha).getImage();
+            restored.add(layer);
+        }
+        for (Layer layer : layers) {
+            if (!restored.contains(layer)) layer.image = null;
+        }
+        int activeIndex = layers.indexOf(active);
+        layers.clear();
+        layers.addAll(restored);
+        if (!layers.contains(active)) active = layers.get(Math.max(0, Math.min(activeIndex, layers.size()) - 1));
+        layout();
+    }
+
+    // Whether a stack with these layers, bottom to top, flattens to an image with alpha
+    static boolean hasAlpha(List<LayerState> states) {
+        for (LayerState state : states) {
+            if (state.visible) return state.layer.hasAlpha || state.opacity < 1;
+        }
+        return true;
+    }
+
+    static int opacity(float opacity) {
+        return Math.round(opacity * 255);
+    }
+
+    // Chooses between showing the single visible layer and a composite of the right type, then marks the whole composite stale
+    private void layout() {
+        List<Layer> visible = visibleLayers();
+        if (visible.size() == 1 && visible.get(0).opacity == 1) {
+            composite = null;
+            stale = null;
+            return;
+        }
+        boolean alpha = hasAlpha(states());
+        if (composite == null || composite.getWidth() != width || composite.getHeight() != height || composite.hasAlpha() != alpha) {
+            composite = PixelBuffer.create(width, height, alpha);
+            stale = new boolean[tilesX * tilesY];
+        }
+        Arrays.fill(stale, true);
+    }
+
+    private List<Layer> visibleLayers() {
+        List<Layer> visible = new ArrayList<>(layers.size());
+        for (Layer layer : layers) {
+            if (layer.visible) visible.add(layer);
+        }
+        return visible;
+    }
+
+    private Rectangle bounds(Rectangle region) {
+        Rectangle document = new Rectangle(0, 0, width, height);
+        return region == null ? document : region.intersection(document);
+    }
+
+    private Rectangle tileBounds(int tileX, int tileY) {
+        int x = tileX * TILE_SIZE;
+        int y = tileY * TILE_SIZE;
+        return new Rectangle(x, y, Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y));
+    }
+}
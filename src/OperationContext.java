@@ -0,0 +1,100 @@
+import java.util.concurrent.CancellationException;
+import java.util.function.Supplier;
+
+/**
+ * Progress and cancellation for one long-running operation.
+
+ The thread that runs the operation installs the context with run(). ParallelExecutor picks it up on
+ that thread, checks for cancellation before each band and reports each finished band, so filters get
+ progress and cancellation without changes of their own. An operation that makes several passes over
+ the image announces how many with expectPasses(), so that progress goes from 0 to 1 once instead of
+ once per pass. The first announcement wins, which lets an outer operation speak for the ones it calls.
+ */
+public class OperationContext {
+    private static final ThreadLocal<OperationContext> CURRENT = new ThreadLocal<>();
+
+    private volatile boolean cancelled;
+    private volatile double progress;
+    private int expectedPasses;
+    private int completedPasses;
+    private long passTotal;
+    private long passDone;
+
+    public static OperationContext current() {
+        return CURRENT.get();
+    }
+
+    public <T> T run(Supplier<T> operation) {
+        OperationContext previous = CURRENT.get();
+        CURRENT.set(this);
+        try {
+            return operation.get();
+        } finally {
+            CURRENT.set(previous);
+        }
+    }
+
+    // Runs work with no context installed, so that band loops nested inside a tracked band neither report nor count as passes
+    static void runDetached(Runnable work) {
+        OperationContext previous = CURRENT.get();
+        CURRENT.remove();
+        try {
+            work.run();
+        } finally {
+            CURRENT.set(previous);
+        }
+    }
+
+    public static void expectPasses(int passes) {
+        OperationContext context = current();
+        if (context != null) {
+            synchronized (context) {
+                if (context.expectedPasses == 0) context.expectedPasses = passes;
+            }
+        }
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void checkCancelled() {
+        if (cancelled) throw new CancellationException("Operation cancelled.");
+    }
+
+    // The fraction of the operation done so far, in [0, 1]; safe to read from any thread
+    public double getProgress() {
+        return progress;
+    }
+
+    // For operations that track their own progress rather than through ParallelExecutor bands
+    public synchronized void report(double fraction) {
+        progress = Math.max(progress, Math.min(1, fraction));
+    }
+
+    synchronized void beginPass(long units) {
+        passTotal = Math.max(1, units);
+        passDone = 0;
+    }
+
+    synchronized void advance(long units) {
+        passDone += units;
+        update();
+    }
+
+    synchronized void endPass() {
+        completedPasses++;
+        passDone = 0;
+        update();
+    }
+
+    private void update() {
+        double passes = Math.max(expectedPasses, completedPasses + (passDone > 0 ? 1 : 0));
+        double done = completedPasses + (double) passDone / passTotal;
+        progress = Math.max(progress, Math.min(1, done / Math.max(1, passes)));
+    }
+}
@@ -0,0 +1,37 @@
+import jdk.jfr.*;
+
+/**
+ * A Flight Recorder event for one editor operation: a filter, a fill, a history step, a load or save,
+ * or a repaint of the canvas.
+
+ The event's duration is the operation's wall time. Record with, for example,
+ java -XX:StartFlightRecording=filename=editor.jfr PhotoEditor, and look for photoeditor.Operation.
+ */
+@Name("photoeditor.Operation")
+@Label("Editor Operation")
+@Category("Photo Editor")
+@Description("An editor operation with the size of the image it worked on and the memory it used")
+@StackTrace(false)
+public class OperationEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Image Width")
+    int width;
+
+    @Label("Image Height")
+    int height;
+
+    @Label("Pixels Processed")
+    long pixels;
+
+    @Label("Bytes Allocated")
+    @Description("Allocated by all threads while the operation ran")
+    @DataAmount
+    long allocated;
+
+    @Label("History Memory")
+    @Description("Bytes held by the undo history when the operation finished")
+    @DataAmount
+    long historyMemory;
+}
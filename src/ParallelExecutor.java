@@ -0,0 +1,117 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits image work into horizontal bands of rows and runs them on a shared ForkJoinPool.
+
+ Every band writes only its own output rows. Filters that need neighbouring rows (the kernel halo)
+ read them from the unmodified source image, so bands never have to wait on each other.
+
+ The parallelism level defaults to the number of available processors and can be changed with the
+ photoeditor.parallelism system property or setParallelism().
+
+ When the calling thread runs inside an OperationContext, each band first checks for cancellation and
+ then reports its rows as progress.
+
+ Bands run on pool threads add the bytes they allocate to the caller's open Instrumentation span.
+ */
+public class ParallelExecutor {
+    private static final int MIN_PIXELS_PER_BAND = 1 << 14;
+    private static final int BANDS_PER_THREAD = 4;
+    private static final int SEQUENTIAL_STEPS = 16;
+
+    private static ForkJoinPool pool = new ForkJoinPool(defaultParallelism());
+
+    private ParallelExecutor() {}
+
+    public interface BandTask {
+        void run(int startRow, int endRow);
+    }
+
+    private static int defaultParallelism() {
+        int parallelism = Integer.getInteger("photoeditor.parallelism", Runtime.getRuntime().availableProcessors());
+        return Math.max(1, parallelism);
+    }
+
+    public static synchronized int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    public static synchronized void setParallelism(int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be at least 1.");
+        if (parallelism == pool.getParallelism()) return;
+        // The old pool is not shut down: a forEachBand that already took it must still be able to finish.
+        // Its worker threads are daemons that exit once they have been idle for a while.
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        return pool;
+    }
+
+    public static int minBandHeight(int width) {
+        return Math.max(1, MIN_PIXELS_PER_BAND / Math.max(1, width));
+    }
+
+    public static void forEachBand(int height, int minBandHeight, BandTask task) {
+        if (height <= 0) return;
+        task = Instrumentation.counted(task);
+        ForkJoinPool executor = getPool();
+        int bandHeight = Math.max(minBandHeight, height / (executor.getParallelism() * BANDS_PER_THREAD));
+        OperationContext context = OperationContext.current();
+        if (context != null) {
+            forEachBand(height, minBandHeight, Math.max(1, bandHeight), task, context, executor);
+        } else if (executor.getParallelism() == 1 || bandHeight >= height) {
+            task.run(0, height);
+        } else {
+            executor.invoke(new BandAction(task, 0, height, Math.max(1, bandHeight)));
+        }
+    }
+
+    // Runs the bands for an operation that can be cancelled, reporting each finished band
+    private static void forEachBand(int height, int minBandHeight, int bandHeight, BandTask task, OperationContext context,
+                                    ForkJoinPool executor) {
+        context.checkCancelled();
+        context.beginPass(height);
+        BandTask tracked = (startRow, endRow) -> {
+            context.checkCancelled();
+            OperationContext.runDetached(() -> task.run(startRow, endRow));
+            context.advance(endRow - startRow);
+        };
+        if (executor.getParallelism() == 1 || bandHeight >= height) {
+            // Bands are still used one after another so that progress and cancellation stay fine-grained
+            int steps = Math.max(1, Math.min(height / Math.max(1, minBandHeight), SEQUENTIAL_STEPS));
+            int stepHeight = (height + steps - 1) / steps;
+            for (int startRow = 0; startRow < height; startRow += stepHeight) {
+                tracked.run(startRow, Math.min(height, startRow + stepHeight));
+            }
+        } else {
+            executor.invoke(new BandAction(tracked, 0, height, bandHeight));
+        }
+        context.endPass();
+    }
+
+    private static class BandAction extends RecursiveAction {
+        private final BandTask task;
+        private final int startRow;
+        private final int endRow;
+        private final int bandHeight;
+
+        BandAction(BandTask task, int startRow, int endRow, int bandHeight) {
+            this.task = task;
+            this.startRow = startRow;
+            this.endRow = endRow;
+            this.bandHeight = bandHeight;
+        }
+
+        @Override
+        protected void compute() {
+            if (endRow - startRow <= bandHeight) {
+                task.run(startRow, endRow);
+            } else {
+                int middle = startRow + (endRow - startRow) / 2;
+                invokeAll(new BandAction(task, startRow, middle, bandHeight), new BandAction(task, middle, endRow, bandHeight));
+            }
+        }
+    }
+}
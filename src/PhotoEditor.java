@@ -1,20 +1,33 @@
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.Stack;
-import java.util.function.Function;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 
 public class PhotoEditor {
     public enum EditorMode {
         DRAW("Draw"),
         FILL("Fill color"),
-        PICK("Color picker");
+        PICK("Color picker"),
+        SELECT_RECTANGLE("Select rectangle"),
+        LASSO("Lasso"),
+        MAGIC_WAND("Magic wand");
 
         public final String name;
         EditorMode(String name) {
@@ -23,21 +36,34 @@ public class PhotoEditor {
     }
 
     public static final int DEFAULT_BRUSH_SIZE = 10;
+    public static final int MAX_BRUSH_SIZE = 200;
+    public static final int DEFAULT_FILL_TOLERANCE = 0;
     public static final Color DEFAULT_DRAW_COLOR = Color.BLACK;
     public static final EditorMode DEFAULT_MODE = EditorMode.DRAW;
+    public static final EdgeMode DEFAULT_EDGE_MODE = EdgeMode.CLAMP;
 
-    private final Stack<BufferedImage> undoStack = new Stack<>();
-    private final Stack<BufferedImage> redoStack = new Stack<>();
+    private final TileHistory history = new TileHistory(TileHistory.defaultBudget());
+    private final LayerStack layers = new LayerStack();
+    private OperationContext runningOperation;
 
+    // The active layer's pixels, which tools and filters edit
     private BufferedImage image;
-    private Graphics2D imageGraphics;
+    // Filters only change the selected pixels; null selects the whole image
+    private Selection selection;
     private final JFrame mainFrame = new JFrame("Photo Editor - Macrohard Draw");
+    private final LayersPanel layersPanel = new LayersPanel();
+    private final UndoButton undoButton = new UndoButton();
+    private final RedoButton redoButton = new RedoButton();
     private final PhotoCanvas canvas = new PhotoCanvas(750, 750);
     private final JFileChooser chooser = new JFileChooser();
 
     private int drawSize = DEFAULT_BRUSH_SIZE;
+    private int fillTolerance = DEFAULT_FILL_TOLERANCE;
+    private boolean fillDiagonally = false;
+    private boolean previewFilters = true;
     private Color drawColor = DEFAULT_DRAW_COLOR;
     private EditorMode currentMode = EditorMode.DRAW;
+    private EdgeMode edgeMode = DEFAULT_EDGE_MODE;
 
     public PhotoEditor() {
         boolean badUI = false;
@@ -61,139 +87,584 @@ public class PhotoEditor {
 
     public void newImage(int width, int height) {
         image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        updateImageGraphics();
-        imageGraphics.setColor(Color.WHITE);
-        imageGraphics.fillRect(0, 0, image.getWidth(), image.getHeight());
-        undoStack.clear();
-        redoStack.clear();
-        updateHistory();
-        if (canvas != null) canvas.repaint();
+        Arrays.fill(PixelBuffer.of(image).getPixels(), Color.WHITE.getRGB());
+        layers.reset(image);
+        history.reset(layers);
+        historyChanged();
+        layersPanel.refresh();
+        selection = null;
+        if (canvas != null) canvas.resetView();
     }
 
     public void newImage(File file) {
-        try {
-            BufferedImage newImage = ImageIO.read(file);
-            if (newImage != null) {
-                image = ImageIO.read(file);
-                updateImageGraphics();
-                undoStack.clear();
-                redoStack.clear();
-                updateHistory();
-            } else
-                JOptionPane.showMessageDialog(mainFrame, "Macrohard Draw cannot read this file.\nIt is likely an unsupported file type.");
-            if (canvas != null) canvas.repaint();
-        } catch (IOException ex) {
-            JOptionPane.showMessageDialog(mainFrame, "ERROR: " + ex.getMessage());
-        }
+        newImage(file, null, 1);
     }
 
-    public void setImage(BufferedImage newImage) {
-        image = ImageUtils.copyImage(newImage);
-        updateImageGraphics();
+    // Decodes the file on a worker thread, showing a quick low-resolution version until the full image is in
+    public void newImage(File file, Rectangle region, int subsampling) {
+        if (isBusy()) return;
+        OperationContext context = new OperationContext();
+        ProgressDialog dialog = new ProgressDialog("Opening " + file.getName(), context);
+        runningOperation = context;
+        new SwingWorker<BufferedImage, BufferedImage>() {
+            @Override
+            protected BufferedImage doInBackground() {
+                return context.run(() -> {
+                    try (Instrumentation.Span span = Instrumentation.begin("Open", 0, 0)) {
+                        BufferedImage loaded = region == null && subsampling == 1
+                                ? ImageLoader.load(file, preview -> publish(preview))
+                                : ImageLoader.readRegion(file, region, subsampling);
+                        span.setSize(loaded.getWidth(), loaded.getHeight());
+                        return loaded;
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+            }
+
+            @Override
+            protected void process(List<BufferedImage> previews) {
+                if (!isDone()) canvas.setLoadingPreview(previews.get(previews.size() - 1));
+            }
+
+            @Override
+            protected void done() {
+                dialog.close();
+                runningOperation = null;
+                canvas.setLoadingPreview(null);
+                try {
+                    image = get();
+                    layers.reset(image);
+                    history.reset(layers);
+                    historyChanged();
+                    layersPanel.refresh();
+                    selection = null;
+                    canvas.resetView();
+                } catch (InterruptedException | CancellationException ex) {
+                    // Cancelled: the previous image stays
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof UncheckedIOException) {
+                        JOptionPane.showMessageDialog(mainFrame, "Macrohard Draw cannot read this file.\n" + ex.getCause().getCause().getMessage());
+                    } else if (!(ex.getCause() instanceof CancellationException)) {
+                        JOptionPane.showMessageDialog(mainFrame, "ERROR: " + ex.getCause().getMessage());
+                    }
+                }
+            }
+        }.execute();
     }
 
-    public void updateImageGraphics() {
-        imageGraphics = image.createGraphics();
-        imageGraphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    // Starts a new single-layer document from a copy of the image
+    public void setImage(BufferedImage newImage) {
+        image = PixelBuffer.of(ImageUtils.copyImage(newImage)).getImage();
+        layers.reset(image);
+        history.reset(layers);
+        historyChanged();
+        layersPanel.refresh();
+        selection = null;
+        canvas.imageChanged();
     }
 
     public void updateHistory() {
+        updateHistory(null);
+    }
+
+    // Records an edit of the active layer inside dirty, or anywhere for null, as one undo step
+    public void updateHistory(Rectangle dirty) {
         if (image != null) {
-            if (!redoStack.isEmpty()) redoStack.clear();
-            undoStack.push(ImageUtils.copyImage(image));
+            layers.markChanged(dirty);
+            commitLayers(dirty == null ? null : dirty.intersection(new Rectangle(image.getWidth(), image.getHeight())));
+        }
+    }
+
+    // Records whatever changed in the layers since the last commit as one undo step; dirty is only for the stats
+    private void commitLayers(Rectangle dirty) {
+        try (Instrumentation.Span span = Instrumentation.begin("Commit history", layers.getWidth(), layers.getHeight())) {
+            if (dirty != null) span.setPixels(area(dirty));
+            history.commit(layers);
+            span.setHistoryMemory(history.getMemoryUsage());
+        }
+        historyChanged();
+    }
+
+    // Enables Undo and Redo only when there is something to undo or redo
+    private void historyChanged() {
+        undoButton.setEnabled(history.canUndo());
+        redoButton.setEnabled(history.canRedo());
+    }
+
+    // Applies a change to the layers themselves, such as adding or restyling one, as one undo step
+    public void editLayers(Runnable change) {
+        if (image == null || isBusy()) {
+            layersPanel.refresh();
+            return;
         }
+        change.run();
+        activeLayerChanged();
+        commitLayers(null);
+        canvas.imageChanged();
+    }
+
+    // Points the tools at the active layer after the stack changed under them
+    private void activeLayerChanged() {
+        image = layers.getActive().getImage();
+        layersPanel.refresh();
+    }
+
+    private static long area(Rectangle rectangle) {
+        return rectangle == null || rectangle.isEmpty() ? 0 : (long) rectangle.width * rectangle.height;
+    }
+
+    // Runs an operation on a worker thread and, once it finishes, swaps its result in with a history entry in one step on the EDT
+    public void runOperation(String name, UnaryOperator<BufferedImage> operation) {
+        runOperation(name, operation, null);
+    }
+
+    // Runs the filter on the selection, or on the whole image when nothing is selected
+    public void runFilter(String name, FilterPreview filter) {
+        Selection target = selection;
+        if (target == null) {
+            runOperation(name, filter::apply);
+        } else {
+            runOperation(name, source -> filter.apply(source, target), target);
+        }
+    }
+
+    // With a target, the operation returns a patch of the target's bounding box and only the selected pixels are written back
+    private void runOperation(String name, UnaryOperator<BufferedImage> operation, Selection target) {
+        if (image == null || isBusy()) return;
+        BufferedImage source = image;
+        long historyMemory = history.getMemoryUsage();
+        OperationContext context = new OperationContext();
+        ProgressDialog dialog = new ProgressDialog(name, context);
+        runningOperation = context;
+        new SwingWorker<BufferedImage, Void>() {
+            @Override
+            protected BufferedImage doInBackground() {
+                return context.run(() -> {
+                    try (Instrumentation.Span span = Instrumentation.begin(name, source.getWidth(), source.getHeight())) {
+                        span.setHistoryMemory(historyMemory);
+                        if (target != null) span.setPixels(area(target.getBounds()));
+                        return operation.apply(source);
+                    }
+                });
+            }
+
+            @Override
+            protected void done() {
+                dialog.close();
+                runningOperation = null;
+                try {
+                    BufferedImage result = get();
+                    if (image == source && target != null) {
+                        Rectangle bounds = target.getBounds();
+                        target.copyInto(result, image);
+                        updateHistory(bounds);
+                        canvas.imageChanged(bounds);
+                    } else if (image == source) {
+                        image = result;
+                        layers.setImage(result);
+                        updateHistory();
+                        canvas.imageChanged();
+                    }
+                } catch (InterruptedException | CancellationException ex) {
+                    // Cancelled: the image was never touched
+                } catch (ExecutionException ex) {
+                    if (!(ex.getCause() instanceof CancellationException)) {
+                        JOptionPane.showMessageDialog(mainFrame, "ERROR: " + ex.getCause());
+                    }
+                }
+            }
+        }.execute();
+    }
+
+    // Encodes the last committed state on a worker thread, so editing can go on while the file is written
+    public void saveImage(File file, String format, float quality) {
+        if (image == null) return;
+        RenderedImage snapshot = history.snapshot(ImageSaver.supportsAlpha(format));
+        long historyMemory = history.getMemoryUsage();
+        OperationContext context = new OperationContext();
+        ProgressDialog dialog = new ProgressDialog("Saving " + file.getName(), context, false);
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() {
+                return context.run(() -> {
+                    try (Instrumentation.Span span = Instrumentation.begin("Save " + format, snapshot.getWidth(), snapshot.getHeight())) {
+                        span.setHistoryMemory(historyMemory);
+                        ImageSaver.save(snapshot, file, format, quality);
+                        return null;
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+            }
+
+            @Override
+            protected void done() {
+                dialog.close();
+                try {
+                    get();
+                } catch (InterruptedException | CancellationException ex) {
+                    // Cancelled: the file was left as it was
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause() instanceof UncheckedIOException ? ex.getCause().getCause() : ex.getCause();
+                    if (!(cause instanceof CancellationException)) {
+                        JOptionPane.showMessageDialog(mainFrame, "ERROR: " + cause.getMessage());
+                    }
+                }
+            }
+        }.execute();
+    }
+
+    // Edits are blocked while an operation runs or a filter is previewed
+    public boolean isBusy() {
+        return runningOperation != null || canvas.isPreviewing();
     }
 
     public void undo() {
-        if (image != null) {
-            if (undoStack.size() > 1) {
-                BufferedImage newImage = undoStack.pop();
-                redoStack.push(ImageUtils.copyImage(newImage));
-                setImage(undoStack.get(undoStack.size() - 1));
-                canvas.repaint();
+        if (image != null && !isBusy()) {
+            try (Instrumentation.Span span = Instrumentation.begin("Undo", image.getWidth(), image.getHeight())) {
+                Rectangle changed = history.undo(layers);
+                span.setPixels(area(changed));
+                span.setHistoryMemory(history.getMemoryUsage());
+                historyChanged();
+                activeLayerChanged();
+                canvas.imageChanged(changed);
             }
         }
     }
 
     public void redo() {
-        if (image != null) {
-            if (redoStack.size() > 0) {
-                BufferedImage newImage = redoStack.pop();
-                undoStack.push(ImageUtils.copyImage(newImage));
-                setImage(undoStack.get(undoStack.size() - 1));
-                canvas.repaint();
+        if (image != null && !isBusy()) {
+            try (Instrumentation.Span span = Instrumentation.begin("Redo", image.getWidth(), image.getHeight())) {
+                Rectangle changed = history.redo(layers);
+                span.setPixels(area(changed));
+                span.setHistoryMemory(history.getMemoryUsage());
+                historyChanged();
+                activeLayerChanged();
+                canvas.imageChanged(changed);
             }
         }
     }
 
     class PhotoCanvas extends ImageCanvas {
-        int imageWidth, imageHeight, imageX, imageY;
+        private static final double MIN_ZOOM = 1.0 / 64;
+        private static final double MAX_ZOOM = 32;
+        private static final double ZOOM_STEP = 1.25;
+
+        // Screen pixels per image pixel, and where the image's top left corner is on screen
+        private double zoom = 1;
+        private double viewX, viewY;
+        private boolean fitToWindow = true;
+        private final ImagePyramid pyramid = new ImagePyramid();
+        private FilterPreview preview;
+        // Shown in place of the image, fitted to the window, while a file is being opened
+        private BufferedImage loadingPreview;
+        private final ScribbleMouseListener listener = new ScribbleMouseListener();
 
         public PhotoCanvas(int width, int height) {
             super(width, height);
             newImage(width, height);
-            ScribbleMouseListener listener = new ScribbleMouseListener();
             addMouseListener(listener);
             addMouseMotionListener(listener);
+            addMouseWheelListener(e -> zoomAt(Math.pow(ZOOM_STEP, -e.getPreciseWheelRotation()), e.getPoint()));
         }
 
-        private void calculateImageSize() {
-            if (image != null) {
-                if (getWidth() < getHeight()) {
-                    imageWidth = getWidth();
-                    imageHeight = image.getHeight() * getWidth() / image.getWidth();
-                    imageX = 0;
-                    imageY = getHeight() / 2 - imageHeight / 2;
-                } else {
-                    imageWidth = image.getWidth() * getHeight() / image.getHeight();
-                    imageHeight = getHeight();
-                    imageX = getWidth() / 2 - imageWidth / 2;
-                    imageY = 0;
-                }
+        private void fitView() {
+            zoom = Math.min((double) getWidth() / image.getWidth(), (double) getHeight() / image.getHeight());
+            if (zoom <= 0) zoom = 1;
+            viewX = (getWidth() - image.getWidth() * zoom) / 2;
+            viewY = (getHeight() - image.getHeight() * zoom) / 2;
+        }
+
+        public void resetView() {
+            fitToWindow = true;
+            imageChanged();
+        }
+
+        public void zoomAt(double factor, Point anchor) {
+            if (image == null) return;
+            if (fitToWindow) fitView();
+            double newZoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom * factor));
+            // Keeps the image pixel under the anchor in place
+            viewX = anchor.x - (anchor.x - viewX) * newZoom / zoom;
+            viewY = anchor.y - (anchor.y - viewY) * newZoom / zoom;
+            zoom = newZoom;
+            fitToWindow = false;
+            repaint();
+        }
+
+        public void zoomAt(double factor) {
+            zoomAt(factor, new Point(getWidth() / 2, getHeight() / 2));
+        }
+
+        public void actualSize() {
+            if (image == null) return;
+            if (fitToWindow) fitView();
+            zoomAt(1 / zoom);
+        }
+
+        public void pan(int dx, int dy) {
+            if (image == null) return;
+            if (fitToWindow) fitView();
+            viewX += dx;
+            viewY += dy;
+            fitToWindow = false;
+            repaint();
+        }
+
+        @Override
+        void resized() {
+            if (fitToWindow) super.resized();
+        }
+
+        public void imageChanged() {
+            layers.invalidate(null);
+            pyramid.setSource(layers.getImage());
+            if (preview != null) preview.invalidate();
+            repaint();
+        }
+
+        // Draws the image through the filter until the preview is cleared with null
+        public void setPreview(FilterPreview preview) {
+            this.preview = preview;
+            repaint();
+        }
+
+        public boolean isPreviewing() {
+            return preview != null;
+        }
+
+        public void setLoadingPreview(BufferedImage loadingPreview) {
+            this.loadingPreview = loadingPreview;
+            repaint();
+        }
+
+        // Marks only the given area of the image as stale and repaints only where it is shown
+        public void imageChanged(Rectangle imageRegion) {
+            if (imageRegion == null) return;
+            if (pyramid.getSource() != layers.getImage()) {
+                imageChanged();
+                return;
             }
+            layers.invalidate(imageRegion);
+            pyramid.invalidate(imageRegion);
+            if (preview != null) preview.invalidate();
+            int left = (int) Math.floor(viewX + imageRegion.x * zoom) - 1;
+            int top = (int) Math.floor(viewY + imageRegion.y * zoom) - 1;
+            int right = (int) Math.ceil(viewX + (imageRegion.x + imageRegion.width) * zoom) + 1;
+            int bottom = (int) Math.ceil(viewY + (imageRegion.y + imageRegion.height) * zoom) + 1;
+            repaint(left, top, right - left, bottom - top);
         }
 
         @Override
         protected void paintComponent(Graphics g) {
             super.paintComponent(g);
-            if (image != null) {
-                calculateImageSize();
-                g.drawImage(image, imageX, imageY, imageWidth, imageHeight, null);
+            if (loadingPreview != null) {
+                paintLoadingPreview(g);
+                return;
+            }
+            if (image == null) return;
+            try (Instrumentation.Span span = Instrumentation.begin(preview != null ? "Paint preview" : "Paint", image.getWidth(), image.getHeight())) {
+                paintImage(g, span);
             }
+            paintSelection(g);
+        }
+
+        // Repaints the selection's outline after the selection or the shape being dragged out changed
+        public void selectionChanged() {
+            repaint();
+        }
+
+        // Outlines the selection and the shape being dragged out, in white under black dashes so that they show on any image
+        private void paintSelection(Graphics g) {
+            AffineTransform toScreen = new AffineTransform(zoom, 0, 0, zoom, viewX, viewY);
+            Graphics2D g2 = (Graphics2D) g.create();
+            if (selection != null) drawOutline(g2, toScreen.createTransformedShape(selection.getOutline()));
+            Shape draft = listener.getDraft();
+            if (draft != null) drawOutline(g2, toScreen.createTransformedShape(draft));
+            g2.dispose();
+        }
+
+        private void drawOutline(Graphics2D g2, Shape outline) {
+            g2.setColor(Color.WHITE);
+            g2.setStroke(new BasicStroke(1));
+            g2.draw(outline);
+            g2.setColor(Color.BLACK);
+            g2.setStroke(new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10, new float[] {4, 4}, 0));
+            g2.draw(outline);
+        }
+
+        // Draws the part of the image under the clip from the pyramid level that matches the zoom
+        private void paintImage(Graphics g, Instrumentation.Span span) {
+            span.setPixels(0);
+            if (pyramid.getSource() != layers.getImage()) pyramid.setSource(layers.getImage());
+            if (fitToWindow) fitView();
+
+            Rectangle imageBounds = new Rectangle(0, 0, image.getWidth(), image.getHeight());
+            Rectangle clip = g.getClipBounds();
+            // A preview is filtered for the whole view at once so that partial repaints can reuse it
+            if (clip == null || preview != null) clip = new Rectangle(0, 0, getWidth(), getHeight());
+            // The part of the image under the clip, padded by a pixel for the interpolation
+            int left = (int) Math.floor((clip.x - viewX) / zoom) - 1;
+            int top = (int) Math.floor((clip.y - viewY) / zoom) - 1;
+            int right = (int) Math.ceil((clip.x + clip.width - viewX) / zoom) + 1;
+            int bottom = (int) Math.ceil((clip.y + clip.height - viewY) / zoom) + 1;
+            Rectangle visible = new Rectangle(left, top, right - left, bottom - top).intersection(imageBounds);
+            if (visible.isEmpty()) return;
+
+            // Previews that cannot be scaled down are filtered from the full-resolution image and scaled for display
+            int level = preview != null && preview.isFullResolution() ? 0 : pyramid.levelFor(zoom);
+            Rectangle levelRegion = ImagePyramid.scaleDown(visible, level);
+            // The pyramid downsamples whole tiles, so the layers are flattened wherever those tiles read from
+            int firstX = levelRegion.x / ImagePyramid.TILE_SIZE * ImagePyramid.TILE_SIZE;
+            int firstY = levelRegion.y / ImagePyramid.TILE_SIZE * ImagePyramid.TILE_SIZE;
+            int lastX = -Math.floorDiv(-(levelRegion.x + levelRegion.width), ImagePyramid.TILE_SIZE) * ImagePyramid.TILE_SIZE;
+            int lastY = -Math.floorDiv(-(levelRegion.y + levelRegion.height), ImagePyramid.TILE_SIZE) * ImagePyramid.TILE_SIZE;
+            layers.update(new Rectangle(firstX << level, firstY << level, (lastX - firstX) << level, (lastY - firstY) << level));
+            BufferedImage levelImage = pyramid.getLevel(level, levelRegion);
+            double scale = zoom * (1 << level);
+            span.setPixels(area(levelRegion));
+
+            Graphics2D g2 = (Graphics2D) g.create();
+            g2.clip(new Rectangle((int) Math.round(viewX), (int) Math.round(viewY),
+                    (int) Math.round(image.getWidth() * zoom), (int) Math.round(image.getHeight() * zoom)));
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, scale >= 1
+                    ? RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR : RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2.translate(viewX, viewY);
+            g2.scale(scale, scale);
+            if (preview != null) {
+                g2.drawImage(preview.render(levelImage, levelRegion, 1.0 / (1 << level), selection), levelRegion.x, levelRegion.y, null);
+            } else {
+                g2.drawImage(levelImage, 0, 0, null);
+            }
+            g2.dispose();
+        }
+
+        private void paintLoadingPreview(Graphics g) {
+            double scale = Math.min((double) getWidth() / loadingPreview.getWidth(), (double) getHeight() / loadingPreview.getHeight());
+            int width = (int) Math.round(loadingPreview.getWidth() * scale);
+            int height = (int) Math.round(loadingPreview.getHeight() * scale);
+            Graphics2D g2 = (Graphics2D) g.create();
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2.drawImage(loadingPreview, (getWidth() - width) / 2, (getHeight() - height) / 2, width, height, null);
+            g2.dispose();
         }
 
         class ScribbleMouseListener implements MouseListener, MouseMotionListener {
-            private Point prev;
+            private static final int FRAME_INTERVAL = 16;
+
+            private final BrushEngine brush = new BrushEngine();
+            // Drag positions waiting for the next frame, so that however fast the input comes the canvas updates once per frame
+            private final List<Point> pendingPoints = new ArrayList<>();
+            private final Timer frameTimer = new Timer(FRAME_INTERVAL, e -> flushStroke());
             private boolean isHeld;
+            private Rectangle strokeBounds;
+            // The last screen position while panning with the right or middle button
+            private Point panFrom;
+            private Point dragTo;
+            // Where a rectangle selection is being dragged from, or the points of a lasso being drawn
+            private Point selectFrom;
+            private Polygon lasso;
+
+            public ScribbleMouseListener() {
+                frameTimer.setRepeats(false);
+            }
+
+            private boolean isPanButton(MouseEvent e) {
+                return SwingUtilities.isRightMouseButton(e) || SwingUtilities.isMiddleMouseButton(e);
+            }
 
             private Point actualToImageCoords(Point actual) {
                 if (image == null) return null;
-                int x = actual.x;
-                int y = actual.y;
-                double scale = ((double) image.getWidth()) / ((double) imageWidth);
-                return new Point((int) ((x - imageX) * scale), (int) ((y - imageY) * scale));
+                return new Point((int) Math.floor((actual.x - viewX) / zoom), (int) Math.floor((actual.y - viewY) / zoom));
+            }
+
+            // The rectangle or lasso being dragged out, in image coordinates, or null
+            public Shape getDraft() {
+                if (selectFrom != null && dragTo != null) return dragRectangle();
+                if (lasso != null) {
+                    // The lasso's points are pixel centers
+                    Path2D.Double path = new Path2D.Double();
+                    for (int i = 0; i < lasso.npoints; i++) {
+                        if (i == 0) path.moveTo(lasso.xpoints[i] + 0.5, lasso.ypoints[i] + 0.5);
+                        else path.lineTo(lasso.xpoints[i] + 0.5, lasso.ypoints[i] + 0.5);
+                    }
+                    return path;
+                }
+                return null;
+            }
+
+            // The pixels from the drag's start to where it is now, both included
+            private Rectangle dragRectangle() {
+                return new Rectangle(Math.min(selectFrom.x, dragTo.x), Math.min(selectFrom.y, dragTo.y),
+                        Math.abs(dragTo.x - selectFrom.x) + 1, Math.abs(dragTo.y - selectFrom.y) + 1);
+            }
+
+            private void select(Selection newSelection) {
+                selection = newSelection == null || newSelection.isEmpty() ? null : newSelection;
+                selectionChanged();
             }
 
             private void completeStroke() {
-                prev = null;
-                repaint();
-                updateHistory();
+                if (strokeBounds != null) {
+                    imageChanged(strokeBounds);
+                    updateHistory(strokeBounds);
+                }
+                strokeBounds = null;
+            }
+
+            // Grows the stroke's bounding box by an area the stroke changed and returns that area
+            private Rectangle markStroke(Rectangle changed) {
+                if (changed != null) strokeBounds = strokeBounds == null ? changed : strokeBounds.union(changed);
+                return changed;
+            }
+
+            // Stamps the drag positions that came in since the last frame and repaints what they changed in one go
+            private void flushStroke() {
+                frameTimer.stop();
+                if (pendingPoints.isEmpty()) return;
+                try (Instrumentation.Span span = Instrumentation.begin("Brush", image.getWidth(), image.getHeight())) {
+                    Rectangle changed = null;
+                    for (Point point : pendingPoints) {
+                        Rectangle dabs = brush.lineTo(point);
+                        if (dabs != null) changed = changed == null ? dabs : changed.union(dabs);
+                    }
+                    pendingPoints.clear();
+                    span.setPixels(area(changed));
+                    imageChanged(markStroke(changed));
+                }
             }
 
             @Override
             public void mouseClicked(MouseEvent e) {
+                if (isPanButton(e) || isBusy()) return;
                 Point imageCoords = actualToImageCoords(e.getPoint());
                 if (imageCoords != null && image != null) {
                     switch (currentMode) {
                         case DRAW -> {
-                            imageGraphics.setColor(drawColor);
-                            imageGraphics.setStroke(new BasicStroke(drawSize, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-                            imageGraphics.drawLine(imageCoords.x, imageCoords.y, imageCoords.x, imageCoords.y);
+                            markStroke(brush.begin(image, imageCoords, drawSize, drawColor));
+                            markStroke(brush.end());
                             completeStroke();
                         }
                         case FILL -> {
-                            image = ImageUtils.fillRegion(image, imageCoords, drawColor);
-                            completeStroke();
+                            if (imageCoords.x >= 0 && imageCoords.x < image.getWidth() && imageCoords.y >= 0 && imageCoords.y < image.getHeight()) {
+                                try (Instrumentation.Span span = Instrumentation.begin("Fill", image.getWidth(), image.getHeight())) {
+                                    strokeBounds = ImageUtils.floodFill(image, imageCoords, drawColor, fillTolerance, fillDiagonally);
+                                    span.setPixels(area(strokeBounds));
+                                }
+                                completeStroke();
+                            }
+                        }
+                        // A click without a drag clears the selection
+                        case SELECT_RECTANGLE, LASSO -> select(null);
+                        case MAGIC_WAND -> {
+                            if (imageCoords.x >= 0 && imageCoords.x < image.getWidth() && imageCoords.y >= 0 && imageCoords.y < image.getHeight()) {
+                                try (Instrumentation.Span span = Instrumentation.begin("Magic wand", image.getWidth(), image.getHeight())) {
+                                    Selection wand = Selection.magicWand(image, imageCoords, fillTolerance, fillDiagonally);
+                                    span.setPixels(area(wand.getBounds()));
+                                    select(wand);
+                                }
+                            }
                         }
                     }
                 }
@@ -201,15 +672,43 @@ public class PhotoEditor {
             }
 
             @Override
-            public void mousePressed(MouseEvent e) {}
+            public void mousePressed(MouseEvent e) {
+                if (isPanButton(e)) {
+                    panFrom = e.getPoint();
+                    return;
+                }
+                if (isBusy() || image == null) return;
+                if (currentMode == EditorMode.SELECT_RECTANGLE) {
+                    selectFrom = actualToImageCoords(e.getPoint());
+                } else if (currentMode == EditorMode.LASSO) {
+                    Point start = actualToImageCoords(e.getPoint());
+                    lasso = new Polygon();
+                    lasso.addPoint(start.x, start.y);
+                }
+            }
 
             @Override
             public void mouseReleased(MouseEvent e) {
-                if (currentMode == EditorMode.DRAW) {
-                    if (isHeld && actualToImageCoords(e.getPoint()) != null) {
-                        completeStroke();
-                        isHeld = false;
-                    }
+                if (panFrom != null) {
+                    panFrom = null;
+                    return;
+                }
+                if (selectFrom != null) {
+                    if (dragTo != null) select(Selection.rectangle(dragRectangle(), image.getWidth(), image.getHeight()));
+                    selectFrom = null;
+                    dragTo = null;
+                    return;
+                }
+                if (lasso != null) {
+                    if (lasso.npoints > 1) select(Selection.polygon(lasso, image.getWidth(), image.getHeight()));
+                    lasso = null;
+                    return;
+                }
+                if (isHeld) {
+                    flushStroke();
+                    markStroke(brush.end());
+                    completeStroke();
+                    isHeld = false;
                 }
             }
 
@@ -223,16 +722,34 @@ public class PhotoEditor {
 
             @Override
             public void mouseDragged(MouseEvent e) {
+                if (panFrom != null) {
+                    pan(e.getX() - panFrom.x, e.getY() - panFrom.y);
+                    panFrom = e.getPoint();
+                    return;
+                }
+                if (isBusy()) return;
                 Point imageCoords = actualToImageCoords(e.getPoint());
-                if (currentMode == EditorMode.DRAW) {
-                    if (image != null && imageCoords != null && prev != null) {
+                if (selectFrom != null) {
+                    dragTo = imageCoords;
+                    selectionChanged();
+                    return;
+                }
+                if (lasso != null) {
+                    int last = lasso.npoints - 1;
+                    if (imageCoords.x != lasso.xpoints[last] || imageCoords.y != lasso.ypoints[last]) {
+                        lasso.addPoint(imageCoords.x, imageCoords.y);
+                        selectionChanged();
+                    }
+                    return;
+                }
+                if (currentMode == EditorMode.DRAW && image != null && imageCoords != null) {
+                    if (!isHeld) {
                         isHeld = true;
-                        imageGraphics.setStroke(new BasicStroke(drawSize, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-                        imageGraphics.setColor(drawColor);
-                        imageGraphics.drawLine(imageCoords.x, imageCoords.y, prev.x, prev.y);
-                        prev = imageCoords;
-                        repaint();
-                    } else prev = imageCoords;
+                        imageChanged(markStroke(brush.begin(image, imageCoords, drawSize, drawColor)));
+                    } else {
+                        pendingPoints.add(imageCoords);
+                        if (!frameTimer.isRunning()) frameTimer.start();
+                    }
                 }
             }
 
@@ -247,7 +764,8 @@ public class PhotoEditor {
             setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
 
             add(Box.createVerticalStrut(25));
-            ModeButton[] modes = new ModeButton[] {new ModeButton(EditorMode.DRAW), new ModeButton(EditorMode.FILL)};
+            ModeButton[] modes = new ModeButton[] {new ModeButton(EditorMode.DRAW), new ModeButton(EditorMode.FILL),
+                    new ModeButton(EditorMode.SELECT_RECTANGLE), new ModeButton(EditorMode.LASSO), new ModeButton(EditorMode.MAGIC_WAND)};
             ButtonGroup modeSelector = new ButtonGroup();
             for (ModeButton button : modes) {
                 add(button);
@@ -256,11 +774,111 @@ public class PhotoEditor {
             add(Box.createVerticalStrut(20));
             add(new BrushColorChooserButton());
             add(new BrushSizeChooserPanel());
+            add(new FillTolerancePanel());
+            add(Box.createVerticalStrut(20));
+            add(layersPanel);
 
             add(Box.createGlue());
         }
     }
 
+    // Lists the layers top first, with the active layer's visibility, opacity and blend mode and the buttons that change the stack
+    class LayersPanel extends JPanel {
+        private static final int VISIBLE_ROWS = 6;
+
+        private final DefaultListModel<LayerStack.Layer> layerList = new DefaultListModel<>();
+        private final JList<LayerStack.Layer> layerView = new JList<>(layerList);
+        private final JCheckBox visibleInput = new JCheckBox("Visible");
+        private final JLabel opacityLabel = new JLabel();
+        private final JSlider opacityInput = new JSlider(0, 100, 100);
+        private final JComboBox<BlendMode> blendModeInput = new JComboBox<>(BlendMode.values());
+        // Set while refresh() fills in the inputs, so that their listeners ignore it
+        private boolean refreshing;
+
+        public LayersPanel() {
+            setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
+            layerView.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+            layerView.setVisibleRowCount(VISIBLE_ROWS);
+            layerView.addListSelectionListener(e -> {
+                LayerStack.Layer selected = layerView.getSelectedValue();
+                if (refreshing || e.getValueIsAdjusting() || selected == null) return;
+                if (isBusy()) {
+                    refresh();
+                    return;
+                }
+                layers.setActive(selected);
+                activeLayerChanged();
+            });
+            visibleInput.addActionListener(e -> {
+                if (!refreshing) editLayers(() -> layers.setVisible(layers.getActive(), visibleInput.isSelected()));
+            });
+            opacityInput.addChangeListener(e -> {
+                if (refreshing) return;
+                opacityLabel.setText("Opacity: " + opacityInput.getValue() + "%");
+                if (image == null || isBusy()) return;
+                layers.setOpacity(layers.getActive(), opacityInput.getValue() / 100f);
+                canvas.imageChanged();
+                // The drag shows as it goes but is one undo step
+                if (!opacityInput.getValueIsAdjusting()) editLayers(() -> {});
+            });
+            blendModeInput.addActionListener(e -> {
+                if (!refreshing) editLayers(() -> layers.setBlendMode(layers.getActive(), (BlendMode) blendModeInput.getSelectedItem()));
+            });
+
+            JPanel buttons = new JPanel(new GridLayout(0, 3));
+            buttons.add(layerButton("New", layers::addLayer));
+            buttons.add(layerButton("Copy", layers::duplicateLayer));
+            buttons.add(layerButton("Delete", layers::removeLayer));
+            buttons.add(layerButton("Up", () -> layers.moveLayer(1)));
+            buttons.add(layerButton("Down", () -> layers.moveLayer(-1)));
+            buttons.add(layerButton("Merge", layers::mergeDown));
+            JButton renameButton = new JButton("Rename");
+            renameButton.addActionListener(e -> rename());
+            buttons.add(renameButton);
+
+            add(new JLabel("Layers"));
+            add(new JScrollPane(layerView));
+            add(visibleInput);
+            add(opacityLabel);
+            add(opacityInput);
+            add(blendModeInput);
+            add(buttons);
+        }
+
+        private JButton layerButton(String name, Runnable change) {
+            JButton button = new JButton(name);
+            button.addActionListener(e -> editLayers(change));
+            return button;
+        }
+
+        // Asks for a new name for the active layer; the rename is an undo step like any other change to the stack
+        private void rename() {
+            if (image == null || isBusy()) return;
+            LayerStack.Layer active = layers.getActive();
+            String name = (String) JOptionPane.showInputDialog(mainFrame, "Layer name:", "Rename layer",
+                    JOptionPane.PLAIN_MESSAGE, null, null, active.getName());
+            if (name == null || name.isBlank() || name.equals(active.getName())) return;
+            editLayers(() -> layers.setName(active, name.strip()));
+        }
+
+        // Shows the stack as it is now, after any change to it
+        public void refresh() {
+            refreshing = true;
+            layerList.clear();
+            List<LayerStack.Layer> stack = layers.getLayers();
+            for (int i = stack.size() - 1; i >= 0; i--) layerList.addElement(stack.get(i));
+            LayerStack.Layer active = layers.getActive();
+            if (active != null) {
+                layerView.setSelectedValue(active, true);
+                visibleInput.setSelected(active.isVisible());
+                opacityInput.setValue(Math.round(active.getOpacity() * 100));
+                opacityLabel.setText("Opacity: " + opacityInput.getValue() + "%");
+                blendModeInput.setSelectedItem(active.getBlendMode());
+            }
+            refreshing = false;
+        }
+    }
+
     class BrushSizeChooserPanel extends JPanel {
         private final JLabel sliderLabel = new JLabel("Brush size: " + DEFAULT_BRUSH_SIZE);
 
@@ -272,9 +890,9 @@ public class PhotoEditor {
 
         class BrushSizeChooser extends JSlider implements ChangeListener {
             public BrushSizeChooser() {
-                super(0, 30, DEFAULT_BRUSH_SIZE);
+                super(0, MAX_BRUSH_SIZE, DEFAULT_BRUSH_SIZE);
                 setPaintLabels(true);
-                setMajorTickSpacing(5);
+                setMajorTickSpacing(50);
                 addChangeListener(this);
             }
 
@@ -286,6 +904,44 @@ public class PhotoEditor {
         }
     }
 
+    class FillTolerancePanel extends JPanel {
+        private final JLabel sliderLabel = new JLabel("Fill tolerance: " + DEFAULT_FILL_TOLERANCE);
+
+        public FillTolerancePanel() {
+            setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
+            add(sliderLabel);
+            add(new FillToleranceChooser());
+            add(new FillDiagonalButton());
+        }
+
+        class FillToleranceChooser extends JSlider implements ChangeListener {
+            public FillToleranceChooser() {
+                super(0, 100, DEFAULT_FILL_TOLERANCE);
+                setPaintLabels(true);
+                setMajorTickSpacing(25);
+                addChangeListener(this);
+            }
+
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                fillTolerance = getValue();
+                sliderLabel.setText("Fill tolerance: " + fillTolerance);
+            }
+        }
+
+        class FillDiagonalButton extends JCheckBox implements ActionListener {
+            public FillDiagonalButton() {
+                super("Fill diagonally");
+                addActionListener(this);
+            }
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                fillDiagonally = isSelected();
+            }
+        }
+    }
+
     class BrushColorChooserButton extends JButton implements ActionListener {
         public BrushColorChooserButton() {
             super("Change color");
@@ -324,31 +980,29 @@ public class PhotoEditor {
             add(fileMenu);
 
             JMenu editMenu = new JMenu("Edit");
-            editMenu.add(new UndoButton());
-            editMenu.add(new RedoButton());
+            editMenu.add(undoButton);
+            editMenu.add(redoButton);
+            editMenu.addSeparator();
+            editMenu.add(new SelectionButton("Select all", KeyEvent.VK_A, () -> Selection.all(image.getWidth(), image.getHeight())));
+            editMenu.add(new SelectionButton("Deselect", KeyEvent.VK_D, () -> null));
             editMenu.addSeparator();
 
             JMenu filterMenu = new JMenu("Filter image...");
 
-            filterMenu.add(new FilterButton("Grayscale", color -> {
-                int average = (int) (0.299*color.getRed() + 0.587*color.getGreen() + 0.114*color.getBlue());
-                return new Color(average, average, average);
-            }));
-            filterMenu.add(new FilterButton(
-                    "Invert", color -> new Color(255 - color.getRed(), 255 - color.getGreen(), 255 - color.getBlue())
-            ));
-            filterMenu.add(new FilterButton("Shift colors", color -> new Color(color.getBlue(), color.getRed(), color.getGreen())));
+            filterMenu.add(new FilterButton("Grayscale", ColorOps.GRAYSCALE));
+            filterMenu.add(new FilterButton("Invert", ColorOps.INVERT));
+            filterMenu.add(new FilterButton("Shift colors", ColorOps.SHIFT_COLORS));
 
             JMenu colorFilterMenu = new JMenu("Filter color...");
-            colorFilterMenu.add(new FilterButton("Red", color -> new Color(color.getRed(), 0, 0)));
-            colorFilterMenu.add(new FilterButton("Green", color -> new Color(0, color.getGreen(), 0)));
-            colorFilterMenu.add(new FilterButton("Blue", color -> new Color(0, 0, color.getBlue())));
+            colorFilterMenu.add(new FilterButton("Red", ColorOps.RED_ONLY));
+            colorFilterMenu.add(new FilterButton("Green", ColorOps.GREEN_ONLY));
+            colorFilterMenu.add(new FilterButton("Blue", ColorOps.BLUE_ONLY));
             filterMenu.add(colorFilterMenu);
 
             JMenu removeColorMenu = new JMenu("Remove color component...");
-            removeColorMenu.add(new FilterButton("Red component", color -> new Color(0, color.getGreen(), color.getBlue())));
-            removeColorMenu.add(new FilterButton("Green component", color -> new Color(color.getRed(), 0, color.getBlue())));
-            removeColorMenu.add(new FilterButton("Blue component", color -> new Color(color.getRed(), color.getGreen(), 0)));
+            removeColorMenu.add(new FilterButton("Red component", ColorOps.REMOVE_RED));
+            removeColorMenu.add(new FilterButton("Green component", ColorOps.REMOVE_GREEN));
+            removeColorMenu.add(new FilterButton("Blue component", ColorOps.REMOVE_BLUE));
             filterMenu.add(removeColorMenu);
 
             JMenu advancedFilterMenu = new JMenu("Advanced...");
@@ -356,10 +1010,33 @@ public class PhotoEditor {
             advancedFilterMenu.add(new FilterButton("Sharpen", Kernel.SHARPEN));
             advancedFilterMenu.add(new FilterButton("Gaussian", Kernel.GAUSSIAN_BLUR));
             advancedFilterMenu.add(new FilterButton("Laplacian", Kernel.LAPLACIAN));
+            advancedFilterMenu.addSeparator();
+            advancedFilterMenu.add(new BlurButton("Box blur...", BoxBlur::blur));
+            advancedFilterMenu.add(new BlurButton("Smooth blur...", BoxBlur::gaussianBlur));
+            advancedFilterMenu.addSeparator();
+            JMenu edgeMenu = new JMenu("Edges...");
+            ButtonGroup edgeSelector = new ButtonGroup();
+            for (EdgeMode mode : EdgeMode.values()) {
+                EdgeModeButton button = new EdgeModeButton(mode);
+                edgeMenu.add(button);
+                edgeSelector.add(button);
+            }
+            advancedFilterMenu.add(edgeMenu);
             filterMenu.add(advancedFilterMenu);
+            filterMenu.addSeparator();
+            filterMenu.add(new PreviewFiltersButton());
 
             editMenu.add(filterMenu);
             add(editMenu);
+
+            JMenu viewMenu = new JMenu("View");
+            viewMenu.add(new ViewButton("Zoom in", KeyEvent.VK_EQUALS, () -> canvas.zoomAt(PhotoCanvas.ZOOM_STEP)));
+            viewMenu.add(new ViewButton("Zoom out", KeyEvent.VK_MINUS, () -> canvas.zoomAt(1 / PhotoCanvas.ZOOM_STEP)));
+            viewMenu.add(new ViewButton("Fit to window", KeyEvent.VK_0, canvas::resetView));
+            viewMenu.add(new ViewButton("Actual size", KeyEvent.VK_1, canvas::actualSize));
+            viewMenu.addSeparator();
+            viewMenu.add(new StatsButton());
+            add(viewMenu);
         }
     }
 
@@ -372,8 +1049,79 @@ public class PhotoEditor {
 
         @Override
         public void actionPerformed(ActionEvent e) {
-            if (chooser.showOpenDialog(mainFrame) == JFileChooser.APPROVE_OPTION) {
-                newImage(chooser.getSelectedFile());
+            if (isBusy() || chooser.showOpenDialog(mainFrame) != JFileChooser.APPROVE_OPTION) return;
+            File file = chooser.getSelectedFile();
+            Dimension size;
+            try {
+                size = ImageLoader.readSize(file);
+            } catch (IOException ex) {
+                JOptionPane.showMessageDialog(mainFrame, "Macrohard Draw cannot read this file.\n" + ex.getMessage());
+                return;
+            }
+            if (ImageLoader.fitsInHeap(size.width, size.height)) {
+                newImage(file);
+                return;
+            }
+            LargeImageInput input = new LargeImageInput(size);
+            if (JOptionPane.showConfirmDialog(mainFrame, input, "Open large image", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) return;
+            if (input.wholeImage.isSelected()) {
+                newImage(file, null, input.subsampling);
+                return;
+            }
+            Rectangle region = new Rectangle((int) input.xInput.getValue(), (int) input.yInput.getValue(),
+                    (int) input.widthInput.getValue(), (int) input.heightInput.getValue())
+                    .intersection(new Rectangle(size));
+            if (region.isEmpty()) {
+                JOptionPane.showMessageDialog(mainFrame, "The region is outside the image.");
+            } else if (!ImageLoader.fitsInHeap(region.width, region.height)) {
+                JOptionPane.showMessageDialog(mainFrame, "A " + region.width + " x " + region.height + " region is too large to edit in memory.");
+            } else {
+                newImage(file, region, 1);
+            }
+        }
+
+        // Offers a reduced copy of an image too large for the heap, or a full-resolution region of it
+        class LargeImageInput extends JPanel {
+            final int subsampling;
+            final JRadioButton wholeImage;
+            final JRadioButton regionOnly = new JRadioButton("Region at full size:");
+            final JSpinner xInput;
+            final JSpinner yInput;
+            final JSpinner widthInput;
+            final JSpinner heightInput;
+
+            public LargeImageInput(Dimension size) {
+                int factor = 2;
+                while (!ImageLoader.fitsInHeap((size.width + factor - 1) / factor, (size.height + factor - 1) / factor)) factor++;
+                subsampling = factor;
+                wholeImage = new JRadioButton("Whole image at 1/" + factor + " size", true);
+                ButtonGroup group = new ButtonGroup();
+                group.add(wholeImage);
+                group.add(regionOnly);
+
+                int width = Math.min(size.width, size.width / factor);
+                int height = Math.min(size.height, size.height / factor);
+                xInput = new JSpinner(new SpinnerNumberModel((size.width - width) / 2, 0, size.width - 1, 1));
+                yInput = new JSpinner(new SpinnerNumberModel((size.height - height) / 2, 0, size.height - 1, 1));
+                widthInput = new JSpinner(new SpinnerNumberModel(Math.max(1, width), 1, size.width, 1));
+                heightInput = new JSpinner(new SpinnerNumberModel(Math.max(1, height), 1, size.height, 1));
+
+                setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
+                add(new JLabel("This image is " + size.width + " x " + size.height + ", too large to edit in memory."));
+                add(wholeImage);
+                add(regionOnly);
+                add(inputRow("X: ", xInput, "Y: ", yInput));
+                add(inputRow("Width: ", widthInput, "Height: ", heightInput));
+            }
+
+            private JPanel inputRow(String firstLabel, JSpinner first, String secondLabel, JSpinner second) {
+                JPanel row = new JPanel();
+                row.setLayout(new BoxLayout(row, BoxLayout.X_AXIS));
+                row.add(new JLabel(firstLabel));
+                row.add(first);
+                row.add(new JLabel(" " + secondLabel));
+                row.add(second);
+                return row;
             }
         }
     }
@@ -394,11 +1142,16 @@ public class PhotoEditor {
             }
         }
 
+        // Images are edited on the heap, so each side is limited by the other to what fits there
         class ImageSizeInput extends JPanel {
             JSpinner heightInput = new JSpinner(new SpinnerNumberModel(500, 1, Integer.MAX_VALUE, 1));
             JSpinner widthInput = new JSpinner(new SpinnerNumberModel(500, 1, Integer.MAX_VALUE, 1));
 
             public ImageSizeInput() {
+                limit(widthInput, heightInput);
+                limit(heightInput, widthInput);
+                widthInput.addChangeListener(e -> limit(widthInput, heightInput));
+                heightInput.addChangeListener(e -> limit(heightInput, widthInput));
                 setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
 
                 JPanel widthInputSection = new JPanel();
@@ -412,11 +1165,19 @@ public class PhotoEditor {
 
                 add(widthInputSection);
                 add(heightInputSection);
+                add(new JLabel("Up to " + ImageLoader.maxHeapPixels() / 1_000_000 + " megapixels fit in memory."));
+            }
+
+            private void limit(JSpinner changed, JSpinner other) {
+                long pixels = ImageLoader.maxHeapPixels() / (int) changed.getValue();
+                ((SpinnerNumberModel) other.getModel()).setMaximum((int) Math.min(Integer.MAX_VALUE, pixels));
             }
         }
     }
 
     class SaveFileButton extends JMenuItem implements ActionListener {
+        private final SaveOptionsInput optionsInput = new SaveOptionsInput();
+
         public SaveFileButton() {
             super("Save as...");
             setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_S, InputEvent.CTRL_DOWN_MASK));
@@ -428,12 +1189,78 @@ public class PhotoEditor {
             if (image == null) {
                 JOptionPane.showMessageDialog(mainFrame, "No image to save!");
             } else if (chooser.showSaveDialog(mainFrame) == JFileChooser.APPROVE_OPTION) {
-                try {
-                    ImageIO.write(image, "png", chooser.getSelectedFile());
-                } catch (IOException ex) {
-                    JOptionPane.showMessageDialog(mainFrame, "ERROR: " + ex.getMessage());
+                File file = chooser.getSelectedFile();
+                String name = file.getName();
+                String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+                optionsInput.setFormat(extension.equals("jpg") ? "jpeg" : extension);
+                if (JOptionPane.showConfirmDialog(mainFrame, optionsInput, "Save options", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) return;
+                String format = optionsInput.getFormat();
+                if (!name.contains(".")) file = new File(file.getParentFile(), name + "." + (format.equals("jpeg") ? "jpg" : format));
+                saveImage(file, format, optionsInput.getQuality());
+            }
+        }
+
+        class SaveOptionsInput extends JPanel {
+            private static final int DEFAULT_PNG_LEVEL = 4;
+            private static final int DEFAULT_JPEG_QUALITY = 90;
+
+            private final JComboBox<String> formatInput = new JComboBox<>(ImageSaver.FORMATS);
+            private final JLabel qualityLabel = new JLabel();
+            private final JSlider qualityInput = new JSlider();
+
+            public SaveOptionsInput() {
+                setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
+                qualityInput.setPaintLabels(true);
+                formatInput.addActionListener(e -> updateQualityInput());
+                updateQualityInput();
+
+                JPanel formatSection = new JPanel();
+                formatSection.setLayout(new BoxLayout(formatSection, BoxLayout.X_AXIS));
+                formatSection.add(new JLabel("Format: "));
+                formatSection.add(formatInput);
+
+                add(formatSection);
+                add(qualityLabel);
+                add(qualityInput);
+            }
+
+            public void setFormat(String format) {
+                for (String name : ImageSaver.FORMATS) {
+                    if (name.equals(format)) formatInput.setSelectedItem(name);
                 }
             }
+
+            public String getFormat() {
+                return (String) formatInput.getSelectedItem();
+            }
+
+            // In ImageIO's terms, where 1 is the least compression
+            public float getQuality() {
+                return switch (getFormat()) {
+                    case "png" -> (9 - qualityInput.getValue()) / 9f;
+                    case "jpeg" -> qualityInput.getValue() / 100f;
+                    default -> -1;
+                };
+            }
+
+            private void updateQualityInput() {
+                switch (getFormat()) {
+                    case "png" -> setQualityRange("Compression level (0 is fastest, 9 is smallest):", 9, DEFAULT_PNG_LEVEL, 1);
+                    case "jpeg" -> setQualityRange("Quality:", 100, DEFAULT_JPEG_QUALITY, 25);
+                    default -> {
+                        qualityLabel.setText("No compression options");
+                        qualityInput.setEnabled(false);
+                    }
+                }
+            }
+
+            private void setQualityRange(String label, int max, int value, int labelSpacing) {
+                qualityLabel.setText(label);
+                qualityInput.setEnabled(true);
+                qualityInput.setMaximum(max);
+                qualityInput.setValue(value);
+                qualityInput.setLabelTable(qualityInput.createStandardLabels(labelSpacing));
+            }
         }
     }
 
@@ -463,11 +1290,104 @@ public class PhotoEditor {
         }
     }
 
+    class SelectionButton extends JMenuItem implements ActionListener {
+        private final Supplier<Selection> newSelection;
+
+        public SelectionButton(String name, int key, Supplier<Selection> newSelection) {
+            super(name);
+            this.newSelection = newSelection;
+            setAccelerator(KeyStroke.getKeyStroke(key, InputEvent.CTRL_DOWN_MASK));
+            addActionListener(this);
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            if (image == null || isBusy()) return;
+            selection = newSelection.get();
+            canvas.selectionChanged();
+        }
+    }
+
+    class ViewButton extends JMenuItem implements ActionListener {
+        private final Runnable action;
+
+        public ViewButton(String name, int key, Runnable action) {
+            super(name);
+            this.action = action;
+            setAccelerator(KeyStroke.getKeyStroke(key, InputEvent.CTRL_DOWN_MASK));
+            addActionListener(this);
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            action.run();
+        }
+    }
+
+    class StatsButton extends JMenuItem implements ActionListener {
+        private StatsDialog dialog;
+
+        public StatsButton() {
+            super("Operation stats...");
+            addActionListener(this);
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            if (dialog == null) dialog = new StatsDialog();
+            dialog.open();
+        }
+    }
+
+    // Shows the totals kept by Instrumentation, refreshed every second while open
+    class StatsDialog extends JDialog {
+        private static final int REFRESH_INTERVAL = 1000;
+
+        private final JTextArea report = new JTextArea(16, 90);
+        private final Timer timer = new Timer(REFRESH_INTERVAL, e -> refresh());
+
+        public StatsDialog() {
+            super(mainFrame, "Operation stats", ModalityType.MODELESS);
+            report.setEditable(false);
+            report.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+            JButton resetButton = new JButton("Reset");
+            resetButton.addActionListener(e -> {
+                Instrumentation.reset();
+                refresh();
+            });
+            JButton closeButton = new JButton("Close");
+            closeButton.addActionListener(e -> setVisible(false));
+            JPanel buttons = new JPanel();
+            buttons.add(resetButton);
+            buttons.add(closeButton);
+            add(new JScrollPane(report), BorderLayout.CENTER);
+            add(buttons, BorderLayout.SOUTH);
+            addComponentListener(new ComponentAdapter() {
+                @Override
+                public void componentHidden(ComponentEvent e) {
+                    timer.stop();
+                }
+            });
+            pack();
+            setLocationRelativeTo(mainFrame);
+        }
+
+        public void open() {
+            refresh();
+            timer.start();
+            setVisible(true);
+        }
+
+        private void refresh() {
+            report.setText(Instrumentation.report());
+        }
+    }
+
     class FilterButton extends JMenuItem implements ActionListener {
-        private final Function<Color, Color> transformer;
+        private final ColorOp transformer;
         private final Kernel kernel;
 
-        public FilterButton(String name, Function<Color, Color> transformer) {
+        public FilterButton(String name, ColorOp transformer) {
             super(name);
             this.transformer = transformer;
             kernel = null;
@@ -483,23 +1403,211 @@ public class PhotoEditor {
 
         @Override
         public void actionPerformed(ActionEvent e) {
-            if (image != null) {
-                if (transformer != null) {
-                    image = ImageUtils.transformColors(image, transformer);
-                    updateImageGraphics();
-                    updateHistory();
-                    canvas.repaint();
-                } else if (kernel != null) {
-                    image = Kernel.applyFilter(image, kernel);
-                    updateImageGraphics();
-                    updateHistory();
-                    canvas.repaint();
+            if (image == null || isBusy()) return;
+            FilterPreview filter;
+            if (transformer != null) {
+                filter = new FilterPreview((source, scale) -> ImageUtils.transformColors(source, transformer), scale -> 0);
+            } else {
+                EdgeMode mode = edgeMode;
+                int reach = Math.max(kernel.getWidth(), kernel.getHeight()) / 2;
+                filter = FilterPreview.atFullResolution(source -> Kernel.applyFilter(source, kernel, mode), reach, mode);
+            }
+            if (previewFilters) {
+                new PreviewDialog(getText(), filter);
+            } else {
+                runFilter(getText(), filter);
+            }
+        }
+    }
+
+    class PreviewFiltersButton extends JCheckBoxMenuItem implements ActionListener {
+        public PreviewFiltersButton() {
+            super("Preview filters", previewFilters);
+            addActionListener(this);
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            previewFilters = isSelected();
+        }
+    }
+
+    class PreviewDialog extends JDialog {
+        private final IntFunction<FilterPreview> filters;
+        private FilterPreview filter;
+
+        public PreviewDialog(String name, FilterPreview filter) {
+            this(name, value -> filter, null, 0, 0, 0);
+        }
+
+        // Shows the filter on the canvas until it is applied or cancelled; with a parameter name, a slider picks the filter's parameter
+        public PreviewDialog(String name, IntFunction<FilterPreview> filters, String parameterName, int min, int max, int value) {
+            super(mainFrame, name, ModalityType.MODELESS);
+            this.filters = filters;
+            setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+            JPanel panel = new JPanel();
+            panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
+            panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+            if (parameterName != null) {
+                JLabel label = new JLabel(parameterName + ": " + value);
+                JSlider slider = new JSlider(min, max, value);
+                slider.addChangeListener(e -> {
+                    label.setText(parameterName + ": " + slider.getValue());
+                    preview(slider.getValue());
+                });
+                panel.add(label);
+                panel.add(slider);
+                panel.add(Box.createVerticalStrut(10));
+            }
+            JPanel buttons = new JPanel();
+            JButton applyButton = new JButton("Apply");
+            applyButton.addActionListener(e -> {
+                FilterPreview chosen = this.filter;
+                dispose();
+                runFilter(name, chosen);
+            });
+            JButton cancelButton = new JButton("Cancel");
+            cancelButton.addActionListener(e -> dispose());
+            buttons.add(applyButton);
+            buttons.add(cancelButton);
+            panel.add(buttons);
+            add(panel);
+            pack();
+            setLocationRelativeTo(mainFrame);
+            preview(value);
+            setVisible(true);
+        }
+
+        private void preview(int value) {
+            filter = filters.apply(value);
+            canvas.setPreview(filter);
+        }
+
+        @Override
+        public void dispose() {
+            canvas.setPreview(null);
+            super.dispose();
+        }
+    }
+
+    class ProgressDialog extends JDialog {
+        // Operations that finish sooner than this never show the dialog
+        private static final int SHOW_DELAY = 300;
+        private static final int STEPS = 1000;
+
+        private final JProgressBar progressBar = new JProgressBar(0, STEPS);
+        private final Timer timer;
+
+        public ProgressDialog(String name, OperationContext context) {
+            this(name, context, true);
+        }
+
+        // A modeless dialog shows progress without blocking the editor
+        public ProgressDialog(String name, OperationContext context, boolean modal) {
+            super(mainFrame, name, modal ? ModalityType.APPLICATION_MODAL : ModalityType.MODELESS);
+            setDefaultCloseOperation(DO_NOTHING_ON_CLOSE);
+            JButton cancelButton = new JButton("Cancel");
+            cancelButton.addActionListener(e -> {
+                context.cancel();
+                cancelButton.setEnabled(false);
+                progressBar.setString("Cancelling...");
+            });
+            progressBar.setStringPainted(true);
+            JPanel panel = new JPanel();
+            panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
+            panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+            panel.add(progressBar);
+            panel.add(Box.createVerticalStrut(10));
+            panel.add(cancelButton);
+            add(panel);
+            pack();
+            setLocationRelativeTo(mainFrame);
+
+            timer = new Timer(100, e -> {
+                if (!context.isCancelled()) progressBar.setValue((int) (context.getProgress() * STEPS));
+            });
+            timer.setInitialDelay(SHOW_DELAY);
+            timer.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    timer.removeActionListener(this);
+                    // When modal, blocks in a nested event loop until close(), keeping the window painted but not editable
+                    setVisible(true);
                 }
+            });
+            timer.start();
+        }
+
+        public void close() {
+            timer.stop();
+            dispose();
+        }
+    }
+
+    class EdgeModeButton extends JRadioButtonMenuItem implements ActionListener {
+        private final EdgeMode modeToSelect;
+
+        public EdgeModeButton(EdgeMode mode) {
+            super(mode.name);
+            addActionListener(this);
+            modeToSelect = mode;
+            if (mode == DEFAULT_EDGE_MODE) setSelected(true);
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            edgeMode = modeToSelect;
+        }
+    }
+
+    class BlurButton extends JMenuItem implements ActionListener {
+        private static final int MAX_RADIUS = 1000;
+
+        private final Blur blur;
+        private final JSpinner radiusInput = new JSpinner(new SpinnerNumberModel(10, 0, MAX_RADIUS, 1));
+
+        interface Blur {
+            BufferedImage apply(BufferedImage image, int radius, EdgeMode edgeMode);
+        }
+
+        public BlurButton(String name, Blur blur) {
+            super(name);
+            this.blur = blur;
+            addActionListener(this);
+        }
+
+        // Blurs a proxy with the radius scaled to its resolution, so the preview matches the full-size result
+        private FilterPreview filter(int radius) {
+            EdgeMode mode = edgeMode;
+            return new FilterPreview((source, scale) -> blur.apply(source, (int) Math.round(radius * scale), mode),
+                    scale -> (int) Math.round(radius * scale) + 1, mode);
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            if (image == null || isBusy()) return;
+            if (previewFilters) {
+                new PreviewDialog(getText(), radius -> {
+                    radiusInput.setValue(radius);
+                    return filter(radius);
+                }, "Blur radius (px)", 0, MAX_RADIUS, (int) radiusInput.getValue());
+                return;
+            }
+            JPanel radiusPanel = new JPanel();
+            radiusPanel.setLayout(new BoxLayout(radiusPanel, BoxLayout.X_AXIS));
+            radiusPanel.add(new JLabel("Blur radius (px): "));
+            radiusPanel.add(radiusInput);
+            if (JOptionPane.showConfirmDialog(mainFrame, radiusPanel, getText(), JOptionPane.OK_CANCEL_OPTION) == JOptionPane.OK_OPTION) {
+                runFilter(getText(), filter((int) radiusInput.getValue()));
             }
         }
     }
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--batch")) {
+            BatchProcessor.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         new PhotoEditor();
     }
 }
@@ -0,0 +1,111 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Direct access to the packed ARGB pixels of an int-backed BufferedImage.
+
+ Images that are already TYPE_INT_RGB or TYPE_INT_ARGB are wrapped without copying, so writes through
+ the buffer show up in the image. Any other raster type is converted once when the buffer is created.
+ Pixels of TYPE_INT_RGB images are read back with a fully opaque alpha byte.
+ */
+public class PixelBuffer {
+    private final BufferedImage image;
+    private final int[] pixels;
+    private final int width;
+    private final int height;
+    private final int alphaMask;
+
+    private PixelBuffer(BufferedImage image) {
+        this.image = image;
+        this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.alphaMask = image.getColorModel().hasAlpha() ? 0 : 0xFF000000;
+    }
+
+    public static PixelBuffer of(BufferedImage image) {
+        if (isDirect(image)) return new PixelBuffer(image);
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(),
+                image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        converted.getRaster().setDataElements(0, 0, image.getWidth(), image.getHeight(),
+                image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth()));
+        return new PixelBuffer(converted);
+    }
+
+    public static PixelBuffer create(int width, int height, boolean hasAlpha) {
+        return new PixelBuffer(new BufferedImage(width, height, hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB));
+    }
+
+    public static PixelBuffer createCompatible(PixelBuffer source) {
+        return create(source.width, source.height, source.hasAlpha());
+    }
+
+    private static boolean isDirect(BufferedImage image) {
+        int type = image.getType();
+        if (type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB) return false;
+        if (!(image.getRaster().getDataBuffer() instanceof DataBufferInt)) return false;
+        if (!(image.getSampleModel() instanceof SinglePixelPackedSampleModel sampleModel)) return false;
+        // Sub-images share a larger array; only wrap rasters whose pixels are laid out contiguously from index 0
+        return sampleModel.getScanlineStride() == image.getWidth()
+                && image.getRaster().getSampleModelTranslateX() == 0
+                && image.getRaster().getSampleModelTranslateY() == 0
+                && image.getRaster().getDataBuffer().getOffset() == 0;
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean hasAlpha() {
+        return alphaMask == 0;
+    }
+
+    public int getAlphaMask() {
+        return alphaMask;
+    }
+
+    public int get(int x, int y) {
+        return pixels[y * width + x] | alphaMask;
+    }
+
+    public void set(int x, int y, int argb) {
+        pixels[y * width + x] = argb;
+    }
+
+    public static int alpha(int argb) {
+        return argb >>> 24;
+    }
+
+    public static int red(int argb) {
+        return (argb >> 16) & 0xFF;
+    }
+
+    public static int green(int argb) {
+        return (argb >> 8) & 0xFF;
+    }
+
+    public static int blue(int argb) {
+        return argb & 0xFF;
+    }
+
+    public static int pack(int alpha, int red, int green, int blue) {
+        return (alpha << 24) | (red << 16) | (green << 8) | blue;
+    }
+
+    public static int clamp(int channel) {
+        return channel < 0 ? 0 : Math.min(channel, 255);
+    }
+}
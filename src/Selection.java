@@ -0,0 +1,275 @@
+import java.awt.*;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.function.UnaryOperator;
+
+/**
+ * A set of selected pixels, stored as runs.
+
+ Each row of the bounding box keeps its selected runs as [start, end) pairs of x coordinates, sorted
+ and never touching. Consecutive rows with the same runs share one array, so a rectangle costs one
+ array however tall it is, and a lasso or magic wand selection costs memory in proportion to its
+ outline rather than its area.
+
+ filter() runs a filter on the bounding box plus the filter's reach around it, and copyInto() writes
+ back only the selected runs, so filtering a small selection costs time in proportion to the
+ selection, however large the image.
+ */
+public class Selection {
+    private static final int[] NO_RUNS = new int[0];
+
+    private final int imageWidth;
+    private final int imageHeight;
+    private final Rectangle bounds;
+    // The runs of each row of the bounding box, top to bottom
+    private final int[][] rows;
+    private Path2D outline;
+
+    private Selection(int imageWidth, int imageHeight, Rectangle bounds, int[][] rows) {
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.bounds = bounds;
+        this.rows = rows;
+    }
+
+    public static Selection rectangle(Rectangle rectangle, int imageWidth, int imageHeight) {
+        Rectangle area = rectangle.intersection(new Rectangle(0, 0, imageWidth, imageHeight));
+        if (area.isEmpty()) return of(imageWidth, imageHeight, 0, new int[0][]);
+        int[][] rows = new int[area.height][];
+        Arrays.fill(rows, new int[] {area.x, area.x + area.width});
+        return of(imageWidth, imageHeight, area.y, rows);
+    }
+
+    // The pixels whose centers are inside the polygon, by the even-odd rule; the vertices are taken as pixel centers
+    public static Selection polygon(Polygon polygon, int imageWidth, int imageHeight) {
+        Rectangle area = polygon.getBounds().intersection(new Rectangle(0, 0, imageWidth, imageHeight));
+        if (polygon.npoints < 3 || area.isEmpty()) return of(imageWidth, imageHeight, 0, new int[0][]);
+        int[][] rows = new int[area.height][];
+        double[] crossings = new double[polygon.npoints];
+        for (int y = area.y; y < area.y + area.height; y++) {
+            int count = 0;
+            for (int i = 0; i < polygon.npoints; i++) {
+                int j = (i + 1) % polygon.npoints;
+                int y0 = polygon.ypoints[i];
+                int y1 = polygon.ypoints[j];
+                // Edges cover [y0, y1) so a vertex on the row counts once
+                if ((y0 <= y && y < y1) || (y1 <= y && y < y0)) {
+                    crossings[count++] = polygon.xpoints[i] + (double) (y - y0) * (polygon.xpoints[j] - polygon.xpoints[i]) / (y1 - y0);
+                }
+            }
+            Arrays.sort(crossings, 0, count);
+            int[] runs = new int[count];
+            int size = 0;
+            for (int i = 0; i + 1 < count; i += 2) {
+                int start = Math.max(0, (int) Math.ceil(crossings[i]));
+                int end = Math.min(imageWidth, (int) Math.floor(crossings[i + 1]) + 1);
+                size = addRun(runs, size, start, end);
+            }
+            rows[y - area.y] = Arrays.copyOf(runs, size);
+        }
+        return of(imageWidth, imageHeight, area.y, rows);
+    }
+
+    // The region the fill tool would fill from the point
+    public static Selection magicWand(BufferedImage image, Point start, int tolerance, boolean eightConnected) {
+        int[][] runs = new int[image.getHeight()][];
+        int[] sizes = new int[image.getHeight()];
+        Rectangle area = ImageUtils.findRegion(image, start, tolerance, eightConnected, (y, left, right) -> {
+            if (runs[y] == null) runs[y] = new int[4];
+            else if (sizes[y] == runs[y].length) runs[y] = Arrays.copyOf(runs[y], 2 * sizes[y]);
+            runs[y][sizes[y]++] = left;
+            runs[y][sizes[y]++] = right + 1;
+        });
+        int[][] rows = new int[area.height][];
+        for (int y = area.y; y < area.y + area.height; y++) {
+            rows[y - area.y] = sortRuns(runs[y], sizes[y]);
+        }
+        return of(image.getWidth(), image.getHeight(), area.y, rows);
+    }
+
+    public static Selection all(int imageWidth, int imageHeight) {
+        return rectangle(new Rectangle(0, 0, imageWidth, imageHeight), imageWidth, imageHeight);
+    }
+
+    // Trims rows without runs off the top and bottom, finds the bounding box and shares equal consecutive rows
+    private static Selection of(int imageWidth, int imageHeight, int firstRow, int[][] rows) {
+        int top = 0;
+        int bottom = rows.length;
+        while (top < bottom && rows[top].length == 0) top++;
+        while (bottom > top && rows[bottom - 1].length == 0) bottom--;
+        int left = Integer.MAX_VALUE;
+        int right = Integer.MIN_VALUE;
+        int[][] kept = new int[bottom - top][];
+        for (int i = top; i < bottom; i++) {
+            int[] runs = rows[i];
+            if (runs.length > 0) {
+                left = Math.min(left, runs[0]);
+                right = Math.max(right, runs[runs.length - 1]);
+            }
+            int[] previous = i > top ? kept[i - top - 1] : null;
+            kept[i - top] = runs.length == 0 ? NO_RUNS : Arrays.equals(runs, previous) ? previous : runs;
+        }
+        Rectangle bounds = kept.length == 0 ? new Rectangle() : new Rectangle(left, firstRow + top, right - left, kept.length);
+        return new Selection(imageWidth, imageHeight, bounds, kept);
+    }
+
+    // Appends [start, end) to sorted runs, merging it into the last run when they touch, and returns the new size
+    private static int addRun(int[] runs, int size, int start, int end) {
+        if (start >= end) return size;
+        if (size > 0 && start <= runs[size - 1]) {
+            runs[size - 1] = Math.max(runs[size - 1], end);
+            return size;
+        }
+        runs[size] = start;
+        runs[size + 1] = end;
+        return size + 2;
+    }
+
+    private static int[] sortRuns(int[] runs, int size) {
+        if (runs == null) return NO_RUNS;
+        long[] packed = new long[size / 2];
+        for (int i = 0; i < packed.length; i++) {
+            packed[i] = (long) runs[2 * i] << 32 | runs[2 * i + 1];
+        }
+        Arrays.sort(packed);
+        int[] sorted = new int[size];
+        int count = 0;
+        for (long run : packed) {
+            count = addRun(sorted, count, (int) (run >>> 32), (int) run);
+        }
+        return Arrays.copyOf(sorted, count);
+    }
+
+    public boolean isEmpty() {
+        return rows.length == 0;
+    }
+
+    public Rectangle getBounds() {
+        return new Rectangle(bounds);
+    }
+
+    public boolean contains(int x, int y) {
+        if (!bounds.contains(x, y)) return false;
+        int[] runs = rows[y - bounds.y];
+        // The last run that starts at or before x
+        int low = 0;
+        int high = runs.length / 2 - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (runs[2 * middle] <= x) low = middle + 1;
+            else high = middle - 1;
+        }
+        return high >= 0 && x < runs[2 * high + 1];
+    }
+
+    // Runs the filter on the bounding box plus reach pixels around it and returns its result for the bounding box
+    public BufferedImage filter(BufferedImage image, UnaryOperator<BufferedImage> filter, int reach, boolean wrapsAround) {
+        if (image.getWidth() != imageWidth || image.getHeight() != imageHeight) {
+            throw new IllegalArgumentException("The selection was made on an image of another size.");
+        }
+        Rectangle imageBounds = new Rectangle(0, 0, imageWidth, imageHeight);
+        Rectangle grown = new Rectangle(bounds.x - reach, bounds.y - reach, bounds.width + 2 * reach, bounds.height + 2 * reach);
+        Rectangle padded = grown.intersection(imageBounds);
+        // A filter that wraps around reads the far side of the image, which a crop that stops at an edge does not have
+        if (wrapsAround && !padded.equals(grown)) padded = imageBounds;
+        PixelBuffer source = PixelBuffer.of(image);
+        BufferedImage input = padded.equals(imageBounds) ? source.getImage() : crop(source, imageBounds, padded).getImage();
+        PixelBuffer filtered = PixelBuffer.of(filter.apply(input));
+        return crop(filtered, padded, bounds).getImage();
+    }
+
+    // Copies the selected pixels from an image of the bounding box, such as filter() returns, into the image
+    public void copyInto(BufferedImage patch, BufferedImage image) {
+        PixelBuffer source = PixelBuffer.of(patch);
+        PixelBuffer target = PixelBuffer.of(image);
+        int[] from = source.getPixels();
+        int[] to = target.getPixels();
+        for (int row = 0; row < rows.length; row++) {
+            int[] runs = rows[row];
+            int y = bounds.y + row;
+            for (int i = 0; i < runs.length; i += 2) {
+                System.arraycopy(from, row * bounds.width + runs[i] - bounds.x, to, y * imageWidth + runs[i], runs[i + 1] - runs[i]);
+            }
+        }
+        if (target.getImage() != image) image.setData(target.getImage().getRaster());
+    }
+
+    // The edges between selected and unselected pixels in image coordinates, where pixel (x, y) spans [x, x + 1) x [y, y + 1)
+    public Shape getOutline() {
+        if (outline == null) outline = buildOutline();
+        return outline;
+    }
+
+    private Path2D buildOutline() {
+        Path2D.Float path = new Path2D.Float();
+        // Vertical edges that continue down from earlier rows, by x, with the row each started on
+        int[] openX = new int[0];
+        int[] openY = new int[0];
+        int[] previous = NO_RUNS;
+        for (int row = 0; row <= rows.length; row++) {
+            int[] runs = row < rows.length ? rows[row] : NO_RUNS;
+            if (runs == previous) continue;
+            int y = bounds.y + row;
+            // Where exactly one of the two rows is selected there is a horizontal edge; run ends the rows share cancel out
+            int[] toggles = unsharedEdges(previous, runs);
+            for (int i = 0; i + 1 < toggles.length; i += 2) {
+                path.moveTo(toggles[i], y);
+                path.lineTo(toggles[i + 1], y);
+            }
+            int[] nextX = runs.clone();
+            int[] nextY = new int[runs.length];
+            int open = 0;
+            for (int i = 0; i < nextX.length; i++) {
+                while (open < openX.length && openX[open] < nextX[i]) {
+                    closeEdge(path, openX[open], openY[open], y);
+                    open++;
+                }
+                if (open < openX.length && openX[open] == nextX[i]) {
+                    nextY[i] = openY[open++];
+                } else {
+                    nextY[i] = y;
+                }
+            }
+            for (; open < openX.length; open++) closeEdge(path, openX[open], openY[open], y);
+            openX = nextX;
+            openY = nextY;
+            previous = runs;
+        }
+        return path;
+    }
+
+    private static void closeEdge(Path2D path, int x, int fromY, int toY) {
+        path.moveTo(x, fromY);
+        path.lineTo(x, toY);
+    }
+
+    // The sorted run ends of both rows, leaving out those in both
+    private static int[] unsharedEdges(int[] first, int[] second) {
+        int[] merged = new int[first.length + second.length];
+        int i = 0;
+        int j = 0;
+        int count = 0;
+        while (i < first.length || j < second.length) {
+            if (j == second.length || (i < first.length && first[i] < second[j])) {
+                merged[count++] = first[i++];
+            } else if (i == first.length || second[j] < first[i]) {
+                merged[count++] = second[j++];
+            } else {
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(merged, count);
+    }
+
+    // Copies area, in image coordinates, out of a buffer that covers bufferArea
+    private static PixelBuffer crop(PixelBuffer buffer, Rectangle bufferArea, Rectangle area) {
+        PixelBuffer result = PixelBuffer.create(area.width, area.height, buffer.hasAlpha());
+        for (int y = 0; y < area.height; y++) {
+            System.arraycopy(buffer.getPixels(), (area.y - bufferArea.y + y) * buffer.getWidth() + area.x - bufferArea.x,
+                    result.getPixels(), y * area.width, area.width);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * Vectorized inner loops, implemented by VectorKernels on top of the jdk.incubator.vector module.
+
+ The implementation is loaded reflectively, so the rest of the editor still runs when the module is not
+ resolved (the JVM needs --add-modules jdk.incubator.vector). In that case, or when the
+ photoeditor.simd system property is false, get() returns null and callers use their scalar loops.
+ */
+public abstract class SimdKernels {
+    private static final SimdKernels KERNELS = load();
+
+    // Convolves output rows [startRow, endRow) with weights scaled by 2^shift, rounding and clamping each channel
+    public abstract void convolveBand(int[] src, int[] dst, int width, int height, int startRow, int endRow, int[] weights, int shift,
+                      int kernelWidth, int kernelHeight, EdgeMode edgeMode, int edgeColor, int alphaMask);
+
+    // Applies a 3x4 color matrix whose entries are scaled by 2^shift, with the rounding half already in the offsets
+    public abstract void applyMatrix(int[] matrix, int shift, int[] src, int[] dst, int from, int to, int alphaMask);
+
+    public static SimdKernels get() {
+        return KERNELS;
+    }
+
+    private static SimdKernels load() {
+        if (!Boolean.parseBoolean(System.getProperty("photoeditor.simd", "true"))) return null;
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) return null;
+        try {
+            return (SimdKernels) Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,495 @@
+import java.awt.*;
+import java.awt.image.*;
+import java.util.*;
+import java.util.List;
+
+/**
+ * Undo/redo history that stores only the tiles each operation changed.
+
+ The history keeps the last committed state of a LayerStack: its layers with their properties, and
+ each layer's pixels as an array of immutable tiles. Committing compares each layer against its tiles
+ inside the area the layer says it edited, and each changed tile becomes a new array while the old
+ array moves into the undo entry. Unchanged tiles are shared, never copied, and fully transparent
+ tiles, which new layers are made of, share one array. An entry also records the stack's layers before
+ and after, so adding, deleting, reordering and restyling layers undo like edits; a deleted layer's
+ tiles move into the entry. When the undo and redo entries together exceed the byte budget, the oldest
+ undo entries are dropped, down to the newest one.
+
+ Because tiles are never modified, snapshot() can hand out the committed state as a RenderedImage by
+ copying only the arrays of tile references, and flattens the layers one tile at a time as it is read.
+ Background work such as saving reads from it while editing goes on.
+ */
+public class TileHistory {
+    public static final int TILE_SIZE = 128;
+    private static final int[] ZERO_ROW = new int[TILE_SIZE];
+
+    private final long budget;
+    private final Deque<Entry> undoEntries = new ArrayDeque<>();
+    private final Deque<Entry> redoEntries = new ArrayDeque<>();
+    private long usedBytes;
+
+    private int width;
+    private int height;
+    private int tilesX;
+    private int tilesY;
+    private List<LayerStack.LayerState> layers = List.of();
+    private final Map<LayerStack.Layer, int[][]> tiles = new IdentityHashMap<>();
+    // One shared all-zero tile for each tile size
+    private final Map<Integer, int[]> emptyTiles = new HashMap<>();
+
+    public TileHistory(long budget) {
+        if (budget < 0) throw new IllegalArgumentException("History budget cannot be negative.");
+        this.budget = budget;
+    }
+
+    public static long defaultBudget() {
+        long megabytes = Long.getLong("photoeditor.historyMB", Math.min(512, Runtime.getRuntime().maxMemory() / 4 / (1 << 20)));
+        return megabytes << 20;
+    }
+
+    private static class Entry {
+        final List<LayerStack.LayerState> before;
+        final List<LayerStack.LayerState> after;
+        final List<TileChange> changes;
+        final long bytes;
+
+        Entry(List<LayerStack.LayerState> before, List<LayerStack.LayerState> after, List<TileChange> changes, long bytes) {
+            this.before = before;
+            this.after = after;
+            this.changes = changes;
+            this.bytes = bytes;
+        }
+    }
+
+    // The tiles of one layer that an entry changed; before or after is null where the layer is not in the stack
+    private static class TileChange {
+        final LayerStack.Layer layer;
+        final int[] indices;
+        final int[][] before;
+        final int[][] after;
+
+        TileChange(LayerStack.Layer layer, int[] indices, int[][] before, int[][] after) {
+            this.layer = layer;
+            this.indices = indices;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    public void reset(LayerStack stack) {
+        undoEntries.clear();
+        redoEntries.clear();
+        usedBytes = 0;
+        width = stack.getWidth();
+        height = stack.getHeight();
+        tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        emptyTiles.clear();
+        tiles.clear();
+        layers = stack.states();
+        for (LayerStack.Layer layer : stack.getLayers()) {
+            layer.takeUncommitted();
+            tiles.put(layer, readTiles(layer));
+        }
+    }
+
+    // Records the layers that were added, removed, reordered or restyled and the tiles that differ from the last committed state
+    public void commit(LayerStack stack) {
+        if (stack.getWidth() != width || stack.getHeight() != height) {
+            reset(stack);
+            return;
+        }
+        List<LayerStack.LayerState> states = stack.states();
+        List<TileChange> changes = new ArrayList<>();
+        long bytes = 0;
+        for (LayerStack.Layer layer : stack.getLayers()) {
+            Rectangle dirty = layer.takeUncommitted();
+            int[][] layerTiles = tiles.get(layer);
+            if (layerTiles == null) {
+                layerTiles = readTiles(layer);
+                tiles.put(layer, layerTiles);
+                changes.add(new TileChange(layer, allIndices(), null, layerTiles.clone()));
+            } else if (dirty != null) {
+                TileChange change = diff(layer, layerTiles, dirty);
+                if (change != null) {
+                    changes.add(change);
+                    bytes += bytes(change.before);
+                }
+            }
+        }
+        for (LayerStack.LayerState state : layers) {
+            if (!stack.getLayers().contains(state.layer)) {
+                int[][] removed = tiles.remove(state.layer);
+                changes.add(new TileChange(state.layer, allIndices(), removed, null));
+                bytes += bytes(removed);
+            }
+        }
+        if (changes.isEmpty() && states.equals(layers)) return;
+        clearRedo();
+        Entry entry = new Entry(layers, states, changes, bytes);
+        layers = states;
+        undoEntries.addLast(entry);
+        usedBytes += entry.bytes;
+        // The newest entry stays even when it alone is over budget, so the last operation can always be undone
+        while (usedBytes > budget && undoEntries.size() > 1) {
+            usedBytes -= undoEntries.removeFirst().bytes;
+        }
+    }
+
+    public boolean canUndo() {
+        return !undoEntries.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redoEntries.isEmpty();
+    }
+
+    // Puts the stack back as it was before the last operation and returns the area that changed, or null if there is nothing to undo
+    public Rectangle undo(LayerStack stack) {
+        if (undoEntries.isEmpty()) return null;
+        Entry entry = undoEntries.removeLast();
+        redoEntries.addLast(entry);
+        return apply(stack, entry.before, entry.changes, true);
+    }
+
+    public Rectangle redo(LayerStack stack) {
+        if (redoEntries.isEmpty()) return null;
+        Entry entry = redoEntries.removeLast();
+        undoEntries.addLast(entry);
+        return apply(stack, entry.after, entry.changes, false);
+    }
+
+    // The last committed state flattened, safe to read from any thread; with keepAlpha false, transparent pixels are flattened onto white
+    public RenderedImage snapshot(boolean keepAlpha) {
+        List<LayerStack.LayerState> visible = new ArrayList<>();
+        for (LayerStack.LayerState state : layers) {
+            if (state.visible) visible.add(state);
+        }
+        int[][][] layerTiles = new int[visible.size()][][];
+        for (int i = 0; i < layerTiles.length; i++) {
+            layerTiles[i] = tiles.get(visible.get(i).layer).clone();
+        }
+        return new Snapshot(width, height, tilesX, tilesY, visible, layerTiles, LayerStack.hasAlpha(layers), keepAlpha);
+    }
+
+    public long getMemoryUsage() {
+        return usedBytes;
+    }
+
+    private void clearRedo() {
+        for (Entry entry : redoEntries) {
+            usedBytes -= entry.bytes;
+        }
+        redoEntries.clear();
+    }
+
+    private Rectangle apply(LayerStack stack, List<LayerStack.LayerState> target, List<TileChange> changes, boolean undo) {
+        Rectangle bounds = null;
+        if (!target.equals(layers)) {
+            stack.restore(target);
+            layers = target;
+            bounds = new Rectangle(0, 0, width, height);
+        }
+        for (TileChange change : changes) {
+            int[][] states = undo ? change.before : change.after;
+            if (states == null) {
+                tiles.remove(change.layer);
+                continue;
+            }
+            int[][] layerTiles = tiles.computeIfAbsent(change.layer, layer -> new int[tilesX * tilesY][]);
+            int[] pixels = PixelBuffer.of(change.layer.getImage()).getPixels();
+            for (int i = 0; i < change.indices.length; i++) {
+                layerTiles[change.indices[i]] = states[i];
+                writeTile(pixels, change.indices[i], states[i]);
+                Rectangle tileBounds = tileBounds(change.indices[i]);
+                bounds = bounds == null ? tileBounds : bounds.union(tileBounds);
+            }
+        }
+        for (LayerStack.Layer layer : stack.getLayers()) {
+            layer.takeUncommitted();
+        }
+        return bounds;
+    }
+
+    // The tiles inside dirty that differ from the committed ones, which it replaces, or null if none do
+    private TileChange diff(LayerStack.Layer layer, int[][] layerTiles, Rectangle dirty) {
+        int[] pixels = PixelBuffer.of(layer.getImage()).getPixels();
+        Rectangle area = dirty.intersection(new Rectangle(0, 0, width, height));
+        if (area.isEmpty()) return null;
+        int firstX = area.x / TILE_SIZE;
+        int firstY = area.y / TILE_SIZE;
+        int lastX = (area.x + area.width - 1) / TILE_SIZE;
+        int lastY = (area.y + area.height - 1) / TILE_SIZE;
+        int[] changed = new int[(lastX - firstX + 1) * (lastY - firstY + 1)];
+        int count = 0;
+        for (int tileY = firstY; tileY <= lastY; tileY++) {
+            for (int tileX = firstX; tileX <= lastX; tileX++) {
+                int index = tileY * tilesX + tileX;
+                if (!matchesTile(pixels, index, layerTiles[index])) changed[count++] = index;
+            }
+        }
+        if (count == 0) return null;
+        int[] indices = Arrays.copyOf(changed, count);
+        int[][] before = new int[count][];
+        int[][] after = new int[count][];
+        for (int i = 0; i < count; i++) {
+            before[i] = layerTiles[indices[i]];
+            after[i] = readTile(pixels, indices[i]);
+            layerTiles[indices[i]] = after[i];
+        }
+        return new TileChange(layer, indices, before, after);
+    }
+
+    private int[][] readTiles(LayerStack.Layer layer) {
+        int[] pixels = PixelBuffer.of(layer.getImage()).getPixels();
+        int[][] layerTiles = new int[tilesX * tilesY][];
+        for (int i = 0; i < layerTiles.length; i++) {
+            layerTiles[i] = readTile(pixels, i);
+        }
+        return layerTiles;
+    }
+
+    private int[] allIndices() {
+        int[] indices = new int[tilesX * tilesY];
+        for (int i = 0; i < indices.length; i++) indices[i] = i;
+        return indices;
+    }
+
+    // The memory that tiles hold on their own, not counting the shared empty tiles
+    private long bytes(int[][] states) {
+        long size = 0;
+        for (int[] tile : states) {
+            if (tile != emptyTiles.get(tile.length)) size += 4L * tile.length;
+        }
+        return size;
+    }
+
+    private Rectangle tileBounds(int index) {
+        int x = (index % tilesX) * TILE_SIZE;
+        int y = (index / tilesX) * TILE_SIZE;
+        return new Rectangle(x, y, Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y));
+    }
+
+    private int[] readTile(int[] pixels, int index) {
+        Rectangle bounds = tileBounds(index);
+        int[] tile = new int[bounds.width * bounds.height];
+        boolean empty = true;
+        for (int row = 0; row < bounds.height; row++) {
+            int offset = (bounds.y + row) * width + bounds.x;
+            System.arraycopy(pixels, offset, tile, row * bounds.width, bounds.width);
+            if (empty) empty = Arrays.mismatch(pixels, offset, offset + bounds.width, ZERO_ROW, 0, bounds.width) < 0;
+        }
+        return empty ? emptyTiles.computeIfAbsent(tile.length, length -> tile) : tile;
+    }
+
+    private void writeTile(int[] pixels, int index, int[] tile) {
+        Rectangle bounds = tileBounds(index);
+        for (int row = 0; row < bounds.height; row++) {
+            System.arraycopy(tile, row * bounds.width, pixels, (bounds.y + row) * width + bounds.x, bounds.width);
+        }
+    }
+
+    private boolean matchesTile(int[] pixels, int index, int[] tile) {
+        Rectangle bounds = tileBounds(index);
+        for (int row = 0; row < bounds.height; row++) {
+            int offset = (bounds.y + row) * width + bounds.x;
+            if (!Arrays.equals(pixels, offset, offset + bounds.width, tile, row * bounds.width, (row + 1) * bounds.width)) return false;
+        }
+        return true;
+    }
+
+    private static class Snapshot implements RenderedImage {
+        private static final int[] RGB_MASKS = {0xFF0000, 0xFF00, 0xFF};
+        private static final int[] ARGB_MASKS = {0xFF0000, 0xFF00, 0xFF, 0xFF000000};
+
+        private final int width;
+        private final int height;
+        private final int tilesX;
+        private final int tilesY;
+        // The tiles of each visible layer, bottom to top, and how each is drawn
+        private final int[][][] layerTiles;
+        private final BlendMode[] blendModes;
+        private final int[] opacities;
+        private final int[] alphaMasks;
+        // Whether the flattened layers have alpha that has to be composited away
+        private final boolean flatten;
+        private final ColorModel colorModel;
+        private final SampleModel sampleModel;
+
+        Snapshot(int width, int height, int tilesX, int tilesY, List<LayerStack.LayerState> layers, int[][][] layerTiles,
+                 boolean hasAlpha, boolean keepAlpha) {
+            this.width = width;
+            this.height = height;
+            this.tilesX = tilesX;
+            this.tilesY = tilesY;
+            this.layerTiles = layerTiles;
+            blendModes = new BlendMode[layers.size()];
+            opacities = new int[layers.size()];
+            alphaMasks = new int[layers.size()];
+            for (int i = 0; i < layers.size(); i++) {
+                blendModes[i] = layers.get(i).blendMode;
+                opacities[i] = LayerStack.opacity(layers.get(i).opacity);
+                alphaMasks[i] = layers.get(i).layer.hasAlpha() ? 0 : 0xFF000000;
+            }
+            flatten = hasAlpha && !keepAlpha;
+            colorModel = hasAlpha && keepAlpha ? ColorModel.getRGBdefault() : new DirectColorModel(24, RGB_MASKS[0], RGB_MASKS[1], RGB_MASKS[2]);
+            sampleModel = colorModel.createCompatibleSampleModel(TILE_SIZE, TILE_SIZE);
+        }
+
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return Image.UndefinedProperty;
+        }
+
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return colorModel;
+        }
+
+        @Override
+        public SampleModel getSampleModel() {
+            return sampleModel;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return tilesX;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return tilesY;
+        }
+
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+
+        @Override
+        public int getTileWidth() {
+            return TILE_SIZE;
+        }
+
+        @Override
+        public int getTileHeight() {
+            return TILE_SIZE;
+        }
+
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            return getData(new Rectangle(tileX * TILE_SIZE, tileY * TILE_SIZE, TILE_SIZE, TILE_SIZE));
+        }
+
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(0, 0, width, height));
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            Rectangle area = rect.intersection(new Rectangle(0, 0, width, height));
+            int tileX = area.x / TILE_SIZE;
+            int tileY = area.y / TILE_SIZE;
+            int tileWidth = Math.min(TILE_SIZE, width - tileX * TILE_SIZE);
+            int tileHeight = Math.min(TILE_SIZE, height - tileY * TILE_SIZE);
+            // A whole tile of a single layer that needs no flattening is wrapped as it is
+            if (isSingleLayer() && !flatten && area.x % TILE_SIZE == 0 && area.y % TILE_SIZE == 0 && area.width == tileWidth && area.height == tileHeight) {
+                int[] tile = layerTiles[0][tileY * tilesX + tileX];
+                return Raster.createPackedRaster(new DataBufferInt(tile, tile.length), tileWidth, tileHeight, tileWidth,
+                        colorModel.hasAlpha() ? ARGB_MASKS : RGB_MASKS, new Point(area.x, area.y));
+            }
+            WritableRaster raster = colorModel.createCompatibleWritableRaster(area.width, area.height);
+            int[] pixels = ((DataBufferInt) raster.getDataBuffer()).getData();
+            for (int y = area.y; y < area.y + area.height; y++) {
+                int row = (y - area.y) * area.width;
+                for (int x = area.x; x < area.x + area.width; ) {
+                    int index = (y / TILE_SIZE) * tilesX + x / TILE_SIZE;
+                    int tileLeft = (x / TILE_SIZE) * TILE_SIZE;
+                    int rowWidth = Math.min(TILE_SIZE, width - tileLeft);
+                    int count = Math.min(tileLeft + rowWidth, area.x + area.width) - x;
+                    int tileOffset = (y % TILE_SIZE) * rowWidth + x - tileLeft;
+                    if (isSingleLayer()) {
+                        System.arraycopy(layerTiles[0][index], tileOffset, pixels, row + x - area.x, count);
+                    } else {
+                        for (int k = 0; k < layerTiles.length; k++) {
+                            blendModes[k].composite(layerTiles[k][index], tileOffset, alphaMasks[k], pixels, row + x - area.x, count, opacities[k]);
+                        }
+                    }
+                    x += count;
+                }
+                if (flatten) {
+                    for (int i = row; i < row + area.width; i++) pixels[i] = onWhite(pixels[i]);
+                }
+            }
+            return raster.createTranslatedChild(area.x, area.y);
+        }
+
+        // A single layer at full opacity is its own composite
+        private boolean isSingleLayer() {
+            return layerTiles.length == 1 && opacities[0] == 255;
+        }
+
+        private static int onWhite(int argb) {
+            int alpha = argb >>> 24;
+            if (alpha == 255) return argb;
+            int white = 255 * (255 - alpha) + 127;
+            int red = (((argb >> 16) & 0xFF) * alpha + white) / 255;
+            int green = (((argb >> 8) & 0xFF) * alpha + white) / 255;
+            int blue = ((argb & 0xFF) * alpha + white) / 255;
+            return 0xFF000000 | red << 16 | green << 8 | blue;
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null) raster = colorModel.createCompatibleWritableRaster(width, height);
+            raster.setRect(getData(raster.getBounds()));
+            return raster;
+        }
+    }
+}
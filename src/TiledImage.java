@@ -0,0 +1,693 @@
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.*;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.UnaryOperator;
+
+/**
+ * An image too large for the heap, stored as tiles in a memory-mapped temporary file.
+
+ Each tile is TILE_SIZE x TILE_SIZE packed ARGB pixels. Tiles are copied onto the heap when they are
+ used and kept in an LRU cache whose size is set by the photoeditor.tileCacheMB property; changed
+ tiles are written back to the file when they are evicted. The file is mapped in chunks of at most
+ 1 GB, so images can be larger than both the heap and a single mapping.
+
+ It covers what BatchProcessor needs for images that do not fit its memory budget: read() decodes a
+ file in one pass through a small window of rows, transformColors() works tile by tile, filter() runs
+ any BufferedImage operation block by block with enough overlap for the operation's reach, and
+ write() encodes without ever holding the whole image.
+
+ The editor does not edit TiledImages: its canvas, layers, history, brush and fill all work on heap
+ images. A file too large for the heap opens as a subsampled copy or as a full-size region of it,
+ and New only offers sizes that fit.
+ */
+public class TiledImage implements Closeable {
+    public static final int TILE_SIZE = 256;
+    private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 4;
+    private static final int TILES_PER_CHUNK = 4096;
+    private static final int BLOCK_SIZE = 4 * TILE_SIZE;
+    // Decoding and filtering bands are kept to about this many pixels
+    private static final int BAND_PIXELS = 1 << 24;
+    // Readers that write decoded rows through the destination's raster and report each one; others, such as BMP,
+    // may write straight into the data buffer
+    private static final Set<String> ONE_PASS_FORMATS = Set.of("png", "jpeg", "gif");
+
+    private final int width;
+    private final int height;
+    private final boolean hasAlpha;
+    private final int tilesX;
+    private final int tilesY;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] chunks;
+    private final int cacheCapacity;
+    private final LinkedHashMap<Integer, Tile> cache;
+
+    private static class Tile {
+        final int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+        boolean dirty;
+    }
+
+    private TiledImage(int width, int height, boolean hasAlpha) throws IOException {
+        if (width <= 0 || height <= 0) throw new IllegalArgumentException("Image size must be positive.");
+        this.width = width;
+        this.height = height;
+        this.hasAlpha = hasAlpha;
+        tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        Path file = Files.createTempFile("photoeditor", ".tiles");
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.SPARSE, StandardOpenOption.DELETE_ON_CLOSE);
+        chunks = new MappedByteBuffer[(int) (((long) tilesX * tilesY + TILES_PER_CHUNK - 1) / TILES_PER_CHUNK)];
+        cacheCapacity = (int) Math.max(16, defaultCacheBytes() / TILE_BYTES);
+        cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Tile> eldest) {
+                if (size() <= cacheCapacity) return false;
+                if (eldest.getValue().dirty) store(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    private static long defaultCacheBytes() {
+        long megabytes = Long.getLong("photoeditor.tileCacheMB", Math.min(256, Runtime.getRuntime().maxMemory() / 8 / (1 << 20)));
+        return megabytes << 20;
+    }
+
+    // Decodes the image in one pass where the reader allows it, or in horizontal bands otherwise; either way only a
+    // few rows or one band are on the heap at a time
+    public static TiledImage read(File file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            if (input == null) throw new IOException("Cannot open " + file + ".");
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) throw new IOException("Unsupported image format.");
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input);
+                ImageTypeSpecifier type = reader.getImageTypes(0).next();
+                TiledImage image = new TiledImage(reader.getWidth(0), reader.getHeight(0), type.getColorModel().hasAlpha());
+                try {
+                    if (!image.decodeInOnePass(reader, type)) image.decodeInBands(reader);
+                    return image;
+                } catch (Throwable ex) {
+                    discard(image, ex);
+                    throw ex;
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // Reads the whole image with a single read() into a RowWindow, which copies rows into the tiles as they are
+    // reported; returns false if the reader cannot be read that way, leaving the tiles to be overwritten
+    private boolean decodeInOnePass(ImageReader reader, ImageTypeSpecifier type) throws IOException {
+        if (!ONE_PASS_FORMATS.contains(reader.getFormatName().toLowerCase(Locale.ROOT))) return false;
+        RowWindow window;
+        try {
+            window = new RowWindow(reader, type);
+        } catch (IllegalArgumentException ex) {
+            // 2^31 pixels or more, or a color model that cannot describe the window
+            return false;
+        }
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setDestination(window.destination);
+        reader.addIIOReadUpdateListener(window);
+        try {
+            reader.read(0, param);
+        } finally {
+            reader.removeIIOReadUpdateListener(window);
+        }
+        return window.finish();
+    }
+
+    // Each band is a separate read(), which readers that cannot seek to a row may have to decode from the start
+    private void decodeInBands(ImageReader reader) throws IOException {
+        int bandHeight = Math.max(1, Math.min(height, BAND_PIXELS / width));
+        for (int y = 0; y < height; y += bandHeight) {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, y, width, Math.min(bandHeight, height - y)));
+            write(PixelBuffer.of(reader.read(0, param)), 0, y);
+        }
+    }
+
+    // Closes and deletes an image that could not be finished, keeping the failure that stopped it
+    private static void discard(TiledImage image, Throwable failure) {
+        try {
+            image.close();
+        } catch (IOException ex) {
+            failure.addSuppressed(ex);
+        }
+    }
+
+    // Encodes through a RenderedImage view; writers that request rows (such as PNG) never hold the whole image
+    public void write(File file, String format) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) throw new IOException("Unsupported image format: " + format);
+        ImageWriter writer = writers.next();
+        Files.deleteIfExists(file.toPath());
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(file)) {
+            writer.setOutput(output);
+            writer.write(new RenderedView());
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean hasAlpha() {
+        return hasAlpha;
+    }
+
+    private PixelBuffer read(Rectangle area) {
+        return read(area, EdgeMode.CLAMP, 0xFF000000);
+    }
+
+    // Copies an area onto the heap; pixels outside the image are read through the edge mode
+    private synchronized PixelBuffer read(Rectangle area, EdgeMode edgeMode, int edgeColor) {
+        PixelBuffer region = PixelBuffer.create(area.width, area.height, hasAlpha);
+        int[] dst = region.getPixels();
+        Rectangle inside = area.intersection(new Rectangle(0, 0, width, height));
+        if (!inside.isEmpty()) {
+            forEachTile(inside, (tile, bounds) -> {
+                for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+                    System.arraycopy(tile.pixels, (y % TILE_SIZE) * TILE_SIZE + bounds.x % TILE_SIZE,
+                            dst, (y - area.y) * area.width + bounds.x - area.x, bounds.width);
+                }
+            });
+        }
+        if (inside.equals(area)) return region;
+        int[] columns = new int[area.width];
+        for (int x = 0; x < area.width; x++) {
+            columns[x] = edgeMode.index(area.x + x, width);
+        }
+        for (int y = 0; y < area.height; y++) {
+            int row = edgeMode.index(area.y + y, height);
+            for (int x = 0; x < area.width; x++) {
+                if (inside.contains(area.x + x, area.y + y)) continue;
+                dst[y * area.width + x] = row < 0 || columns[x] < 0 ? edgeColor : pixel(columns[x], row);
+            }
+        }
+        return region;
+    }
+
+    // Copies a region back into the image with its top left corner at (x, y); parts outside the image are dropped
+    private synchronized void write(PixelBuffer region, int x, int y) {
+        int[] src = region.getPixels();
+        int regionWidth = region.getWidth();
+        Rectangle inside = new Rectangle(x, y, regionWidth, region.getHeight()).intersection(new Rectangle(0, 0, width, height));
+        if (inside.isEmpty()) return;
+        forEachTile(inside, (tile, bounds) -> {
+            for (int row = bounds.y; row < bounds.y + bounds.height; row++) {
+                System.arraycopy(src, (row - y) * regionWidth + bounds.x - x,
+                        tile.pixels, (row % TILE_SIZE) * TILE_SIZE + bounds.x % TILE_SIZE, bounds.width);
+            }
+            tile.dirty = true;
+        });
+    }
+
+    public void transformColors(ColorOp transformer) {
+        ColorOp compiled = ColorOps.compile(transformer);
+        int alphaMask = hasAlpha ? 0 : 0xFF000000;
+        ParallelExecutor.forEachBand(tilesY, 1, (startRow, endRow) -> {
+            int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+            for (int tileY = startRow; tileY < endRow; tileY++) {
+                for (int tileX = 0; tileX < tilesX; tileX++) {
+                    // Tiles are copied out and back so that an eviction can never race with the op
+                    synchronized (this) {
+                        System.arraycopy(tile(tileX, tileY).pixels, 0, pixels, 0, pixels.length);
+                    }
+                    compiled.applyAll(pixels, pixels, 0, pixels.length, alphaMask);
+                    synchronized (this) {
+                        Tile tile = tile(tileX, tileY);
+                        System.arraycopy(pixels, 0, tile.pixels, 0, pixels.length);
+                        tile.dirty = true;
+                    }
+                }
+            }
+        });
+    }
+
+    public TiledImage applyFilter(Kernel kernel, EdgeMode edgeMode, int edgeColor) throws IOException {
+        int halo = Math.max(kernel.getWidth(), kernel.getHeight()) / 2;
+        return filter(image -> Kernel.applyFilter(image, kernel, edgeMode, edgeColor), halo, edgeMode, edgeColor);
+    }
+
+    /**
+     * Runs an operation over the image block by block into a new image.
+
+     Each block is read with halo extra pixels on every side, through the edge mode where it crosses the
+     image border, so an operation that reads at most halo pixels away gives the same result as it would
+     on the whole image. The operation must return an image of the size it was given.
+     */
+    public TiledImage filter(UnaryOperator<BufferedImage> operation, int halo, EdgeMode edgeMode, int edgeColor) throws IOException {
+        TiledImage result = new TiledImage(width, height, hasAlpha);
+        try {
+            for (int blockY = 0; blockY < height; blockY += BLOCK_SIZE) {
+                for (int blockX = 0; blockX < width; blockX += BLOCK_SIZE) {
+                    int blockWidth = Math.min(BLOCK_SIZE, width - blockX);
+                    int blockHeight = Math.min(BLOCK_SIZE, height - blockY);
+                    Rectangle padded = new Rectangle(blockX - halo, blockY - halo, blockWidth + 2 * halo, blockHeight + 2 * halo);
+                    PixelBuffer output = PixelBuffer.of(operation.apply(read(padded, edgeMode, edgeColor).getImage()));
+                    PixelBuffer block = PixelBuffer.create(blockWidth, blockHeight, hasAlpha);
+                    for (int y = 0; y < blockHeight; y++) {
+                        System.arraycopy(output.getPixels(), (y + halo) * padded.width + halo, block.getPixels(), y * blockWidth, blockWidth);
+                    }
+                    result.write(block, blockX, blockY);
+                }
+            }
+            return result;
+        } catch (Throwable ex) {
+            discard(result, ex);
+            throw ex;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        cache.clear();
+        Arrays.fill(chunks, null);
+        channel.close();
+    }
+
+    private int pixel(int x, int y) {
+        return tile(x / TILE_SIZE, y / TILE_SIZE).pixels[(y % TILE_SIZE) * TILE_SIZE + x % TILE_SIZE];
+    }
+
+    private interface TileVisitor {
+        void visit(Tile tile, Rectangle bounds);
+    }
+
+    // Calls the visitor with every tile overlapping the area and the part of the area inside that tile
+    private void forEachTile(Rectangle area, TileVisitor visitor) {
+        for (int tileY = area.y / TILE_SIZE; tileY <= (area.y + area.height - 1) / TILE_SIZE; tileY++) {
+            for (int tileX = area.x / TILE_SIZE; tileX <= (area.x + area.width - 1) / TILE_SIZE; tileX++) {
+                Rectangle bounds = new Rectangle(tileX * TILE_SIZE, tileY * TILE_SIZE, TILE_SIZE, TILE_SIZE).intersection(area);
+                visitor.visit(tile(tileX, tileY), bounds);
+            }
+        }
+    }
+
+    private Tile tile(int tileX, int tileY) {
+        int index = tileY * tilesX + tileX;
+        Tile tile = cache.get(index);
+        if (tile == null) {
+            tile = new Tile();
+            view(index).get(tile.pixels);
+            cache.put(index, tile);
+        }
+        return tile;
+    }
+
+    private void store(int index, Tile tile) {
+        view(index).put(tile.pixels);
+        tile.dirty = false;
+    }
+
+    private IntBuffer view(int index) {
+        int chunk = index / TILES_PER_CHUNK;
+        if (chunks[chunk] == null) {
+            long offset = (long) chunk * TILES_PER_CHUNK * TILE_BYTES;
+            long tiles = Math.min(TILES_PER_CHUNK, (long) tilesX * tilesY - (long) chunk * TILES_PER_CHUNK);
+            try {
+                chunks[chunk] = channel.map(FileChannel.MapMode.READ_WRITE, offset, tiles * TILE_BYTES);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        return chunks[chunk].slice((index % TILES_PER_CHUNK) * TILE_BYTES, TILE_BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    /**
+     * A full-size destination for ImageReader.read() that only holds a window of rows.
+
+     Row y of the image is stored in row y % rows of the window. As the reader reports decoded rows
+     through IIOReadUpdateListener, they are converted to ARGB the way PixelBuffer.of() converts, and
+     copied into the tiles, which frees their window rows. A reader that writes a row over one it has
+     not yet reported, because it buffers more rows than the window holds or does not report them at
+     all, is aborted, and finish() returns false.
+     */
+    private class RowWindow implements IIOReadUpdateListener {
+        final BufferedImage destination;
+        private final BufferedImage window;
+        private final int rows;
+        // The image row each window row holds, and whether it still has to be copied into the tiles
+        private final int[] held;
+        private final boolean[] pending;
+        private final ImageReader reader;
+        private final BitSet copied = new BitSet();
+        private boolean overrun;
+
+        RowWindow(ImageReader reader, ImageTypeSpecifier type) {
+            this.reader = reader;
+            rows = Math.max(16, Math.min(height, (1 << 20) / width));
+            SampleModel windowModel = type.getSampleModel(width, rows);
+            DataBuffer data = windowModel.createDataBuffer();
+            ColorModel colorModel = type.getColorModel();
+            window = new BufferedImage(colorModel, Raster.createWritableRaster(windowModel, data, null), colorModel.isAlphaPremultiplied(), null);
+            WritableRaster raster = new WritableRaster(new WindowSampleModel(windowModel), data, new Point()) {};
+            if (colorModel instanceof ComponentColorModel && !colorModel.isCompatibleRaster(raster)) {
+                colorModel = new ComponentColorModel(colorModel.getColorSpace(), colorModel.getComponentSize(), colorModel.hasAlpha(),
+                        colorModel.isAlphaPremultiplied(), colorModel.getTransparency(), colorModel.getTransferType()) {
+                    @Override
+                    public boolean isCompatibleRaster(Raster candidate) {
+                        return candidate.getSampleModel() instanceof WindowSampleModel;
+                    }
+                };
+            }
+            destination = new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+            held = new int[rows];
+            Arrays.fill(held, -1);
+            pending = new boolean[rows];
+        }
+
+        private void written(int y) {
+            int slot = y % rows;
+            if (held[slot] != y) {
+                if (pending[slot] && !overrun) {
+                    overrun = true;
+                    reader.abort();
+                }
+                held[slot] = y;
+            }
+            pending[slot] = true;
+        }
+
+        // Copies the pixels of image row y from x across span, periodX apart, into the tiles
+        private void copy(int y, int x, int span, int periodX) {
+            int slot = y % rows;
+            span = Math.min(span, width - x);
+            if (overrun || held[slot] != y || span <= 0) return;
+            PixelBuffer row;
+            if (periodX == 1) {
+                row = PixelBuffer.create(span, 1, hasAlpha);
+                window.getRGB(x, slot, span, 1, row.getPixels(), 0, span);
+            } else {
+                // Interlaced passes fill in every periodX-th pixel of rows that earlier passes partly wrote
+                row = read(new Rectangle(x, y, span, 1));
+                for (int i = 0; i < span; i += periodX) row.getPixels()[i] = window.getRGB(x + i, slot);
+            }
+            write(row, x, y);
+            copied.set(y);
+        }
+
+        @Override
+        public void imageUpdate(ImageReader source, BufferedImage image, int minX, int minY, int width, int height,
+                                int periodX, int periodY, int[] bands) {
+            for (int i = 0; i < height; i++) {
+                int y = minY + i * periodY;
+                copy(y, minX, width, periodX);
+                if (held[y % rows] == y) pending[y % rows] = false;
+            }
+        }
+
+        // Copies the rows still in the window; returns false if the reader got ahead of the window or skipped rows
+        boolean finish() {
+            if (overrun) return false;
+            for (int slot = 0; slot < rows; slot++) {
+                if (pending[slot]) copy(held[slot], 0, width, 1);
+            }
+            return copied.cardinality() == height;
+        }
+
+        @Override
+        public void passStarted(ImageReader source, BufferedImage image, int pass, int minPass, int maxPass,
+                                int minX, int minY, int periodX, int periodY, int[] bands) {
+        }
+
+        @Override
+        public void passComplete(ImageReader source, BufferedImage image) {
+        }
+
+        @Override
+        public void thumbnailPassStarted(ImageReader source, BufferedImage thumbnail, int pass, int minPass, int maxPass,
+                                         int minX, int minY, int periodX, int periodY, int[] bands) {
+        }
+
+        @Override
+        public void thumbnailUpdate(ImageReader source, BufferedImage thumbnail, int minX, int minY, int width, int height,
+                                    int periodX, int periodY, int[] bands) {
+        }
+
+        @Override
+        public void thumbnailPassComplete(ImageReader source, BufferedImage thumbnail) {
+        }
+
+        /**
+         * The sample model of the whole image, passing each row on to its row of the window.
+         */
+        private class WindowSampleModel extends SampleModel {
+            private final SampleModel model;
+
+            WindowSampleModel(SampleModel model) {
+                super(model.getDataType(), TiledImage.this.width, TiledImage.this.height, model.getNumBands());
+                this.model = model;
+            }
+
+            @Override
+            public int getNumDataElements() {
+                return model.getNumDataElements();
+            }
+
+            @Override
+            public Object getDataElements(int x, int y, Object obj, DataBuffer data) {
+                return model.getDataElements(x, y % rows, obj, data);
+            }
+
+            @Override
+            public void setDataElements(int x, int y, Object obj, DataBuffer data) {
+                written(y);
+                model.setDataElements(x, y % rows, obj, data);
+            }
+
+            @Override
+            public int getSample(int x, int y, int b, DataBuffer data) {
+                return model.getSample(x, y % rows, b, data);
+            }
+
+            @Override
+            public void setSample(int x, int y, int b, int s, DataBuffer data) {
+                written(y);
+                model.setSample(x, y % rows, b, s, data);
+            }
+
+            @Override
+            public int[] getPixel(int x, int y, int[] iArray, DataBuffer data) {
+                return model.getPixel(x, y % rows, iArray, data);
+            }
+
+            @Override
+            public void setPixel(int x, int y, int[] iArray, DataBuffer data) {
+                written(y);
+                model.setPixel(x, y % rows, iArray, data);
+            }
+
+            // Single rows, the usual case, go to the window in one call; taller areas pixel by pixel through the above
+            @Override
+            public int[] getPixels(int x, int y, int w, int h, int[] iArray, DataBuffer data) {
+                if (h == 1) return model.getPixels(x, y % rows, w, 1, iArray, data);
+                return super.getPixels(x, y, w, h, iArray, data);
+            }
+
+            @Override
+            public void setPixels(int x, int y, int w, int h, int[] iArray, DataBuffer data) {
+                if (h != 1) {
+                    super.setPixels(x, y, w, h, iArray, data);
+                    return;
+                }
+                written(y);
+                model.setPixels(x, y % rows, w, 1, iArray, data);
+            }
+
+            @Override
+            public void setDataElements(int x, int y, int w, int h, Object obj, DataBuffer data) {
+                if (h != 1) {
+                    super.setDataElements(x, y, w, h, obj, data);
+                    return;
+                }
+                written(y);
+                model.setDataElements(x, y % rows, w, 1, obj, data);
+            }
+
+            @Override
+            public void setSamples(int x, int y, int w, int h, int b, int[] iArray, DataBuffer data) {
+                if (h != 1) {
+                    super.setSamples(x, y, w, h, b, iArray, data);
+                    return;
+                }
+                written(y);
+                model.setSamples(x, y % rows, w, 1, b, iArray, data);
+            }
+
+            @Override
+            public SampleModel createCompatibleSampleModel(int w, int h) {
+                return model.createCompatibleSampleModel(w, h);
+            }
+
+            @Override
+            public SampleModel createSubsetSampleModel(int[] bands) {
+                return new WindowSampleModel(model.createSubsetSampleModel(bands));
+            }
+
+            @Override
+            public DataBuffer createDataBuffer() {
+                return model.createDataBuffer();
+            }
+
+            @Override
+            public int[] getSampleSize() {
+                return model.getSampleSize();
+            }
+
+            @Override
+            public int getSampleSize(int band) {
+                return model.getSampleSize(band);
+            }
+        }
+    }
+
+    /**
+     * The image as a RenderedImage for ImageIO writers, with rasters read from the tiles on request.
+     */
+    private class RenderedView implements RenderedImage {
+        private final ColorModel colorModel = hasAlpha ? ColorModel.getRGBdefault() : new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF);
+        private final SampleModel sampleModel = colorModel.createCompatibleSampleModel(TILE_SIZE, TILE_SIZE);
+
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return Image.UndefinedProperty;
+        }
+
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return colorModel;
+        }
+
+        @Override
+        public SampleModel getSampleModel() {
+            return sampleModel;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return tilesX;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return tilesY;
+        }
+
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+
+        @Override
+        public int getTileWidth() {
+            return TILE_SIZE;
+        }
+
+        @Override
+        public int getTileHeight() {
+            return TILE_SIZE;
+        }
+
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            return getData(new Rectangle(tileX * TILE_SIZE, tileY * TILE_SIZE, TILE_SIZE, TILE_SIZE));
+        }
+
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(0, 0, width, height));
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            Rectangle area = rect.intersection(new Rectangle(0, 0, width, height));
+            return read(area).getImage().getRaster().createTranslatedChild(area.x, area.y);
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null) raster = colorModel.createCompatibleWritableRaster(width, height);
+            Rectangle area = raster.getBounds().intersection(new Rectangle(0, 0, width, height));
+            int bandHeight = Math.max(1, BAND_PIXELS / Math.max(1, area.width));
+            for (int y = area.y; y < area.y + area.height; y += bandHeight) {
+                raster.setRect(getData(new Rectangle(area.x, y, area.width, Math.min(bandHeight, area.y + area.height - y))));
+            }
+            return raster;
+        }
+    }
+}
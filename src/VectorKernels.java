@@ -0,0 +1,122 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import java.util.Arrays;
+
+/**
+ * SimdKernels on the Java Vector API. Pixels are unpacked into one int lane per channel, multiplied and
+ accumulated in fixed point, then shifted, clamped to [0, 255] and packed back into ARGB.
+ */
+class VectorKernels extends SimdKernels {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    @Override
+    public void convolveBand(int[] src, int[] dst, int width, int height, int startRow, int endRow, int[] weights, int shift,
+                             int kernelWidth, int kernelHeight, EdgeMode edgeMode, int edgeColor, int alphaMask) {
+        int paddedWidth = width + kernelWidth - 1;
+        int bandRows = endRow - startRow + kernelHeight - 1;
+        int[] padded = new int[paddedWidth];
+        int[] red = new int[bandRows * paddedWidth];
+        int[] green = new int[red.length];
+        int[] blue = new int[red.length];
+        for (int r = 0; r < bandRows; r++) {
+            int y = edgeMode.index(startRow + r - kernelHeight/2, height);
+            if (y < 0) {
+                Arrays.fill(padded, edgeColor);
+            } else {
+                Kernel.padRow(src, y * width, width, padded, kernelWidth/2, edgeMode, edgeColor);
+            }
+            unpack(padded, red, green, blue, r * paddedWidth);
+        }
+
+        int half = shift == 0 ? 0 : 1 << (shift - 1);
+        int bound = SPECIES.loopBound(width);
+        for (int row = startRow; row < endRow; row++) {
+            int base = (row - startRow) * paddedWidth;
+            int x = 0;
+            for (; x < bound; x += SPECIES.length()) {
+                IntVector redSum = IntVector.broadcast(SPECIES, half);
+                IntVector greenSum = redSum;
+                IntVector blueSum = redSum;
+                for (int i = 0; i < kernelHeight; i++) {
+                    int offset = base + i * paddedWidth + x;
+                    for (int j = 0; j < kernelWidth; j++) {
+                        int weight = weights[i * kernelWidth + j];
+                        if (weight == 0) continue;
+                        redSum = IntVector.fromArray(SPECIES, red, offset + j).mul(weight).add(redSum);
+                        greenSum = IntVector.fromArray(SPECIES, green, offset + j).mul(weight).add(greenSum);
+                        blueSum = IntVector.fromArray(SPECIES, blue, offset + j).mul(weight).add(blueSum);
+                    }
+                }
+                IntVector alpha = IntVector.fromArray(SPECIES, src, row * width + x).or(alphaMask).and(0xFF000000);
+                pack(alpha, redSum, greenSum, blueSum, shift).intoArray(dst, row * width + x);
+            }
+            for (; x < width; x++) {
+                int redSum = half;
+                int greenSum = half;
+                int blueSum = half;
+                for (int i = 0; i < kernelHeight; i++) {
+                    int offset = base + i * paddedWidth + x;
+                    for (int j = 0; j < kernelWidth; j++) {
+                        int weight = weights[i * kernelWidth + j];
+                        redSum += red[offset + j] * weight;
+                        greenSum += green[offset + j] * weight;
+                        blueSum += blue[offset + j] * weight;
+                    }
+                }
+                dst[row * width + x] = ((src[row * width + x] | alphaMask) & 0xFF000000)
+                        | (PixelBuffer.clamp(redSum >> shift) << 16) | (PixelBuffer.clamp(greenSum >> shift) << 8) | PixelBuffer.clamp(blueSum >> shift);
+            }
+        }
+    }
+
+    @Override
+    public void applyMatrix(int[] matrix, int shift, int[] src, int[] dst, int from, int to, int alphaMask) {
+        int i = from;
+        int bound = from + SPECIES.loopBound(to - from);
+        for (; i < bound; i += SPECIES.length()) {
+            IntVector pixel = IntVector.fromArray(SPECIES, src, i).or(alphaMask);
+            IntVector r = pixel.lanewise(VectorOperators.LSHR, 16).and(0xFF);
+            IntVector g = pixel.lanewise(VectorOperators.LSHR, 8).and(0xFF);
+            IntVector b = pixel.and(0xFF);
+            IntVector red = r.mul(matrix[0]).add(g.mul(matrix[1])).add(b.mul(matrix[2])).add(matrix[3]);
+            IntVector green = r.mul(matrix[4]).add(g.mul(matrix[5])).add(b.mul(matrix[6])).add(matrix[7]);
+            IntVector blue = r.mul(matrix[8]).add(g.mul(matrix[9])).add(b.mul(matrix[10])).add(matrix[11]);
+            pack(pixel.and(0xFF000000), red, green, blue, shift).intoArray(dst, i);
+        }
+        for (; i < to; i++) {
+            int pixel = src[i] | alphaMask;
+            int r = (pixel >> 16) & 0xFF;
+            int g = (pixel >> 8) & 0xFF;
+            int b = pixel & 0xFF;
+            int red = PixelBuffer.clamp((matrix[0] * r + matrix[1] * g + matrix[2] * b + matrix[3]) >> shift);
+            int green = PixelBuffer.clamp((matrix[4] * r + matrix[5] * g + matrix[6] * b + matrix[7]) >> shift);
+            int blue = PixelBuffer.clamp((matrix[8] * r + matrix[9] * g + matrix[10] * b + matrix[11]) >> shift);
+            dst[i] = (pixel & 0xFF000000) | (red << 16) | (green << 8) | blue;
+        }
+    }
+
+    private static void unpack(int[] pixels, int[] red, int[] green, int[] blue, int offset) {
+        int x = 0;
+        int bound = SPECIES.loopBound(pixels.length);
+        for (; x < bound; x += SPECIES.length()) {
+            IntVector pixel = IntVector.fromArray(SPECIES, pixels, x);
+            pixel.lanewise(VectorOperators.LSHR, 16).and(0xFF).intoArray(red, offset + x);
+            pixel.lanewise(VectorOperators.LSHR, 8).and(0xFF).intoArray(green, offset + x);
+            pixel.and(0xFF).intoArray(blue, offset + x);
+        }
+        for (; x < pixels.length; x++) {
+            red[offset + x] = (pixels[x] >> 16) & 0xFF;
+            green[offset + x] = (pixels[x] >> 8) & 0xFF;
+            blue[offset + x] = pixels[x] & 0xFF;
+        }
+    }
+
+    // Saturating pack: arithmetic shift out the fraction, clamp each channel to [0, 255] and merge with alpha
+    private static IntVector pack(IntVector alpha, IntVector red, IntVector green, IntVector blue, int shift) {
+        IntVector r = red.lanewise(VectorOperators.ASHR, shift).max(0).min(255);
+        IntVector g = green.lanewise(VectorOperators.ASHR, shift).max(0).min(255);
+        IntVector b = blue.lanewise(VectorOperators.ASHR, shift).max(0).min(255);
+        return alpha.or(r.lanewise(VectorOperators.LSHL, 16)).or(g.lanewise(VectorOperators.LSHL, 8)).or(b);
+    }
+}